@@ -0,0 +1,282 @@
+package benchmarks;
+
+import benchmarks.TreeShapes.Shape;
+import ted.convenience.TED;
+import ted.core.distances.TedWorkspace;
+import ted.core.distances.TreeEditDistance;
+import ted.core.interfaces.CostFunction;
+import ted.core.interfaces.DistanceFunction;
+import ted.core.repr.BracketParser;
+import ted.core.repr.CompactTree;
+import ted.core.repr.StringTree;
+import ted.core.util.TriangularMatrix;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Benchmarks of the library, on the trees of TreeShapes, to catch regressions:
+ * <ul>
+ * <li>parse: bracket notation to StringTree, and to CompactTree with the streaming parser</li>
+ * <li>preprocess: building the compact tree (post-order, leftmost descendants, keyroots, label ids)</li>
+ * <li>distance: a single pair of trees of the same shape, on one thread, with the integer kernel and
+ * without it (distance-dbl), and the speedup of the kernel (short-gain); with costs of 1000 (dist-1k,
+ * dist-1k-dbl and int-gain) the kernel runs on int tables instead of short ones</li>
+ * <li>batch: the distance matrix of a collection of trees, for each number of threads up to the cores</li>
+ * </ul>
+ * Each measure runs the operation for a warmup period, then for a measurement period, and reports its
+ * throughput and the bytes allocated per operation by the measuring thread (when the JVM can count
+ * them). The batch reports its throughput in pairs per second, and its speedup over one thread.
+ * <p>
+ * Usage: java -cp out benchmarks.Benchmarks [quick] [parse|preprocess|distance|batch]...
+ * ("quick" shortens the periods and the sizes, the names select the benchmarks, all by default).
+ */
+public final class Benchmarks {
+
+    // keeps the results alive, so that the JIT cannot drop the work
+    private static volatile Object sink;
+
+    private final long warmupNanos;
+    private final long measureNanos;
+    private final boolean quick;
+
+
+    private Benchmarks(boolean quick) {
+        this.quick = quick;
+        this.warmupNanos = quick ? 200000000L : 2000000000L;
+        this.measureNanos = quick ? 300000000L : 3000000000L;
+    }
+
+
+    /**
+     * An operation to measure, returning anything computed from its work.
+     */
+    private interface Operation {
+        Object run();
+    }
+
+
+    public static void main(String[] args) {
+        List<String> names = new ArrayList<>(Arrays.asList(args));
+        boolean quick = names.remove("quick");
+        if (names.isEmpty()) {
+            names.addAll(Arrays.asList("parse", "preprocess", "distance", "batch"));
+        }
+        Benchmarks benchmarks = new Benchmarks(quick);
+        System.out.println(String.format(Locale.ROOT, "%-12s %-11s %7s %6s %14s %14s",
+                "benchmark", "shape", "size", "labels", "ops/s", "bytes/op"));
+        for (String name : names) {
+            switch (name) {
+                case "parse":
+                    benchmarks.parse();
+                    break;
+                case "preprocess":
+                    benchmarks.preprocess();
+                    break;
+                case "distance":
+                    benchmarks.distance();
+                    break;
+                case "batch":
+                    benchmarks.batch();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark " + name);
+            }
+        }
+    }
+
+
+    private int[] sizes(int... sizes) {
+        return quick ? Arrays.copyOf(sizes, sizes.length - 1) : sizes;
+    }
+
+
+    private void parse() {
+        for (Shape shape : Shape.values()) {
+            for (int size : sizes(100, 1000, 10000)) {
+                final String brackets = shape.generate(size, 8, 1);
+                measure("parse", shape, size, 8, new Operation() {
+                    @Override
+                    public Object run() {
+                        return new StringTree(brackets);
+                    }
+                });
+                measure("parse-fast", shape, size, 8, new Operation() {
+                    @Override
+                    public Object run() {
+                        return BracketParser.parse(brackets);
+                    }
+                });
+            }
+        }
+    }
+
+
+    private void preprocess() {
+        for (Shape shape : Shape.values()) {
+            for (int size : sizes(100, 1000, 10000)) {
+                String brackets = shape.generate(size, 8, 1);
+                final String topology = StringTree.extractTopology(brackets);
+                final ArrayList<String> labels = StringTree.extractPreOrderLabels(brackets);
+                measure("preprocess", shape, size, 8, new Operation() {
+                    @Override
+                    public Object run() {
+                        return new CompactTree<>(topology, labels);
+                    }
+                });
+            }
+        }
+    }
+
+
+    private void distance() {
+        TedWorkspace workspace = new TedWorkspace();
+        for (Shape shape : Shape.values()) {
+            for (int size : sizes(50, 100, 200)) {
+                for (int alphabetSize : new int[]{4, 64}) {
+                    CompactTree<String> tree1 = BracketParser.parse(shape.generate(size, alphabetSize, 1));
+                    CompactTree<String> tree2 = BracketParser.parse(shape.generate(size, alphabetSize, 2));
+                    // the total cost of the unit costs fits in a short, the one of costs of 1000 does not
+                    compareKernels("distance", "short-gain", 1, shape, size, alphabetSize, tree1, tree2, workspace);
+                    compareKernels("dist-1k", "int-gain", 1000, shape, size, alphabetSize, tree1, tree2, workspace);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Measures the distance with the integer kernel and without it, and prints the speedup of the kernel.
+     */
+    private void compareKernels(String name, String gain, int cost, Shape shape, int size, int alphabetSize,
+                                final CompactTree<String> tree1, final CompactTree<String> tree2,
+                                final TedWorkspace workspace) {
+        final TreeEditDistance<String> integer = unitDistance(cost);
+        final TreeEditDistance<String> floating = unitDistance(cost);
+        floating.setIntegerKernel(false);
+        double integerRate = measure(name, shape, size, alphabetSize, new Operation() {
+            @Override
+            public Object run() {
+                return integer.getDistance(tree1, tree2, workspace);
+            }
+        });
+        double floatingRate = measure(name + "-dbl", shape, size, alphabetSize, new Operation() {
+            @Override
+            public Object run() {
+                return floating.getDistance(tree1, tree2, workspace);
+            }
+        });
+        System.out.println(String.format(Locale.ROOT, "%-12s %-11s %7d %6d %13.2fx", gain,
+                shape.name().toLowerCase(Locale.ROOT), size, alphabetSize, integerRate / floatingRate));
+    }
+
+
+    private void batch() {
+        final TreeEditDistance<String> distance = unitDistance();
+        int count = quick ? 24 : 60;
+        final List<StringTree> trees = new ArrayList<>();
+        for (int i = 0; i != count; ++i) {
+            trees.add(new StringTree(Shape.values()[i % Shape.values().length].generate(100, 8, i)));
+        }
+        long pairs = (long) count * (count - 1) / 2;
+
+        double single = 0;
+        for (int threads = 1; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            final ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                final TriangularMatrix matrix = new TriangularMatrix(count);
+                double rate = pairs * measure(null, null, 0, 0, new Operation() {
+                    @Override
+                    public Object run() {
+                        TED.distanceMatrix(trees, distance, matrix, pool);
+                        return matrix;
+                    }
+                });
+                single = threads == 1 ? rate : single;
+                System.out.println(String.format(Locale.ROOT, "%-12s %-11s %7d %6d %14.1f %13.2fx",
+                        "batch", threads + " threads", 100, 8, rate, rate / single));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+
+    private static TreeEditDistance<String> unitDistance() {
+        return unitDistance(1);
+    }
+
+
+    /**
+     * @return distance where deleting or inserting a node costs the given cost, and relabeling it twice that
+     */
+    private static TreeEditDistance<String> unitDistance(final int cost) {
+        CostFunction<String> unit = new CostFunction<String>() {
+            @Override
+            public double getCost(String label) {
+                return cost;
+            }
+        };
+        return new TreeEditDistance<>(unit, unit, new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                return label1.equals(label2) ? 0 : 2 * cost;
+            }
+        });
+    }
+
+
+    /**
+     * Runs the operation for the warmup period, then for the measurement period, and prints a line
+     * unless the name is null.
+     *
+     * @return operations per second
+     */
+    private double measure(String name, Shape shape, int size, int alphabetSize, Operation operation) {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < warmupNanos) {
+            sink = operation.run();
+        }
+
+        long operations = 0;
+        long bytes = allocatedBytes();
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = operation.run();
+            operations += 1;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < measureNanos);
+        bytes = bytes < 0 ? -1 : allocatedBytes() - bytes;
+
+        double rate = operations * 1e9 / elapsed;
+        if (name != null) {
+            System.out.println(String.format(Locale.ROOT, "%-12s %-11s %7d %6d %14.1f %14s", name,
+                    shape.name().toLowerCase(Locale.ROOT), size, alphabetSize, rate,
+                    bytes < 0 ? "n/a" : String.valueOf(bytes / operations)));
+        }
+        return rate;
+    }
+
+
+    /**
+     * @return bytes allocated by the current thread so far, or a negative number if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        // com.sun.management.ThreadMXBean, through reflection as not every JVM has it
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threads, Thread.currentThread().getId());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Deterministic generators of trees in bracket notation, covering the shapes that matter for the
+ * tree edit distance: the number of keyroots and the depth of the leftmost paths decide the cost of
+ * Zhang-Shasha, so left-deep and right-deep trees are its best and worst cases, zig-zag trees defeat
+ * any fixed choice of path, and the balanced, random and document-like trees sit in between.
+ * <p>
+ * The same arguments always give the same tree. Labels are drawn from an alphabet of the given
+ * size ("a", "b", ... then "l26", "l27", ...).
+ */
+public final class TreeShapes {
+
+    /**
+     * The shapes, each generating trees of any size.
+     */
+    public enum Shape {
+        LEFT_DEEP, RIGHT_DEEP, BALANCED, ZIG_ZAG, RANDOM, DOCUMENT;
+
+        /**
+         * @return a tree of this shape, in bracket notation
+         */
+        public String generate(int size, int alphabetSize, long seed) {
+            switch (this) {
+                case LEFT_DEEP:
+                    return leftDeep(size, alphabetSize, seed);
+                case RIGHT_DEEP:
+                    return rightDeep(size, alphabetSize, seed);
+                case BALANCED:
+                    return balanced(size, 3, alphabetSize, seed);
+                case ZIG_ZAG:
+                    return zigZag(size, alphabetSize, seed);
+                case RANDOM:
+                    return random(size, alphabetSize, seed);
+                default:
+                    return document(size, alphabetSize, seed);
+            }
+        }
+    }
+
+
+    private TreeShapes() {
+    }
+
+
+    /**
+     * A path going down the first children, each node of the path having a leaf as second child.
+     */
+    public static String leftDeep(int size, int alphabetSize, long seed) {
+        return spine(size, alphabetSize, seed, 0);
+    }
+
+
+    /**
+     * A path going down the last children, each node of the path having a leaf as first child.
+     */
+    public static String rightDeep(int size, int alphabetSize, long seed) {
+        return spine(size, alphabetSize, seed, 1);
+    }
+
+
+    /**
+     * A path going down alternately the first and the last children, the other child being a leaf.
+     */
+    public static String zigZag(int size, int alphabetSize, long seed) {
+        return spine(size, alphabetSize, seed, 2);
+    }
+
+
+    /**
+     * Complete tree where each node has the given number of children, filled level by level.
+     */
+    public static String balanced(int size, int arity, int alphabetSize, long seed) {
+        Builder builder = new Builder(size, alphabetSize, seed);
+        for (int i = 1; i != size; ++i) {
+            builder.addChild((i - 1) / arity);
+        }
+        return builder.toBrackets();
+    }
+
+
+    /**
+     * Each new node is attached to a random node of the rightmost path, so that all the shapes can come out.
+     */
+    public static String random(int size, int alphabetSize, long seed) {
+        Builder builder = new Builder(size, alphabetSize, seed);
+        Random random = new Random(seed);
+        int[] path = new int[size];
+        int depth = 0;
+        for (int i = 1; i != size; ++i) {
+            depth = random.nextInt(depth + 1);
+            path[depth + 1] = builder.addChild(path[depth]);
+            depth += 1;
+        }
+        return builder.toBrackets();
+    }
+
+
+    /**
+     * Looks like a parsed document (or syntax tree): a few levels, many children per node but with
+     * most nodes having few, and a handful of labels much more frequent than the others.
+     */
+    public static String document(int size, int alphabetSize, long seed) {
+        Builder builder = new Builder(size, alphabetSize, seed);
+        Random random = new Random(seed);
+        // nodes are expanded in breadth first order, with a geometric number of children
+        int next = 0;
+        while (builder.size() != size) {
+            int parent = next < builder.size() ? next : random.nextInt(builder.size());
+            next += 1;
+            int children = 0;
+            while (random.nextInt(3) != 0 && children != 12) {
+                children += 1;
+            }
+            for (int c = 0; c != children && builder.size() != size; ++c) {
+                builder.addChild(parent);
+            }
+        }
+        // frequent labels: each label is half as likely as the previous one
+        for (int i = 0; i != size; ++i) {
+            int label = 0;
+            while (label + 1 < alphabetSize && random.nextBoolean()) {
+                label += 1;
+            }
+            builder.setLabel(i, label);
+        }
+        return builder.toBrackets();
+    }
+
+
+    /**
+     * @param side 0 for the path on the first children, 1 on the last children, 2 alternating
+     */
+    private static String spine(int size, int alphabetSize, long seed, int side) {
+        Builder builder = new Builder(size, alphabetSize, seed);
+        int node = 0;
+        for (int level = 0; builder.size() + 2 <= size; ++level) {
+            boolean first = side == 0 || (side == 2 && level % 2 == 0);
+            if (!first) {
+                builder.addChild(node);
+            }
+            int deeper = builder.addChild(node);
+            if (first) {
+                builder.addChild(node);
+            }
+            node = deeper;
+        }
+        if (builder.size() != size) {
+            builder.addChild(node);
+        }
+        return builder.toBrackets();
+    }
+
+
+    /**
+     * Tree under construction: children are appended after their older siblings, in any order of nodes.
+     */
+    private static final class Builder {
+        private final int[] firstChildren;
+        private final int[] lastChildren;
+        private final int[] nextSiblings;
+        private final int[] labels;
+        private int size = 1;
+
+        Builder(int capacity, int alphabetSize, long seed) {
+            if (capacity < 1 || alphabetSize < 1) {
+                throw new IllegalArgumentException("A tree needs at least one node and one label");
+            }
+            firstChildren = new int[capacity];
+            lastChildren = new int[capacity];
+            nextSiblings = new int[capacity];
+            Arrays.fill(firstChildren, -1);
+            Arrays.fill(nextSiblings, -1);
+            labels = new int[capacity];
+            // the labels do not depend on the shape, only on the seed
+            Random random = new Random(~seed);
+            for (int i = 0; i != capacity; ++i) {
+                labels[i] = random.nextInt(alphabetSize);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int addChild(int parent) {
+            int child = size;
+            size += 1;
+            if (firstChildren[parent] == -1) {
+                firstChildren[parent] = child;
+            } else {
+                nextSiblings[lastChildren[parent]] = child;
+            }
+            lastChildren[parent] = child;
+            return child;
+        }
+
+        void setLabel(int node, int label) {
+            labels[node] = label;
+        }
+
+        String toBrackets() {
+            StringBuilder brackets = new StringBuilder(4 * size);
+            int[] stack = new int[size];
+            int top = 0;
+            stack[top++] = 0;
+            brackets.append('{').append(label(0));
+            while (top != 0) {
+                int node = stack[top - 1];
+                // the child to open next is kept in place of the node on the stack
+                int child = node < 0 ? nextSiblings[-node - 1] : firstChildren[node];
+                if (child == -1) {
+                    brackets.append('}');
+                    top -= 1;
+                    continue;
+                }
+                stack[top - 1] = -child - 1;
+                stack[top++] = child;
+                brackets.append('{').append(label(child));
+            }
+            return brackets.toString();
+        }
+
+        private String label(int node) {
+            int label = labels[node];
+            return label < 26 ? String.valueOf((char) ('a' + label)) : "l" + label;
+        }
+    }
+}
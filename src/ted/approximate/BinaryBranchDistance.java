@@ -0,0 +1,25 @@
+package ted.approximate;
+
+import ted.core.repr.CompactTree;
+
+/**
+ * Binary branch distance (Yang, Kalnis and Tung): number of binary branches, a node with the labels
+ * of its first child and of its next sibling, found in one tree and not in the other (bag symmetric
+ * difference). An edit operation changes at most 5 binary branches, so a fifth of this distance is a
+ * lower bound of the unit cost tree edit distance. Computed in O(n log n).
+ *
+ * @param <T> type of the labels
+ */
+public class BinaryBranchDistance<T> extends ProfileDistance<T> {
+
+    @Override
+    public long[] getProfile(CompactTree<T> tree) {
+        return tree.getBinaryBranches();
+    }
+
+
+    @Override
+    public double getDistance(int profileSize1, int profileSize2, int shared) {
+        return profileSize1 + profileSize2 - 2 * shared;
+    }
+}
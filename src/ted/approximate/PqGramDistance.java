@@ -0,0 +1,51 @@
+package ted.approximate;
+
+import ted.core.repr.CompactTree;
+
+/**
+ * pq-gram distance (Augsten, Boehlen and Gamper): trees sharing many pq-grams, small subtrees made of
+ * a node, its p - 1 nearest ancestors and q consecutive children, are close.
+ * The distance is 1 - 2 shared / (|P1| + |P2|), where shared counts the pq-grams of both bags, between
+ * 0 (same bags of pq-grams) and 1 (no pq-gram in common). Computed in O(n log n), and it approximates the tree edit distance
+ * relative to the sizes of the trees.
+ *
+ * @param <T> type of the labels
+ */
+public class PqGramDistance<T> extends ProfileDistance<T> {
+
+    private final int p;
+    private final int q;
+
+
+    /**
+     * pq-gram distance with the usual shape, p = 2 and q = 3.
+     */
+    public PqGramDistance() {
+        this(2, 3);
+    }
+
+
+    /**
+     * @param p length of the stem (the node and its ancestors), at least 1
+     * @param q length of the base (consecutive children), at least 1
+     */
+    public PqGramDistance(int p, int q) {
+        if (p < 1 || q < 1) {
+            throw new IllegalArgumentException("Invalid pq-gram shape " + p + ", " + q);
+        }
+        this.p = p;
+        this.q = q;
+    }
+
+
+    @Override
+    public long[] getProfile(CompactTree<T> tree) {
+        return tree.getPqGrams(p, q);
+    }
+
+
+    @Override
+    public double getDistance(int profileSize1, int profileSize2, int shared) {
+        return 1 - 2.0 * shared / (profileSize1 + profileSize2);
+    }
+}
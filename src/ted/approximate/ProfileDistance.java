@@ -0,0 +1,80 @@
+package ted.approximate;
+
+import ted.core.interfaces.DistanceFunction;
+import ted.core.repr.CompactTree;
+import ted.core.repr.OrderedLabeledTree;
+
+/**
+ * Approximate tree distance computed from a profile of each tree: a bag of hashed pieces of the tree
+ * (sorted long array), cached on the compact tree, so it is extracted once per tree. Two profiles are
+ * compared by merging them, in time linear in their sizes, instead of the cubic or quartic time of the
+ * tree edit distance. The distance only depends on the sizes of the two bags and of their intersection.
+ *
+ * @param <T> type of the labels
+ */
+public abstract class ProfileDistance<T> implements DistanceFunction<OrderedLabeledTree<T>, OrderedLabeledTree<T>> {
+
+    /**
+     * Gets the profile of a tree, computed on the first call then kept by the tree.
+     *
+     * @param tree the tree
+     * @return hashed pieces of the tree, sorted
+     */
+    public abstract long[] getProfile(CompactTree<T> tree);
+
+
+    /**
+     * Distance between two trees from their profiles.
+     *
+     * @param profileSize1 number of pieces of the first tree
+     * @param profileSize2 number of pieces of the second tree
+     * @param shared       number of pieces found in both (bag intersection)
+     * @return distance between the two trees
+     */
+    public abstract double getDistance(int profileSize1, int profileSize2, int shared);
+
+
+    @Override
+    public double getDistance(OrderedLabeledTree<T> tree1, OrderedLabeledTree<T> tree2) {
+        return getDistance(tree1.toCompactTree(), tree2.toCompactTree());
+    }
+
+
+    /**
+     * Computes the approximate distance between two compact trees.
+     *
+     * @param tree1 first tree
+     * @param tree2 second tree
+     * @return distance between the two trees
+     */
+    public double getDistance(CompactTree<T> tree1, CompactTree<T> tree2) {
+        long[] profile1 = getProfile(tree1);
+        long[] profile2 = getProfile(tree2);
+        return getDistance(profile1.length, profile2.length, shared(profile1, profile2));
+    }
+
+
+    /**
+     * Size of the bag intersection of two sorted profiles.
+     *
+     * @param profile1 sorted hashes
+     * @param profile2 sorted hashes
+     * @return number of hashes found in both, with their multiplicity
+     */
+    public static int shared(long[] profile1, long[] profile2) {
+        int shared = 0;
+        int i = 0, j = 0;
+        while (i != profile1.length && j != profile2.length) {
+            if (profile1[i] == profile2[j]) {
+                shared += 1;
+                i += 1;
+                j += 1;
+            } else if (profile1[i] < profile2[j]) {
+                i += 1;
+            } else {
+                j += 1;
+            }
+        }
+        return shared;
+    }
+}
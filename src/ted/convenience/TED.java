@@ -1,12 +1,20 @@
 package ted.convenience;
 
+import ted.core.distances.PreparedQuery;
 import ted.core.distances.TreeEditDistance;
 import ted.core.interfaces.CostFunction;
 import ted.core.interfaces.DistanceFunction;
+import ted.core.interfaces.DistanceSink;
+import ted.core.repr.CompactTree;
 import ted.core.repr.OrderedLabeledTree;
 import ted.core.repr.StringTree;
+import ted.core.util.TriangularMatrix;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -110,4 +118,137 @@ public final class TED {
 
     //endregion
 
+
+    //region Called With One Query
+
+    /**
+     * Prepare a tree to be compared to many others, with unit costs.
+     * @param query tree compared to the candidates
+     * @return the prepared query, e.g. query.distancesTo(candidates)
+     */
+    public static PreparedQuery<String> prepareQuery(StringTree query) {
+        return prepareQuery(query, new TreeEditDistance<>(new UnitCost(), new UnitCost(), new EqualDistanceCost()));
+    }
+
+
+    /**
+     * Prepare a tree to be compared to many others, its labels, costs and keyroots being computed once.
+     * @param query tree compared to the candidates
+     * @param distanceFunction tree edit distance used for every comparison
+     * @return the prepared query, e.g. query.distancesTo(candidates)
+     */
+    public static <T> PreparedQuery<T> prepareQuery(OrderedLabeledTree<T> query,
+                                                    TreeEditDistance<T> distanceFunction) {
+        return new PreparedQuery<>(distanceFunction, query);
+    }
+
+    //endregion
+
+
+    //region Called On Collections
+
+    /**
+     * Compute the distances between all the pairs of a collection of trees, in parallel.
+     * Each tree is preprocessed once, and only one of (i, j) and (j, i) is computed.
+     * @param trees collection of trees
+     * @param distanceFunction tree edit distance, shared by all the threads
+     * @return distances between all the pairs, indexed like the collection
+     */
+    public static <T> TriangularMatrix distanceMatrix(List<? extends OrderedLabeledTree<T>> trees,
+                                                      TreeEditDistance<T> distanceFunction) {
+        TriangularMatrix matrix = new TriangularMatrix(trees.size());
+        distanceMatrix(trees, distanceFunction, matrix);
+        return matrix;
+    }
+
+
+    /**
+     * Compute the distances between all the pairs of a collection of trees, in parallel,
+     * handing them to the sink as they come (i less than j, in no particular order).
+     */
+    public static <T> void distanceMatrix(List<? extends OrderedLabeledTree<T>> trees,
+                                          TreeEditDistance<T> distanceFunction,
+                                          DistanceSink sink) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            distanceMatrix(trees, distanceFunction, sink, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Compute the distances between all the pairs of a collection of trees, on the given pool,
+     * handing them to the sink as they come (i less than j, in no particular order).
+     */
+    public static <T> void distanceMatrix(List<? extends OrderedLabeledTree<T>> trees,
+                                          TreeEditDistance<T> distanceFunction,
+                                          DistanceSink sink,
+                                          ForkJoinPool pool) {
+        int count = trees.size();
+        List<CompactTree<T>> compactTrees = new ArrayList<>(count);
+        for (OrderedLabeledTree<T> tree : trees) {
+            compactTrees.add(tree.toCompactTree());
+        }
+
+        // work of each row, estimated by the sizes of its pairs, accumulated
+        long[] work = new long[count + 1];
+        long remaining = 0;
+        for (CompactTree<T> tree : compactTrees) {
+            remaining += tree.size();
+        }
+        for (int i = 0; i != count; ++i) {
+            remaining -= compactTrees.get(i).size();
+            work[i + 1] = work[i] + compactTrees.get(i).size() * remaining;
+        }
+        long grain = Math.max(1, work[count] / (8L * pool.getParallelism()));
+
+        pool.invoke(new MatrixRows<>(compactTrees, distanceFunction, sink, work, grain, 0, count));
+    }
+
+
+    /**
+     * Rows of the upper triangle, split in halves of similar work until they are small enough.
+     */
+    private static final class MatrixRows<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<CompactTree<T>> trees;
+        private final TreeEditDistance<T> distanceFunction;
+        private final DistanceSink sink;
+        private final long[] work;
+        private final long grain;
+        private final int from, to;
+
+        MatrixRows(List<CompactTree<T>> trees, TreeEditDistance<T> distanceFunction, DistanceSink sink,
+                   long[] work, long grain, int from, int to) {
+            this.trees = trees;
+            this.distanceFunction = distanceFunction;
+            this.sink = sink;
+            this.work = work;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1 && work[to] - work[from] > grain) {
+                // first row past the middle of the work, keeping both halves non empty
+                int middle = Arrays.binarySearch(work, from, to, (work[from] + work[to]) / 2);
+                middle = Math.max(from + 1, Math.min(to - 1, middle < 0 ? -middle - 1 : middle));
+                invokeAll(new MatrixRows<>(trees, distanceFunction, sink, work, grain, from, middle),
+                        new MatrixRows<>(trees, distanceFunction, sink, work, grain, middle, to));
+                return;
+            }
+            // the distance function gives each thread its own workspace
+            for (int i = from; i != to; ++i) {
+                for (int j = i + 1; j != trees.size(); ++j) {
+                    sink.accept(i, j, distanceFunction.getDistance(trees.get(i), trees.get(j)));
+                }
+            }
+        }
+    }
+
+    //endregion
 }
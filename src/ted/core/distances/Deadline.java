@@ -0,0 +1,81 @@
+package ted.core.distances;
+
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Point in time after which a distance computation gives up, and cancellation token: any thread
+ * can cancel it, e.g. when the request it serves is abandoned. It is checked between keyroot pairs
+ * (or path pairs, or wavefronts), the clock being read once enough forest distances were computed,
+ * so that the check costs nothing next to the dynamic program.
+ * <p>
+ * A deadline can be shared by several computations, cancelling it stops all of them.
+ */
+public final class Deadline {
+
+    private final long expiration;
+    private final boolean timed;
+    private volatile boolean cancelled = false;
+
+
+    private Deadline(long expiration, boolean timed) {
+        this.expiration = expiration;
+        this.timed = timed;
+    }
+
+
+    /**
+     * @param timeout time given to the computations, from now
+     * @param unit    unit of the timeout
+     * @return a deadline expiring after the timeout (or when cancelled)
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+    }
+
+
+    /**
+     * @return a deadline only expiring when cancelled
+     */
+    public static Deadline never() {
+        return new Deadline(0, false);
+    }
+
+
+    /**
+     * Makes the deadline expire now, for every computation using it.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return whether the deadline was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+
+    /**
+     * @return whether the deadline was cancelled or its time has passed
+     */
+    public boolean isExpired() {
+        return cancelled || (timed && System.nanoTime() - expiration >= 0);
+    }
+
+
+    /**
+     * @return nanoseconds left before the deadline, 0 once expired, Long.MAX_VALUE if it is not timed
+     */
+    public long getRemainingNanos() {
+        if (cancelled) {
+            return 0;
+        }
+        return timed ? Math.max(0, expiration - System.nanoTime()) : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,16 @@
+package ted.core.distances;
+
+
+/**
+ * Thrown from inside the kernels when the deadline of the comparison expired, to unwind them at once.
+ * It never leaves the engine: getDistance with a deadline turns it into bounds.
+ */
+final class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    DeadlineExceededException() {
+        // thrown on purpose and always caught, no need for a stack trace
+        super("deadline exceeded", null, false, false);
+    }
+}
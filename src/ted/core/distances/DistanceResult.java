@@ -0,0 +1,58 @@
+package ted.core.distances;
+
+
+/**
+ * Outcome of a distance computation under a deadline: the exact distance when it completed in
+ * time, otherwise bounds of the distance, cheap to compute from the costs of the pair.
+ */
+public final class DistanceResult {
+
+    private final boolean complete;
+    private final double lowerBound;
+    private final double upperBound;
+
+
+    DistanceResult(boolean complete, double lowerBound, double upperBound) {
+        this.complete = complete;
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+    }
+
+
+    /**
+     * @return true if the distance was computed, false if the deadline expired first
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+
+    /**
+     * @return the tree edit distance, NaN if the computation did not complete
+     */
+    public double getDistance() {
+        return complete ? lowerBound : Double.NaN;
+    }
+
+
+    /**
+     * @return a distance the tree edit distance is at least, the distance itself when complete
+     */
+    public double getLowerBound() {
+        return lowerBound;
+    }
+
+
+    /**
+     * @return a distance the tree edit distance is at most, the distance itself when complete
+     */
+    public double getUpperBound() {
+        return upperBound;
+    }
+
+
+    @Override
+    public String toString() {
+        return complete ? String.valueOf(lowerBound) : "timed out, between " + lowerBound + " and " + upperBound;
+    }
+}
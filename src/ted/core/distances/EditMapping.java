@@ -0,0 +1,175 @@
+package ted.core.distances;
+
+
+import ted.core.repr.CompactTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+
+/**
+ * Optimal mapping between the nodes of two trees, and the edit script it stands for: the nodes of
+ * the first tree mapped to no node are deleted, the nodes of the second tree mapped to no node are
+ * inserted, and the mapped nodes are relabeled when their labels differ (or when it costs something).
+ * <p>
+ * The mapping is recovered from the subtree distances by backtracking through the forest distances
+ * of one pair of subtrees at a time, starting from the roots. Only the pairs of subtrees the backtrace
+ * goes through are computed again, one after the other in the same buffer, and those subtrees are
+ * disjoint, so this costs at most one more distance computation, and no more memory.
+ */
+public final class EditMapping {
+
+    private final double distance;
+    private final int[] matches1;
+    private final int[] matches2;
+    private final List<EditOperation> editScript;
+
+
+    private EditMapping(double distance, int[] matches1, int[] matches2, List<EditOperation> editScript) {
+        this.distance = distance;
+        this.matches1 = matches1;
+        this.matches2 = matches2;
+        this.editScript = editScript;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return tree edit distance between the two trees, the total cost of the edit script
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+
+    /**
+     * @param node1 post-order index of a node of the first tree
+     * @return post-order index of the node of the second tree it is mapped to, -1 if it is deleted
+     */
+    public int getMatch1(int node1) {
+        return matches1[node1];
+    }
+
+
+    /**
+     * @param node2 post-order index of a node of the second tree
+     * @return post-order index of the node of the first tree it is mapped to, -1 if it is inserted
+     */
+    public int getMatch2(int node2) {
+        return matches2[node2];
+    }
+
+
+    /**
+     * getter
+     *
+     * @return deletions and relabelings in post-order of the first tree, then insertions in post-order
+     * of the second tree (read-only)
+     */
+    public List<EditOperation> getEditScript() {
+        return editScript;
+    }
+
+
+    @Override
+    public String toString() {
+        return distance + " " + editScript;
+    }
+
+
+    /**
+     * Backtracks from the subtree distances to an optimal mapping.
+     *
+     * @param treeDistances subtree distances of the two trees (row-major, tree2.size() columns), from the
+     *                      costs prepared in the workspace
+     * @param workspace     workspace holding the costs of the two trees, its forest distances are overwritten
+     */
+    static EditMapping backtrace(CompactTree<?> tree1, CompactTree<?> tree2, double[] treeDistances,
+                                 TedWorkspace workspace) {
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = tree2.size();
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        int[] labelIds1 = tree1.getLabelIds();
+        int[] labelIds2 = tree2.getLabelIds();
+        int alphabetSize2 = tree2.getAlphabetSize();
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+
+        int[] matches1 = new int[sizeTree1];
+        int[] matches2 = new int[sizeTree2];
+        Arrays.fill(matches1, -1);
+        Arrays.fill(matches2, -1);
+
+        // pairs of subtrees left to align, each one rooted at distinct nodes of the first tree
+        int[] pending1 = new int[Math.min(sizeTree1, sizeTree2)];
+        int[] pending2 = new int[pending1.length];
+        pending1[0] = sizeTree1 - 1;
+        pending2[0] = sizeTree2 - 1;
+        int pending = 1;
+        while (pending != 0) {
+            pending -= 1;
+            int index1 = pending1[pending];
+            int index2 = pending2[pending];
+            TreeEditDistance.treeEditDistanceHelper(lmds1, lmds2, labelIds1, labelIds2, index1, index2,
+                    treeDistances, sizeTree2, alphabetSize2, workspace, workspace);
+            workspace.countSubproblems(1, (long) (index1 - lmds1[index1] + 2) * (index2 - lmds2[index2] + 2));
+            double[] forestDistance = workspace.forestDistance(0);
+            int n = index2 - lmds2[index2] + 2;
+            int iOffset = lmds1[index1] - 1;
+            int jOffset = lmds2[index2] - 1;
+
+            // from the whole subtrees back to the empty forests, through the choices that gave each value
+            int x = index1 - iOffset;
+            int y = index2 - jOffset;
+            while (x != 0 || y != 0) {
+                int node1 = x + iOffset;
+                int node2 = y + jOffset;
+                double value = forestDistance[x * n + y];
+                if (y == 0 || x != 0 && value == forestDistance[(x - 1) * n + y] + deletionCosts[node1]) {
+                    x -= 1;
+                } else if (x == 0 || value == forestDistance[x * n + y - 1] + insertionCosts[node2]) {
+                    y -= 1;
+                } else if (lmds1[node1] == lmds1[index1] && lmds2[node2] == lmds2[index2]) {
+                    // both prefixes are whole trees, their roots are mapped
+                    matches1[node1] = node2;
+                    matches2[node2] = node1;
+                    x -= 1;
+                    y -= 1;
+                } else {
+                    // the subtrees of node1 and node2 are aligned later, the forests before them now
+                    pending1[pending] = node1;
+                    pending2[pending] = node2;
+                    pending += 1;
+                    x = lmds1[node1] - 1 - iOffset;
+                    y = lmds2[node2] - 1 - jOffset;
+                }
+            }
+        }
+
+        List<EditOperation> editScript = new ArrayList<>();
+        for (int x = 0; x != sizeTree1; ++x) {
+            int y = matches1[x];
+            if (y == -1) {
+                editScript.add(new EditOperation(EditOperation.Type.DELETE, x, -1, deletionCosts[x]));
+            } else {
+                double cost = substitutionCosts[labelIds1[x] * alphabetSize2 + labelIds2[y]];
+                if (cost != 0 || !Objects.equals(tree1.getLabel(x), tree2.getLabel(y))) {
+                    editScript.add(new EditOperation(EditOperation.Type.RENAME, x, y, cost));
+                }
+            }
+        }
+        for (int y = 0; y != sizeTree2; ++y) {
+            if (matches2[y] == -1) {
+                editScript.add(new EditOperation(EditOperation.Type.INSERT, -1, y, insertionCosts[y]));
+            }
+        }
+        return new EditMapping(treeDistances[sizeTree1 * sizeTree2 - 1], matches1, matches2,
+                Collections.unmodifiableList(editScript));
+    }
+}
@@ -0,0 +1,71 @@
+package ted.core.distances;
+
+
+/**
+ * One operation of an edit script, on post-order indices: the node of the first tree for a deletion,
+ * the node of the second tree for an insertion, both for a relabeling.
+ */
+public final class EditOperation {
+
+    /**
+     * Kind of edit operation.
+     */
+    public enum Type {
+        DELETE, INSERT, RENAME
+    }
+
+    private final Type type;
+    private final int node1;
+    private final int node2;
+    private final double cost;
+
+
+    EditOperation(Type type, int node1, int node2, double cost) {
+        this.type = type;
+        this.node1 = node1;
+        this.node2 = node2;
+        this.cost = cost;
+    }
+
+
+    public Type getType() {
+        return type;
+    }
+
+
+    /**
+     * @return node of the first tree (deleted or relabeled), -1 for an insertion
+     */
+    public int getNode1() {
+        return node1;
+    }
+
+
+    /**
+     * @return node of the second tree (inserted, or giving its label), -1 for a deletion
+     */
+    public int getNode2() {
+        return node2;
+    }
+
+
+    /**
+     * @return cost of the operation, according to the cost functions of the engine
+     */
+    public double getCost() {
+        return cost;
+    }
+
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case DELETE:
+                return "delete " + node1;
+            case INSERT:
+                return "insert " + node2;
+            default:
+                return "rename " + node1 + " -> " + node2;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package ted.core.distances;
+
+
+import ted.core.repr.CompactTree;
+import ted.core.repr.OrderedLabeledTree;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Tree edit distance between a fixed reference and a document receiving small edits, kept up to date
+ * without recomputing everything.
+ * <p>
+ * The Zhang-Shasha table holds the distance between every subtree of the reference and every subtree
+ * of the document. An edit only changes the subtrees of the document containing it: the subtrees of
+ * the ancestors of the edited node, and the inserted ones. The distances to all the other subtrees are
+ * moved to their new post-order indices, and only the keyroot pairs whose leftmost path (in the
+ * document) holds a changed subtree run again, in the usual order. The dynamic program of an edit thus
+ * grows with the subtrees of the keyroots above it, rather than with the whole document. Like getDistance,
+ * the session works on integers as long as all the costs are (see TreeEditDistance.setIntegerKernel).
+ * <p>
+ * Nodes are designated by their post-order index in the current document (getDocument), which changes
+ * with every edit. Always runs the Zhang-Shasha kernel, with the costs of the given engine.
+ * A session is not thread safe.
+ *
+ * @param <T> type of the labels
+ */
+public final class IncrementalSession<T> {
+
+    private final TreeEditDistance<T> engine;
+    private final PreparedQuery<T> reference;
+    private final TedWorkspace workspace = new TedWorkspace();
+    private CompactTree<T> document;
+    // distances between the subtrees (row-major, document.size() columns), and the buffer for the next ones:
+    // int arrays as long as all the costs are integers, double arrays otherwise
+    private boolean integers;
+    private Object treeDistances;
+    private Object nextTreeDistances;
+    private long lastForestCells = 0;
+
+
+    /**
+     * Starts a session, computing the distance between the reference and the document once.
+     *
+     * @param engine    tree edit distance giving the costs
+     * @param reference fixed tree, the first tree of the distance
+     * @param document  edited tree, the second tree of the distance
+     */
+    public IncrementalSession(TreeEditDistance<T> engine, OrderedLabeledTree<T> reference, OrderedLabeledTree<T> document) {
+        this(engine, reference.toCompactTree(), document.toCompactTree());
+    }
+
+
+    /**
+     * Starts a session, computing the distance between the reference and the document once.
+     *
+     * @param engine    tree edit distance giving the costs
+     * @param reference fixed tree, the first tree of the distance
+     * @param document  edited tree, the second tree of the distance
+     */
+    public IncrementalSession(TreeEditDistance<T> engine, CompactTree<T> reference, CompactTree<T> document) {
+        this.engine = engine;
+        this.reference = new PreparedQuery<>(engine, reference);
+        boolean[] changed = new boolean[document.size()];
+        Arrays.fill(changed, true);
+        update(document, null, changed);
+    }
+
+
+    /**
+     * getter
+     *
+     * @return the document, as edited so far
+     */
+    public CompactTree<T> getDocument() {
+        return document;
+    }
+
+
+    /**
+     * @return tree edit distance between the reference and the current document
+     */
+    public double getDistance() {
+        int last = reference.getQuery().size() * document.size() - 1;
+        return integers ? ((int[]) treeDistances)[last] : ((double[]) treeDistances)[last];
+    }
+
+
+    /**
+     * getter
+     *
+     * @return number of forest distances computed by the last edit (or by the start of the session)
+     */
+    public long getLastForestCells() {
+        return lastForestCells;
+    }
+
+
+    /**
+     * Changes the label of a node.
+     *
+     * @param node  post-order index of the node
+     * @param label new label
+     * @return the new distance
+     */
+    public double relabel(int node, T label) {
+        checkNode(node);
+        int size = document.size();
+        List<T> labels = new ArrayList<>(document.getPostOrderLabels());
+        labels.set(node, label);
+        int[] oldToNew = new int[size];
+        for (int i = 0; i != size; ++i) {
+            oldToNew[i] = i;
+        }
+        int[] parents = document.getParents().clone();
+        return edit(parents, labels, oldToNew, node, node, node + 1);
+    }
+
+
+    /**
+     * Deletes a node, its children taking its place among the children of its parent.
+     *
+     * @param node post-order index of the node, not the root
+     * @return the new distance
+     */
+    public double deleteNode(int node) {
+        checkNode(node);
+        checkNotRoot(node);
+        return deleteRange(node, node);
+    }
+
+
+    /**
+     * Deletes a node and all its descendants.
+     *
+     * @param node post-order index of the root of the subtree, not the root of the document
+     * @return the new distance
+     */
+    public double deleteSubtree(int node) {
+        checkNode(node);
+        checkNotRoot(node);
+        return deleteRange(document.getLeftmostDescendants()[node], node);
+    }
+
+
+    /**
+     * Inserts a node, which adopts some consecutive children of its parent.
+     *
+     * @param parent     post-order index of the parent of the new node
+     * @param position   number of children of the parent before the new node
+     * @param childCount number of children of the parent, from the position, becoming children of the new node
+     * @param label      label of the new node
+     * @return the new distance
+     */
+    public double insertNode(int parent, int position, int childCount, T label) {
+        checkNode(parent);
+        int[] children = children(parent);
+        if (position < 0 || childCount < 0 || position + childCount > children.length) {
+            throw new IllegalArgumentException("The parent has " + children.length + " children");
+        }
+        // the new node comes right after the subtrees it adopts
+        int[] lmds = document.getLeftmostDescendants();
+        int inserted;
+        if (childCount != 0) {
+            inserted = children[position + childCount - 1] + 1;
+        } else {
+            inserted = position < children.length ? lmds[children[position]] : parent;
+        }
+
+        int size = document.size();
+        int[] oldParents = document.getParents();
+        int[] oldToNew = shift(size, inserted, inserted, 1);
+        int[] parents = new int[size + 1];
+        List<T> labels = new ArrayList<>(size + 1);
+        labels.addAll(document.getPostOrderLabels().subList(0, inserted));
+        labels.add(label);
+        labels.addAll(document.getPostOrderLabels().subList(inserted, size));
+        for (int i = 0; i != size; ++i) {
+            parents[oldToNew[i]] = oldParents[i] == -1 ? -1 : oldToNew[oldParents[i]];
+        }
+        for (int c = position; c != position + childCount; ++c) {
+            parents[oldToNew[children[c]]] = inserted;
+        }
+        parents[inserted] = oldToNew[parent];
+        return edit(parents, labels, oldToNew, inserted, inserted, inserted + 1);
+    }
+
+
+    /**
+     * Inserts a whole subtree as a child of a node.
+     *
+     * @param parent   post-order index of the parent of the new subtree
+     * @param position number of children of the parent before the new subtree
+     * @param subtree  the subtree inserted
+     * @return the new distance
+     */
+    public double insertSubtree(int parent, int position, CompactTree<T> subtree) {
+        checkNode(parent);
+        int[] children = children(parent);
+        if (position < 0 || position > children.length) {
+            throw new IllegalArgumentException("The parent has " + children.length + " children");
+        }
+        // the new subtree comes right before the subtree of the child at its position
+        int start = position < children.length ? document.getLeftmostDescendants()[children[position]] : parent;
+
+        int size = document.size();
+        int inserted = subtree.size();
+        int[] oldParents = document.getParents();
+        int[] subtreeParents = subtree.getParents();
+        int[] oldToNew = shift(size, start, start, inserted);
+        int[] parents = new int[size + inserted];
+        List<T> labels = new ArrayList<>(size + inserted);
+        labels.addAll(document.getPostOrderLabels().subList(0, start));
+        labels.addAll(subtree.getPostOrderLabels());
+        labels.addAll(document.getPostOrderLabels().subList(start, size));
+        for (int i = 0; i != size; ++i) {
+            parents[oldToNew[i]] = oldParents[i] == -1 ? -1 : oldToNew[oldParents[i]];
+        }
+        for (int j = 0; j != inserted; ++j) {
+            parents[start + j] = subtreeParents[j] == -1 ? oldToNew[parent] : start + subtreeParents[j];
+        }
+        return edit(parents, labels, oldToNew, oldToNew[parent], start, start + inserted);
+    }
+
+
+    /**
+     * Removes the nodes from first to last (post-order indices), their children left in the
+     * document being given to the parent of the last one.
+     */
+    private double deleteRange(int first, int last) {
+        int size = document.size();
+        int removed = last - first + 1;
+        int[] oldParents = document.getParents();
+        int[] oldToNew = shift(size, first, last + 1, -removed);
+        int[] parents = new int[size - removed];
+        List<T> labels = new ArrayList<>(size - removed);
+        labels.addAll(document.getPostOrderLabels().subList(0, first));
+        labels.addAll(document.getPostOrderLabels().subList(last + 1, size));
+        int parent = oldParents[last];
+        for (int i = 0; i != size; ++i) {
+            if (oldToNew[i] != -1) {
+                int oldParent = oldParents[i] == last ? parent : oldParents[i];
+                parents[oldToNew[i]] = oldParent == -1 ? -1 : oldToNew[oldParent];
+            }
+        }
+        return edit(parents, labels, oldToNew, oldToNew[parent], 0, 0);
+    }
+
+
+    /**
+     * Maps the old post-order indices to the new ones: unchanged before from, removed up to to
+     * (excluded), shifted by the given amount after.
+     */
+    private static int[] shift(int size, int from, int to, int shift) {
+        int[] oldToNew = new int[size];
+        for (int i = 0; i != size; ++i) {
+            oldToNew[i] = i < from ? i : (i < to ? -1 : i + shift);
+        }
+        return oldToNew;
+    }
+
+
+    /**
+     * @return the children of a node of the document, from left to right
+     */
+    private int[] children(int node) {
+        int[] firstChildren = document.getFirstChildren();
+        int[] nextSiblings = document.getNextSiblings();
+        int count = 0;
+        for (int child = firstChildren[node]; child != -1; child = nextSiblings[child]) {
+            count += 1;
+        }
+        int[] children = new int[count];
+        count = 0;
+        for (int child = firstChildren[node]; child != -1; child = nextSiblings[child]) {
+            children[count] = child;
+            count += 1;
+        }
+        return children;
+    }
+
+
+    private void checkNode(int node) {
+        if (node < 0 || node >= document.size()) {
+            throw new IllegalArgumentException("No node " + node + " in a document of " + document.size() + " nodes");
+        }
+    }
+
+
+    private void checkNotRoot(int node) {
+        if (node == document.getRoot()) {
+            throw new IllegalArgumentException("The root of the document cannot be deleted");
+        }
+    }
+
+
+    /**
+     * Replaces the document by its edited version.
+     *
+     * @param oldToNew   new post-order index of each node of the old document, -1 when it was deleted
+     * @param lowest     new post-order index of the lowest node whose subtree changed, its ancestors changed too
+     * @param insertedTo the nodes from insertedFrom to insertedTo (excluded) are new
+     */
+    private double edit(int[] parents, List<T> labels, int[] oldToNew, int lowest, int insertedFrom, int insertedTo) {
+        CompactTree<T> edited = CompactTree.fromParents(parents, labels);
+        boolean[] changed = new boolean[edited.size()];
+        for (int y = insertedFrom; y != insertedTo; ++y) {
+            changed[y] = true;
+        }
+        for (int y = lowest; y != -1; y = parents[y]) {
+            changed[y] = true;
+        }
+        update(edited, oldToNew, changed);
+        return getDistance();
+    }
+
+
+    /**
+     * Moves the distances to the subtrees that did not change, then runs the keyroot pairs of the
+     * changed subtrees.
+     *
+     * @param oldToNew null to compute everything
+     * @param changed  nodes of the new document whose subtree changed
+     */
+    private void update(CompactTree<T> edited, int[] oldToNew, boolean[] changed) {
+        CompactTree<T> tree1 = reference.getQuery();
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = edited.size();
+        reference.prepareCosts(edited, workspace);
+        try {
+            long total = engine.isIntegerKernel() ? IntegerKernel.prepareCosts(tree1, edited, workspace) : -1;
+            if (oldToNew == null) {
+                integers = total != -1;
+                treeDistances = integers ? new int[sizeTree1 * sizeTree2] : new double[sizeTree1 * sizeTree2];
+                nextTreeDistances = integers ? new int[0] : new double[0];
+            } else {
+                if (integers && total == -1) {
+                    toDoubles(sizeTree1 * document.size());
+                }
+                // a relabel keeps every index, the table is updated in place
+                if (sizeTree2 != document.size()) {
+                    moveDistances(sizeTree1, document.size(), sizeTree2, oldToNew);
+                }
+            }
+
+            // the keyroot of the leftmost path each node is on, children come before their parent
+            int[] parents = edited.getParents();
+            int[] firstChildren = edited.getFirstChildren();
+            int[] pathKeyRoots = workspace.indices(sizeTree2);
+            boolean[] runs = new boolean[sizeTree2];
+            for (int y = sizeTree2 - 1; y != -1; --y) {
+                boolean keyRoot = parents[y] == -1 || firstChildren[parents[y]] != y;
+                pathKeyRoots[y] = keyRoot ? y : pathKeyRoots[parents[y]];
+                runs[pathKeyRoots[y]] |= changed[y];
+            }
+
+            int[] lmds1 = tree1.getLeftmostDescendants();
+            int[] lmds2 = edited.getLeftmostDescendants();
+            int[] labelIds1 = tree1.getLabelIds();
+            int[] labelIds2 = edited.getLabelIds();
+            int alphabetSize2 = edited.getAlphabetSize();
+            int[] forestDistance = integers ? workspace.intForestDistance((sizeTree1 + 1) * (sizeTree2 + 1)) : null;
+            int[] costs = workspace.integerCosts(0);
+            long cells = 0;
+            for (int keyRoot2 : edited.getKeyRoots()) {
+                if (!runs[keyRoot2]) {
+                    continue;
+                }
+                for (int keyRoot1 : tree1.getKeyRoots()) {
+                    if (integers) {
+                        IntegerKernel.intHelper(lmds1, lmds2, labelIds1, labelIds2, keyRoot1, keyRoot2,
+                                (int[]) treeDistances, forestDistance, sizeTree1, sizeTree2, alphabetSize2, costs);
+                    } else {
+                        TreeEditDistance.treeEditDistanceHelper(lmds1, lmds2, labelIds1, labelIds2, keyRoot1, keyRoot2,
+                                (double[]) treeDistances, sizeTree2, alphabetSize2, workspace, workspace);
+                    }
+                    cells += (long) (keyRoot1 - lmds1[keyRoot1] + 2) * (keyRoot2 - lmds2[keyRoot2] + 2);
+                }
+            }
+            lastForestCells = cells;
+            document = edited;
+        } finally {
+            workspace.setPreparedCosts(null, null);
+        }
+    }
+
+
+    /**
+     * A cost is no longer an integer: the distances so far are converted to doubles, exactly.
+     */
+    private void toDoubles(int size) {
+        int[] distances = (int[]) treeDistances;
+        double[] converted = new double[size];
+        for (int i = 0; i != size; ++i) {
+            converted[i] = distances[i];
+        }
+        integers = false;
+        treeDistances = converted;
+        nextTreeDistances = new double[0];
+    }
+
+
+    /**
+     * Copies the distances to the subtrees still in the document to their new columns, by runs of
+     * consecutive columns.
+     */
+    private void moveDistances(int sizeTree1, int oldSize2, int sizeTree2, int[] oldToNew) {
+        if (Array.getLength(nextTreeDistances) < sizeTree1 * sizeTree2) {
+            nextTreeDistances = integers ? new int[sizeTree1 * sizeTree2] : new double[sizeTree1 * sizeTree2];
+        }
+        Object moved = nextTreeDistances;
+        for (int y = 0; y != oldSize2; ) {
+            if (oldToNew[y] == -1) {
+                y += 1;
+                continue;
+            }
+            int from = y;
+            while (y != oldSize2 && oldToNew[y] == oldToNew[from] + (y - from)) {
+                y += 1;
+            }
+            for (int x = 0; x != sizeTree1; ++x) {
+                System.arraycopy(treeDistances, x * oldSize2 + from, moved, x * sizeTree2 + oldToNew[from], y - from);
+            }
+        }
+        nextTreeDistances = treeDistances;
+        treeDistances = moved;
+    }
+}
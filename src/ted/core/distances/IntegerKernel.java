@@ -0,0 +1,215 @@
+package ted.core.distances;
+
+
+import ted.core.repr.CompactTree;
+
+
+/**
+ * Zhang-Shasha kernel on integer tables, for costs that are all small integers (unit costs, or
+ * substitution costs of 0 and 2, ...), which is the case of most uses of the library.
+ * <p>
+ * No distance can exceed the cost of deleting the whole first tree and inserting the whole second
+ * one, so when that total fits in a short, the tables are short arrays, otherwise int arrays: a
+ * quarter or half of the memory (and memory bandwidth) of the double tables. Integer sums are exact,
+ * and so are double sums of integers this small, so the distances are exactly the same.
+ */
+final class IntegerKernel {
+
+    private IntegerKernel() {
+    }
+
+
+    /**
+     * Converts the costs prepared in the workspace to integers, when they all are.
+     * Layout: deletions of the nodes of the first tree, insertions of the nodes of the second tree,
+     * then the substitutions (one row per label of the first tree).
+     * Substitutions costing more than the total are never part of a distance, they are capped to
+     * the total plus one, so that no sum overflows.
+     *
+     * @return cost of deleting the first tree and inserting the second one, or -1 if a cost is not an integer
+     * or the total is too large for int tables
+     */
+    static long prepareCosts(CompactTree<?> tree1, CompactTree<?> tree2, TedWorkspace workspace) {
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = tree2.size();
+        int substitutions = tree1.getAlphabetSize() * tree2.getAlphabetSize();
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+
+        double total = 0;
+        for (int x = 0; x != sizeTree1; ++x) {
+            if (!isSmallInteger(deletionCosts[x])) {
+                return -1;
+            }
+            total += deletionCosts[x];
+        }
+        for (int y = 0; y != sizeTree2; ++y) {
+            if (!isSmallInteger(insertionCosts[y])) {
+                return -1;
+            }
+            total += insertionCosts[y];
+        }
+        // any cell adds at most two values of at most total + 1
+        if (total > (Integer.MAX_VALUE - 2) / 2) {
+            return -1;
+        }
+        for (int i = 0; i != substitutions; ++i) {
+            if (!(substitutionCosts[i] >= 0 && substitutionCosts[i] == Math.floor(substitutionCosts[i]))) {
+                return -1;
+            }
+        }
+
+        int[] costs = workspace.integerCosts(sizeTree1 + sizeTree2 + substitutions);
+        for (int x = 0; x != sizeTree1; ++x) {
+            costs[x] = (int) deletionCosts[x];
+        }
+        for (int y = 0; y != sizeTree2; ++y) {
+            costs[sizeTree1 + y] = (int) insertionCosts[y];
+        }
+        for (int i = 0; i != substitutions; ++i) {
+            costs[sizeTree1 + sizeTree2 + i] = (int) Math.min(substitutionCosts[i], total + 1);
+        }
+        return (long) total;
+    }
+
+
+    private static boolean isSmallInteger(double cost) {
+        return cost >= 0 && cost <= Integer.MAX_VALUE && cost == Math.floor(cost);
+    }
+
+
+    /**
+     * Tree edit distance from the integer costs, on short tables.
+     */
+    static int shortDistance(CompactTree<?> tree1, CompactTree<?> tree2, TedWorkspace workspace) {
+        int sizeTree2 = tree2.size();
+        short[] treeDistances = workspace.shortTreeDistances(tree1.size() * sizeTree2);
+        short[] forestDistance = workspace.shortForestDistance((tree1.size() + 1) * (sizeTree2 + 1));
+        int[] costs = workspace.integerCosts(0);
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        for (int keyRoot1 : tree1.getKeyRoots()) {
+            for (int keyRoot2 : tree2.getKeyRoots()) {
+                shortHelper(lmds1, lmds2, tree1.getLabelIds(), tree2.getLabelIds(), keyRoot1, keyRoot2,
+                        treeDistances, forestDistance, tree1.size(), sizeTree2, tree2.getAlphabetSize(), costs);
+                workspace.countSubproblems(1, (long) (keyRoot1 - lmds1[keyRoot1] + 2) * (keyRoot2 - lmds2[keyRoot2] + 2));
+            }
+        }
+        return treeDistances[tree1.size() * sizeTree2 - 1];
+    }
+
+
+    /**
+     * Tree edit distance from the integer costs, on int tables.
+     */
+    static int intDistance(CompactTree<?> tree1, CompactTree<?> tree2, TedWorkspace workspace) {
+        int sizeTree2 = tree2.size();
+        int[] treeDistances = workspace.intTreeDistances(tree1.size() * sizeTree2);
+        int[] forestDistance = workspace.intForestDistance((tree1.size() + 1) * (sizeTree2 + 1));
+        int[] costs = workspace.integerCosts(0);
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        for (int keyRoot1 : tree1.getKeyRoots()) {
+            for (int keyRoot2 : tree2.getKeyRoots()) {
+                intHelper(lmds1, lmds2, tree1.getLabelIds(), tree2.getLabelIds(), keyRoot1, keyRoot2,
+                        treeDistances, forestDistance, tree1.size(), sizeTree2, tree2.getAlphabetSize(), costs);
+                workspace.countSubproblems(1, (long) (keyRoot1 - lmds1[keyRoot1] + 2) * (keyRoot2 - lmds2[keyRoot2] + 2));
+            }
+        }
+        return treeDistances[tree1.size() * sizeTree2 - 1];
+    }
+
+
+    /**
+     * Same as TreeEditDistance.treeEditDistanceHelper, on short tables. The sums are made on ints,
+     * and their minimum never exceeds the total, which fits in a short.
+     */
+    private static void shortHelper(int[] FirstLMDS, int[] SecondLMDS,
+                                    int[] labelIds1, int[] labelIds2,
+                                    int index1, int index2,
+                                    short[] dynamicProgrammingTable, short[] forestDistance,
+                                    int sizeTree1, int sizeTree2, int alphabetSize2, int[] costs) {
+        int m = index1 - FirstLMDS[index1] + 2;
+        int n = index2 - SecondLMDS[index2] + 2;
+        int iOffset = FirstLMDS[index1] - 1;
+        int jOffset = SecondLMDS[index2] - 1;
+        int insertions = sizeTree1 + jOffset;
+        int substitutions = sizeTree1 + sizeTree2;
+
+        forestDistance[0] = 0;
+        for (int x = 1; x != m; ++x) {
+            forestDistance[x * n] = (short) (forestDistance[(x - 1) * n] + costs[x + iOffset]);
+        }
+        for (int y = 1; y != n; ++y) {
+            forestDistance[y] = (short) (forestDistance[y - 1] + costs[insertions + y]);
+        }
+
+        for (int x = 1; x != m; ++x) {
+            int row = x * n;
+            int previousRow = row - n;
+            int tableRow = (x + iOffset) * sizeTree2;
+            int substitutionRow = substitutions + labelIds1[x + iOffset] * alphabetSize2;
+            boolean xOnPath = FirstLMDS[index1] == FirstLMDS[x + iOffset];
+            int del = costs[x + iOffset];
+            int p = FirstLMDS[x + iOffset] - 1 - iOffset;
+            for (int y = 1; y != n; ++y) {
+                int value = Math.min(forestDistance[previousRow + y] + del, forestDistance[row + y - 1] + costs[insertions + y]);
+                if (xOnPath && (SecondLMDS[index2] == SecondLMDS[y + jOffset])) {
+                    value = Math.min(value, forestDistance[previousRow + y - 1] + costs[substitutionRow + labelIds2[y + jOffset]]);
+                    dynamicProgrammingTable[tableRow + y + jOffset] = (short) value;
+                } else {
+                    int q = SecondLMDS[y + jOffset] - 1 - jOffset;
+                    value = Math.min(value, forestDistance[p * n + q] + dynamicProgrammingTable[tableRow + y + jOffset]);
+                }
+                forestDistance[row + y] = (short) value;
+            }
+        }
+    }
+
+
+    /**
+     * Same as TreeEditDistance.treeEditDistanceHelper, on int tables.
+     */
+    static void intHelper(int[] FirstLMDS, int[] SecondLMDS,
+                          int[] labelIds1, int[] labelIds2,
+                          int index1, int index2,
+                          int[] dynamicProgrammingTable, int[] forestDistance,
+                          int sizeTree1, int sizeTree2, int alphabetSize2, int[] costs) {
+        int m = index1 - FirstLMDS[index1] + 2;
+        int n = index2 - SecondLMDS[index2] + 2;
+        int iOffset = FirstLMDS[index1] - 1;
+        int jOffset = SecondLMDS[index2] - 1;
+        int insertions = sizeTree1 + jOffset;
+        int substitutions = sizeTree1 + sizeTree2;
+
+        forestDistance[0] = 0;
+        for (int x = 1; x != m; ++x) {
+            forestDistance[x * n] = forestDistance[(x - 1) * n] + costs[x + iOffset];
+        }
+        for (int y = 1; y != n; ++y) {
+            forestDistance[y] = forestDistance[y - 1] + costs[insertions + y];
+        }
+
+        for (int x = 1; x != m; ++x) {
+            int row = x * n;
+            int previousRow = row - n;
+            int tableRow = (x + iOffset) * sizeTree2;
+            int substitutionRow = substitutions + labelIds1[x + iOffset] * alphabetSize2;
+            boolean xOnPath = FirstLMDS[index1] == FirstLMDS[x + iOffset];
+            int del = costs[x + iOffset];
+            int p = FirstLMDS[x + iOffset] - 1 - iOffset;
+            for (int y = 1; y != n; ++y) {
+                int value = Math.min(forestDistance[previousRow + y] + del, forestDistance[row + y - 1] + costs[insertions + y]);
+                if (xOnPath && (SecondLMDS[index2] == SecondLMDS[y + jOffset])) {
+                    value = Math.min(value, forestDistance[previousRow + y - 1] + costs[substitutionRow + labelIds2[y + jOffset]]);
+                    dynamicProgrammingTable[tableRow + y + jOffset] = value;
+                } else {
+                    int q = SecondLMDS[y + jOffset] - 1 - jOffset;
+                    value = Math.min(value, forestDistance[p * n + q] + dynamicProgrammingTable[tableRow + y + jOffset]);
+                }
+                forestDistance[row + y] = value;
+            }
+        }
+    }
+}
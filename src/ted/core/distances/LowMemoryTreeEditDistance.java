@@ -0,0 +1,380 @@
+package ted.core.distances;
+
+
+import ted.core.interfaces.CostFunction;
+import ted.core.interfaces.DistanceFunction;
+import ted.core.repr.CompactTree;
+
+
+/**
+ * Tree Edit Distance on Ordered Rooted Trees, for when only the distance between the whole trees matters
+ * and the n1 x n2 tables of the Zhang-Shasha engine do not fit in memory.
+ * <p>
+ * It runs the same keyroot pairs, but stores much less:
+ * <ul>
+ * <li>The distance between a leaf and a subtree has a closed form (delete the leaf, or substitute it with
+ * the best node of the subtree, and insert the rest), which only depends on the label of the leaf. It is
+ * computed once per distinct leaf label, in each direction, and never stored per leaf. The keyroot pairs
+ * involving a leaf are skipped, and only the distances between internal nodes are kept, in an
+ * (internal nodes 1) x (internal nodes 2) table.</li>
+ * <li>A row of forest distances is only read again by the next row, and by the rows of the nodes whose
+ * leftmost descendant follows it. Rows are released once their last reader is done, so at most the height
+ * of the first tree plus three rows are alive at a time, instead of the whole (n1 + 1) x (n2 + 1) table.</li>
+ * </ul>
+ * The table between the internal nodes is still dense: the keyroot pairs read the distance of almost every
+ * pair of subtrees, and the last one (the two roots) reads all those off the leftmost paths, so none can
+ * be released before the end. It takes about a fifth of 8 x n1 x n2 bytes on bushy trees (a third to a
+ * half of their nodes are internal), and deep trees add their height in rows of n2 + 1, up to about 80% of
+ * 8 x n1 x n2 bytes for long paths. Two trees of 40000 nodes, half of them internal, need about 3.2GB; beyond
+ * about 46000 internal nodes in each tree (2^31 cells), the trees are rejected with an
+ * IllegalArgumentException.
+ * <p>
+ * Passing the shallower tree first uses less memory. The distances are the same as with the Zhang-Shasha
+ * engine, up to rounding (the costs are not always summed in the same order). The dense table API
+ * (treeEditDistance) and the threshold variants are the ones of the Zhang-Shasha engine.
+ * The memory used is reported by the workspace (getAllocatedBytes).
+ *
+ * @param <T> type of the label of the Ordered Rooted Tree.
+ */
+public class LowMemoryTreeEditDistance<T> extends TreeEditDistance<T> {
+
+
+    /**
+     * Low memory Tree Edit Distance constructor with functions that calculate cost of
+     * deletion, insertion and relabeling on labels.
+     *
+     * @param insertionCost    scoring function for insertions
+     * @param deletionCost     scoring function for deletions
+     * @param substitutionCost scoring function for label replacement (to -> from)
+     */
+    public LowMemoryTreeEditDistance(CostFunction<T> insertionCost,
+                                     CostFunction<T> deletionCost,
+                                     DistanceFunction<T, T> substitutionCost) {
+        super(insertionCost, deletionCost, substitutionCost);
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, using the given scratch memory,
+     * without the dense tables.
+     */
+    @Override
+    double distance(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        if (isFreeCopy(tree1, tree2, workspace)) {
+            return 0;
+        }
+        prepareCosts(tree1, tree2, workspace);
+        int n1 = tree1.size();
+        int n2 = tree2.size();
+        int alphabetSize1 = tree1.getAlphabetSize();
+        int alphabetSize2 = tree2.getAlphabetSize();
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        int[] labelIds1 = tree1.getLabelIds();
+        int[] labelIds2 = tree2.getLabelIds();
+        int[] parents1 = tree1.getParents();
+        int[] parents2 = tree2.getParents();
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+
+        // height of the first tree, which bounds the number of rows alive at a time
+        int height = 0;
+        int[] depths = workspace.indices(n1);
+        for (int x = n1 - 1; x != -1; --x) {
+            depths[x] = parents1[x] == -1 ? 0 : depths[parents1[x]] + 1;
+            height = Math.max(height, depths[x]);
+        }
+        int slots = height + 3;
+
+        // indices: ranks of the internal nodes (-1 for the leaves), ranks of the leaf labels (-1 for the
+        // labels of internal nodes only), then for the current keyroot pair, the remaining readers
+        // and the slot of each row, and the free slots
+        int[] indices = workspace.indices(2 * n1 + 2 * n2 + alphabetSize1 + alphabetSize2 + 2 * (n1 + 1) + slots);
+        int ranks1 = 0, ranks2 = ranks1 + n1, leafRanks1 = ranks2 + n2, leafRanks2 = leafRanks1 + alphabetSize1;
+        int readers = leafRanks2 + alphabetSize2, rowSlots = readers + n1 + 1, freeSlots = rowSlots + n1 + 1;
+        int internal1 = rankNodes(lmds1, indices, ranks1, leafRanks1, alphabetSize1, labelIds1);
+        int internal2 = rankNodes(lmds2, indices, ranks2, leafRanks2, alphabetSize2, labelIds2);
+        int leafLabels1 = 0, leafLabels2 = 0;
+        for (int a = 0; a != alphabetSize1; ++a) {
+            leafLabels1 = Math.max(leafLabels1, indices[leafRanks1 + a] + 1);
+        }
+        for (int b = 0; b != alphabetSize2; ++b) {
+            leafLabels2 = Math.max(leafLabels2, indices[leafRanks2 + b] + 1);
+        }
+
+        long storedCells = (long) internal1 * internal2;
+        long rowCells = (long) slots * (n2 + 1);
+        long leafCells = (long) leafLabels1 * n2 + (long) leafLabels2 * n1 + 2L * (n1 + n2);
+        if (Math.max(storedCells, Math.max(rowCells, leafCells)) > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("These trees are too large: " + n1 + " x " + n2 + " nodes");
+        }
+        double[] treeDistances = workspace.treeDistances((int) storedCells);
+        double[] rows = workspace.forestDistance((int) rowCells);
+        double[] leafDistances = workspace.leafDistances((int) leafCells);
+        int leafRows1 = 0, leafRows2 = leafRows1 + leafLabels1 * n2;
+        int sums = leafRows2 + leafLabels2 * n1;
+
+        // distances between each leaf label of a tree and every subtree of the other tree
+        leafDistances(lmds1, labelIds1, parents2, labelIds2, insertionCosts, deletionCosts, substitutionCosts,
+                alphabetSize2, 1, indices, leafRanks1, leafDistances, leafRows1, sums);
+        leafDistances(lmds2, labelIds2, parents1, labelIds1, deletionCosts, insertionCosts, substitutionCosts,
+                1, alphabetSize2, indices, leafRanks2, leafDistances, leafRows2, sums);
+
+        Tables tables = new Tables();
+        tables.n1 = n1;
+        tables.n2 = n2;
+        tables.lmds1 = lmds1;
+        tables.lmds2 = lmds2;
+        tables.labelIds1 = labelIds1;
+        tables.labelIds2 = labelIds2;
+        tables.alphabetSize2 = alphabetSize2;
+        tables.deletionCosts = deletionCosts;
+        tables.insertionCosts = insertionCosts;
+        tables.substitutionCosts = substitutionCosts;
+        tables.treeDistances = treeDistances;
+        tables.internal2 = internal2;
+        tables.leafDistances = leafDistances;
+        tables.leafRows1 = leafRows1;
+        tables.leafRows2 = leafRows2;
+        tables.rows = rows;
+        tables.slots = slots;
+        tables.indices = indices;
+        tables.ranks1 = ranks1;
+        tables.ranks2 = ranks2;
+        tables.leafRanks1 = leafRanks1;
+        tables.leafRanks2 = leafRanks2;
+        tables.readers = readers;
+        tables.rowSlots = rowSlots;
+        tables.freeSlots = freeSlots;
+
+        // the keyroot pairs involving a leaf are skipped, unless a whole tree is a single leaf
+        double distance = Double.NaN;
+        for (int keyRoot1 : tree1.getKeyRoots()) {
+            if (lmds1[keyRoot1] == keyRoot1 && keyRoot1 != n1 - 1) {
+                continue;
+            }
+            for (int keyRoot2 : tree2.getKeyRoots()) {
+                if (lmds2[keyRoot2] == keyRoot2 && keyRoot2 != n2 - 1) {
+                    continue;
+                }
+                distance = keyRootPair(tables, keyRoot1, keyRoot2);
+                workspace.countSubproblems(1, (long) (keyRoot1 - lmds1[keyRoot1] + 2) * (keyRoot2 - lmds2[keyRoot2] + 2));
+            }
+        }
+        return distance;
+    }
+
+
+    /**
+     * Ranks the internal nodes, and the labels of the leaves, in order of appearance.
+     *
+     * @return number of internal nodes
+     */
+    private static int rankNodes(int[] lmds, int[] indices, int ranks, int leafRanks, int alphabetSize, int[] labelIds) {
+        for (int a = 0; a != alphabetSize; ++a) {
+            indices[leafRanks + a] = -1;
+        }
+        int internal = 0, leafLabels = 0;
+        for (int x = 0; x != lmds.length; ++x) {
+            if (lmds[x] == x) {
+                indices[ranks + x] = -1;
+                if (indices[leafRanks + labelIds[x]] == -1) {
+                    indices[leafRanks + labelIds[x]] = leafLabels;
+                    leafLabels += 1;
+                }
+            } else {
+                indices[ranks + x] = internal;
+                internal += 1;
+            }
+        }
+        return internal;
+    }
+
+
+    /**
+     * Distance between a single node (a leaf of one tree) and each subtree of the other tree: delete the node
+     * and insert the subtree, or substitute it with the best node v of the subtree and insert the others,
+     * i.e. insertions of the subtree + min(deletion, min over v of (substitution - insertion of v)).
+     * Written for the other tree in the orientation of the first one: costOther are the costs of the other
+     * tree, costLeaf the costs of the leaves, and the substitution between a leaf label a and a label b
+     * of the other tree is at a * strideLeaf + b * strideOther.
+     */
+    private static void leafDistances(int[] lmdsLeaf, int[] labelIdsLeaf, int[] parentsOther, int[] labelIdsOther,
+                                      double[] costOther, double[] costLeaf, double[] substitutionCosts,
+                                      int strideLeaf, int strideOther, int[] indices, int leafRanks,
+                                      double[] leafDistances, int leafRows, int sums) {
+        int nOther = parentsOther.length;
+        // cost of the whole subtree of each node of the other tree, children before their parent
+        for (int v = 0; v != nOther; ++v) {
+            leafDistances[sums + v] = 0;
+        }
+        for (int v = 0; v != nOther; ++v) {
+            leafDistances[sums + v] += costOther[v];
+            if (parentsOther[v] != -1) {
+                leafDistances[sums + parentsOther[v]] += leafDistances[sums + v];
+            }
+        }
+
+        int done = -1;
+        for (int x = 0; x != lmdsLeaf.length; ++x) {
+            int rank = indices[leafRanks + labelIdsLeaf[x]];
+            if (lmdsLeaf[x] != x || rank <= done) {
+                continue;
+            }
+            done = rank;
+            int row = leafRows + rank * nOther;
+            int substitutionRow = labelIdsLeaf[x] * strideLeaf;
+            for (int v = 0; v != nOther; ++v) {
+                leafDistances[row + v] = Double.POSITIVE_INFINITY;
+            }
+            // best substitution in each subtree
+            for (int v = 0; v != nOther; ++v) {
+                double best = Math.min(leafDistances[row + v],
+                        substitutionCosts[substitutionRow + labelIdsOther[v] * strideOther] - costOther[v]);
+                leafDistances[row + v] = best;
+                if (parentsOther[v] != -1) {
+                    leafDistances[row + parentsOther[v]] = Math.min(leafDistances[row + parentsOther[v]], best);
+                }
+            }
+            double deletion = costLeaf[x];
+            for (int v = 0; v != nOther; ++v) {
+                leafDistances[row + v] = leafDistances[sums + v] + Math.min(deletion, leafDistances[row + v]);
+            }
+        }
+    }
+
+
+    /**
+     * Forest distances of a keyroot pair, one row at a time, each row in a slot of the pool released
+     * once its last reader is done. Stores the distances between the internal nodes of the two leftmost paths.
+     *
+     * @return distance between the subtrees of the two keyroots
+     */
+    private static double keyRootPair(Tables t, int keyRoot1, int keyRoot2) {
+        int[] lmds1 = t.lmds1, lmds2 = t.lmds2;
+        int[] indices = t.indices;
+        double[] rows = t.rows;
+        double[] insertionCosts = t.insertionCosts;
+        int m = keyRoot1 - lmds1[keyRoot1] + 2;
+        int n = keyRoot2 - lmds2[keyRoot2] + 2;
+        int iOffset = lmds1[keyRoot1] - 1;
+        int jOffset = lmds2[keyRoot2] - 1;
+
+        // readers of each row: the next row, and the rows of the nodes whose leftmost descendant follows it
+        for (int r = 0; r != m; ++r) {
+            indices[t.readers + r] = r + 1 < m ? 1 : 0;
+        }
+        for (int x = 1; x != m; ++x) {
+            indices[t.readers + lmds1[x + iOffset] - 1 - iOffset] += 1;
+        }
+        for (int s = 0; s != t.slots; ++s) {
+            indices[t.freeSlots + s] = t.slots - 1 - s;
+        }
+        int free = t.slots;
+
+        // base row: insertions only
+        free -= 1;
+        int slot = indices[t.freeSlots + free];
+        indices[t.rowSlots] = slot;
+        int base = slot * n;
+        rows[base] = 0;
+        for (int y = 1; y != n; ++y) {
+            rows[base + y] = rows[base + y - 1] + insertionCosts[y + jOffset];
+        }
+
+        int lmd2 = lmds2[keyRoot2];
+        for (int x = 1; x != m; ++x) {
+            int node1 = x + iOffset;
+            free -= 1;
+            slot = indices[t.freeSlots + free];
+            indices[t.rowSlots + x] = slot;
+            int row = slot * n;
+            int previousRow = indices[t.rowSlots + x - 1] * n;
+            int p = lmds1[node1] - 1 - iOffset;
+            int prefixRow = indices[t.rowSlots + p] * n;
+            boolean xOnPath = lmds1[keyRoot1] == lmds1[node1];
+            int rank1 = indices[t.ranks1 + node1];
+            // where the distances between the subtree of x and the subtrees of the second tree are
+            int leafRow = rank1 == -1 ? t.leafRows1 + indices[t.leafRanks1 + t.labelIds1[node1]] * t.n2 : -1;
+            int storedRow = rank1 * t.internal2;
+            int substitutionRow = t.labelIds1[node1] * t.alphabetSize2;
+            double del = t.deletionCosts[node1];
+
+            rows[row] = rows[previousRow] + del;
+            for (int y = 1; y != n; ++y) {
+                int node2 = y + jOffset;
+                double insert = insertionCosts[node2];
+                double value;
+                if (xOnPath && lmds2[node2] == lmd2) {
+                    // case 1, both nodes on their leftmost paths
+                    value = Math.min(Math.min(rows[previousRow + y] + del, rows[row + y - 1] + insert),
+                            rows[previousRow + y - 1] + t.substitutionCosts[substitutionRow + t.labelIds2[node2]]);
+                    int rank2 = indices[t.ranks2 + node2];
+                    if (rank1 != -1 && rank2 != -1) {
+                        t.treeDistances[storedRow + rank2] = value;
+                    }
+                } else {
+                    // case 2, the distance between the two subtrees is already known
+                    double subtrees;
+                    if (leafRow != -1) {
+                        subtrees = t.leafDistances[leafRow + node2];
+                    } else {
+                        int rank2 = indices[t.ranks2 + node2];
+                        subtrees = rank2 != -1 ? t.treeDistances[storedRow + rank2]
+                                : t.leafDistances[t.leafRows2 + indices[t.leafRanks2 + t.labelIds2[node2]] * t.n1 + node1];
+                    }
+                    int q = lmds2[node2] - 1 - jOffset;
+                    value = Math.min(Math.min(rows[previousRow + y] + del, rows[row + y - 1] + insert),
+                            rows[prefixRow + q] + subtrees);
+                }
+                rows[row + y] = value;
+            }
+
+            // release the rows read for the last time
+            free = release(indices, t.readers, t.rowSlots, t.freeSlots, free, x - 1);
+            free = release(indices, t.readers, t.rowSlots, t.freeSlots, free, p);
+        }
+        return rows[indices[t.rowSlots + m - 1] * n + n - 1];
+    }
+
+
+    /**
+     * One reader of the row is done, its slot is freed after the last one.
+     *
+     * @return the new number of free slots
+     */
+    private static int release(int[] indices, int readers, int rowSlots, int freeSlots, int free, int r) {
+        indices[readers + r] -= 1;
+        if (indices[readers + r] == 0) {
+            indices[freeSlots + free] = indices[rowSlots + r];
+            free += 1;
+        }
+        return free;
+    }
+
+
+    /**
+     * Everything the keyroot pairs share for one pair of trees. The indices array holds several
+     * arrays, starting at the given offsets.
+     */
+    private static final class Tables {
+        int n1, n2;
+        int[] lmds1, lmds2;
+        int[] labelIds1, labelIds2;
+        int alphabetSize2;
+        double[] deletionCosts, insertionCosts, substitutionCosts;
+        // distances between the internal nodes
+        double[] treeDistances;
+        int internal2;
+        // distances between the leaf labels of a tree and the subtrees of the other one
+        double[] leafDistances;
+        int leafRows1, leafRows2;
+        // pool of rows of forest distances
+        double[] rows;
+        int slots;
+        //
+        int[] indices;
+        int ranks1, ranks2, leafRanks1, leafRanks2, readers, rowSlots, freeSlots;
+    }
+}
@@ -0,0 +1,276 @@
+package ted.core.distances;
+
+
+import ted.core.interfaces.CostFunction;
+import ted.core.interfaces.DistanceFunction;
+import ted.core.repr.CompactTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Tree Edit Distance on Ordered Rooted Trees, using several cores for a single pair of trees.
+ * <p>
+ * A keyroot pair only reads the tree distances written by the pairs made of keyroots found in
+ * its two subtrees. Giving each keyroot a height (0 when there is no other keyroot in its
+ * subtree, one more than the highest one otherwise), a pair only depends on pairs whose sum of
+ * heights is smaller. The pairs are thus computed by wavefront: all the pairs having the same
+ * sum of heights are independent, and are split into tasks of similar work for a ForkJoinPool.
+ * Every pair runs the same code as the sequential engine, so the results are identical.
+ *
+ * @param <T> type of the label of the Ordered Rooted Tree.
+ */
+public class ParallelTreeEditDistance<T> extends TreeEditDistance<T> {
+
+    // below this many tree distances, the sequential engine is faster
+    private static final long SEQUENTIAL_THRESHOLD = 1 << 16;
+    // smallest number of forest distances worth a task of its own
+    private static final long MINIMUM_TASK_WORK = 1 << 15;
+
+    private final ForkJoinPool pool;
+
+
+    /**
+     * Parallel Tree Edit Distance constructor, using its own pool with one thread per core.
+     *
+     * @param insertionCost    scoring function for insertions
+     * @param deletionCost     scoring function for deletions
+     * @param substitutionCost scoring function for label replacement (to -> from)
+     */
+    public ParallelTreeEditDistance(CostFunction<T> insertionCost,
+                                    CostFunction<T> deletionCost,
+                                    DistanceFunction<T, T> substitutionCost) {
+        this(insertionCost, deletionCost, substitutionCost, new ForkJoinPool());
+    }
+
+
+    /**
+     * Parallel Tree Edit Distance constructor, sharing the given pool.
+     *
+     * @param insertionCost    scoring function for insertions
+     * @param deletionCost     scoring function for deletions
+     * @param substitutionCost scoring function for label replacement (to -> from)
+     * @param pool             threads computing the keyroot pairs
+     */
+    public ParallelTreeEditDistance(CostFunction<T> insertionCost,
+                                    CostFunction<T> deletionCost,
+                                    DistanceFunction<T, T> substitutionCost,
+                                    ForkJoinPool pool) {
+        super(insertionCost, deletionCost, substitutionCost);
+        this.pool = pool;
+    }
+
+
+    /**
+     * Only the pairs too small to be split run the sequential kernel.
+     */
+    @Override
+    boolean runsZhangShasha(CompactTree<T> tree1, CompactTree<T> tree2) {
+        return (long) tree1.size() * tree2.size() < SEQUENTIAL_THRESHOLD || pool.getParallelism() == 1;
+    }
+
+
+    /**
+     * Performs the tree edit distance calculation between two compact trees, one wavefront at a time.
+     *
+     * @return dynamic programming table (row-major, tree2.size() columns), indexed by post-order indices.
+     * It belongs to the workspace, so it is only valid until the next call with the same workspace.
+     */
+    @Override
+    double[] treeEditDistance(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        if (runsZhangShasha(tree1, tree2)) {
+            return super.treeEditDistance(tree1, tree2, workspace);
+        }
+        prepareCosts(tree1, tree2, workspace);
+        double[] treeDistances = workspace.treeDistances(tree1.size() * tree2.size());
+
+        int[][] heights1 = keyRootsByHeight(tree1);
+        int[][] heights2 = keyRootsByHeight(tree2);
+        long[][] work1 = cumulativeSizes(heights1, tree1.getLeftmostDescendants());
+        long[][] work2 = cumulativeSizes(heights2, tree2.getLeftmostDescendants());
+        Wavefront<T> wavefront = new Wavefront<>(this, tree1, tree2, treeDistances, workspace);
+
+        for (int level = 0; level <= heights1.length + heights2.length - 2; ++level) {
+            // all the pairs of keyroots whose heights sum to the level
+            long levelWork = 0;
+            for (int h1 = Math.max(0, level - heights2.length + 1); h1 <= Math.min(level, heights1.length - 1); ++h1) {
+                int h2 = level - h1;
+                levelWork += work1[h1][heights1[h1].length] * work2[h2][heights2[h2].length];
+            }
+            long grain = Math.max(MINIMUM_TASK_WORK, levelWork / (8L * pool.getParallelism()));
+
+            final ArrayList<Block<T>> blocks = new ArrayList<>();
+            for (int h1 = Math.max(0, level - heights2.length + 1); h1 <= Math.min(level, heights1.length - 1); ++h1) {
+                int h2 = level - h1;
+                blocks.add(new Block<>(wavefront, grain, heights1[h1], work1[h1], 0, heights1[h1].length,
+                        heights2[h2], work2[h2], 0, heights2[h2].length));
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(blocks);
+                }
+            });
+            workspace.checkDeadline();
+        }
+        // every keyroot pair ran once, on the workspaces of the workers
+        workspace.countSubproblems((long) tree1.getKeyRoots().length * tree2.getKeyRoots().length,
+                estimateForestCells(tree1, tree2));
+        return treeDistances;
+    }
+
+
+    /**
+     * Groups the keyroots by height: 0 when there is no other keyroot in the subtree,
+     * one more than the highest keyroot of the subtree otherwise.
+     *
+     * @return the keyroots of each height, sorted
+     */
+    static int[][] keyRootsByHeight(CompactTree<?> tree) {
+        int[] parents = tree.getParents();
+        int[] keyRoots = tree.getKeyRoots();
+        boolean[] isKeyRoot = new boolean[tree.size()];
+        for (int keyRoot : keyRoots) {
+            isKeyRoot[keyRoot] = true;
+        }
+
+        // highest keyroot found in each subtree, children come before their parent
+        int[] highest = new int[tree.size()];
+        int[] height = new int[tree.size()];
+        Arrays.fill(highest, -1);
+        int maxHeight = 0;
+        for (int i = 0; i != tree.size(); ++i) {
+            if (isKeyRoot[i]) {
+                height[i] = highest[i] + 1;
+                highest[i] = height[i];
+                maxHeight = Math.max(maxHeight, height[i]);
+            }
+            if (parents[i] != -1) {
+                highest[parents[i]] = Math.max(highest[parents[i]], highest[i]);
+            }
+        }
+
+        int[] counts = new int[maxHeight + 1];
+        for (int keyRoot : keyRoots) {
+            counts[height[keyRoot]] += 1;
+        }
+        int[][] byHeight = new int[maxHeight + 1][];
+        for (int h = 0; h != byHeight.length; ++h) {
+            byHeight[h] = new int[counts[h]];
+            counts[h] = 0;
+        }
+        for (int keyRoot : keyRoots) {
+            int h = height[keyRoot];
+            byHeight[h][counts[h]] = keyRoot;
+            counts[h] += 1;
+        }
+        return byHeight;
+    }
+
+
+    /**
+     * @return for each height, the cumulative sizes of the subtrees of its keyroots
+     */
+    private static long[][] cumulativeSizes(int[][] byHeight, int[] lmds) {
+        long[][] cumulative = new long[byHeight.length][];
+        for (int h = 0; h != byHeight.length; ++h) {
+            cumulative[h] = new long[byHeight[h].length + 1];
+            for (int i = 0; i != byHeight[h].length; ++i) {
+                int keyRoot = byHeight[h][i];
+                cumulative[h][i + 1] = cumulative[h][i] + keyRoot - lmds[keyRoot] + 1;
+            }
+        }
+        return cumulative;
+    }
+
+
+    /**
+     * Everything the tasks share for one pair of trees.
+     */
+    private static final class Wavefront<T> {
+        final ParallelTreeEditDistance<T> engine;
+        final int[] lmds1, lmds2;
+        final int[] labelIds1, labelIds2;
+        final int sizeTree2, alphabetSize2;
+        final double[] treeDistances;
+        final TedWorkspace costs;
+        final Deadline deadline;
+
+        Wavefront(ParallelTreeEditDistance<T> engine, CompactTree<T> tree1, CompactTree<T> tree2,
+                  double[] treeDistances, TedWorkspace costs) {
+            this.engine = engine;
+            lmds1 = tree1.getLeftmostDescendants();
+            lmds2 = tree2.getLeftmostDescendants();
+            labelIds1 = tree1.getLabelIds();
+            labelIds2 = tree2.getLabelIds();
+            sizeTree2 = tree2.size();
+            alphabetSize2 = tree2.getAlphabetSize();
+            this.treeDistances = treeDistances;
+            this.costs = costs;
+            this.deadline = costs.getDeadline();
+        }
+    }
+
+
+    /**
+     * All the pairs made of a range of keyroots of the first tree and a range of keyroots of the
+     * second tree, split in halves until their work is small enough.
+     */
+    private static final class Block<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Wavefront<T> wavefront;
+        private final long grain;
+        private final int[] keyRoots1, keyRoots2;
+        private final long[] work1, work2;
+        private final int from1, to1, from2, to2;
+
+        Block(Wavefront<T> wavefront, long grain,
+              int[] keyRoots1, long[] work1, int from1, int to1,
+              int[] keyRoots2, long[] work2, int from2, int to2) {
+            this.wavefront = wavefront;
+            this.grain = grain;
+            this.keyRoots1 = keyRoots1;
+            this.work1 = work1;
+            this.from1 = from1;
+            this.to1 = to1;
+            this.keyRoots2 = keyRoots2;
+            this.work2 = work2;
+            this.from2 = from2;
+            this.to2 = to2;
+        }
+
+        @Override
+        protected void compute() {
+            long work = (work1[to1] - work1[from1]) * (work2[to2] - work2[from2]);
+            if (work > grain && (to1 - from1 > 1 || to2 - from2 > 1)) {
+                if (to1 - from1 >= to2 - from2) {
+                    int middle = (from1 + to1) >>> 1;
+                    invokeAll(new Block<>(wavefront, grain, keyRoots1, work1, from1, middle, keyRoots2, work2, from2, to2),
+                            new Block<>(wavefront, grain, keyRoots1, work1, middle, to1, keyRoots2, work2, from2, to2));
+                } else {
+                    int middle = (from2 + to2) >>> 1;
+                    invokeAll(new Block<>(wavefront, grain, keyRoots1, work1, from1, to1, keyRoots2, work2, from2, middle),
+                            new Block<>(wavefront, grain, keyRoots1, work1, from1, to1, keyRoots2, work2, middle, to2));
+                }
+                return;
+            }
+
+            // the forest distances come from the workspace of the worker, the costs are shared
+            Wavefront<T> w = wavefront;
+            TedWorkspace scratch = w.engine.localWorkspace();
+            if (w.deadline != null && w.deadline.isExpired()) {
+                // the wavefront is thrown away once every task returns
+                return;
+            }
+            for (int i = from1; i != to1; ++i) {
+                for (int j = from2; j != to2; ++j) {
+                    treeEditDistanceHelper(w.lmds1, w.lmds2, w.labelIds1, w.labelIds2, keyRoots1[i], keyRoots2[j],
+                            w.treeDistances, w.sizeTree2, w.alphabetSize2, w.costs, scratch);
+                }
+            }
+        }
+    }
+}
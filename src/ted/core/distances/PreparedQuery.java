@@ -0,0 +1,236 @@
+package ted.core.distances;
+
+
+import ted.core.repr.CompactTree;
+import ted.core.repr.OrderedLabeledTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * One query tree, compared against many candidates with the same engine.
+ * <p>
+ * The query is preprocessed once: compact tree (post-order, leftmost descendants, keyroots, label
+ * ids) and deletion costs of its nodes. The costs of the labels of the candidates (insertion, and
+ * substitution from each label of the query) are computed the first time a label is seen, then
+ * reused for every candidate having it. Each comparison thus only spreads known costs over the
+ * nodes of the candidate, and runs the dynamic program of the engine, on the workspace of the
+ * calling thread.
+ * <p>
+ * The costs of each distinct label of the candidates are kept as long as the prepared query.
+ * A prepared query can be used by several threads at the same time.
+ *
+ * @param <T> type of the labels
+ */
+public final class PreparedQuery<T> {
+
+    private final TreeEditDistance<T> engine;
+    private final CompactTree<T> query;
+    private final double[] deletionCosts;
+    // insertion cost of a label of the candidates, then its substitution cost from each label of the query
+    // (the null label is keyed by NULL_LABEL, a ConcurrentHashMap has no null keys)
+    private final ConcurrentHashMap<Object, double[]> columns = new ConcurrentHashMap<>();
+
+    private static final Object NULL_LABEL = new Object();
+
+
+    /**
+     * Prepares a query for the given engine.
+     *
+     * @param engine tree edit distance (costs, kernel, metrics...) used for every comparison
+     * @param query  tree compared to the candidates, as the first tree
+     */
+    public PreparedQuery(TreeEditDistance<T> engine, OrderedLabeledTree<T> query) {
+        this(engine, query.toCompactTree());
+    }
+
+
+    /**
+     * Prepares a query for the given engine.
+     *
+     * @param engine tree edit distance (costs, kernel, metrics...) used for every comparison
+     * @param query  tree compared to the candidates, as the first tree
+     */
+    public PreparedQuery(TreeEditDistance<T> engine, CompactTree<T> query) {
+        this.engine = engine;
+        this.query = query;
+        double[] labelCosts = new double[query.getAlphabetSize()];
+        for (int i = 0; i != labelCosts.length; ++i) {
+            labelCosts[i] = engine.getDeletionCost(query.getAlphabetLabel(i));
+        }
+        int[] labelIds = query.getLabelIds();
+        deletionCosts = new double[query.size()];
+        for (int x = 0; x != deletionCosts.length; ++x) {
+            deletionCosts[x] = labelCosts[labelIds[x]];
+        }
+    }
+
+
+    /**
+     * getter
+     *
+     * @return the query, as a compact tree
+     */
+    public CompactTree<T> getQuery() {
+        return query;
+    }
+
+
+    /**
+     * Computes the tree edit distance from the query to a candidate.
+     *
+     * @param candidate second tree
+     * @return tree edit distance between the query and the candidate
+     */
+    public double distanceTo(OrderedLabeledTree<T> candidate) {
+        return distanceTo(candidate.toCompactTree());
+    }
+
+
+    /**
+     * Computes the tree edit distance from the query to a candidate.
+     *
+     * @param candidate second tree
+     * @return tree edit distance between the query and the candidate
+     */
+    public double distanceTo(CompactTree<T> candidate) {
+        TedWorkspace workspace = engine.localWorkspace();
+        prepareCosts(candidate, workspace);
+        try {
+            return engine.getDistance(query, candidate, workspace);
+        } finally {
+            workspace.setPreparedCosts(null, null);
+        }
+    }
+
+
+    /**
+     * Computes the tree edit distances from the query to every candidate, in parallel.
+     *
+     * @param candidates second trees
+     * @return distance to each candidate, in the iteration order of the collection
+     */
+    public double[] distancesTo(Collection<? extends OrderedLabeledTree<T>> candidates) {
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            return distancesTo(candidates, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Computes the tree edit distances from the query to every candidate, on the given pool.
+     *
+     * @param candidates second trees
+     * @param pool       threads computing the distances
+     * @return distance to each candidate, in the iteration order of the collection
+     */
+    public double[] distancesTo(Collection<? extends OrderedLabeledTree<T>> candidates, ForkJoinPool pool) {
+        List<CompactTree<T>> compactTrees = new ArrayList<>(candidates.size());
+        for (OrderedLabeledTree<T> candidate : candidates) {
+            compactTrees.add(candidate.toCompactTree());
+        }
+        double[] distances = new double[compactTrees.size()];
+        // the work of a comparison grows with the size of the candidate
+        long work = 0;
+        for (CompactTree<T> candidate : compactTrees) {
+            work += candidate.size();
+        }
+        long grain = Math.max(1, work / (8L * pool.getParallelism()));
+        pool.invoke(new Candidates<>(this, compactTrees, distances, grain, 0, compactTrees.size()));
+        return distances;
+    }
+
+
+    /**
+     * Fills the workspace with the costs of the query and the candidate, from the cached ones.
+     */
+    void prepareCosts(CompactTree<T> candidate, TedWorkspace workspace) {
+        int sizeQuery = query.size();
+        int alphabetSize1 = query.getAlphabetSize();
+        int alphabetSize2 = candidate.getAlphabetSize();
+        System.arraycopy(deletionCosts, 0, workspace.deletionCosts(sizeQuery), 0, sizeQuery);
+
+        // one column of substitutions per label of the candidate
+        double[] labelCosts = workspace.labelCosts(alphabetSize2);
+        double[] substitutionCosts = workspace.substitutionCosts(alphabetSize1 * alphabetSize2);
+        for (int j = 0; j != alphabetSize2; ++j) {
+            double[] column = column(candidate.getAlphabetLabel(j));
+            labelCosts[j] = column[0];
+            for (int i = 0; i != alphabetSize1; ++i) {
+                substitutionCosts[i * alphabetSize2 + j] = column[i + 1];
+            }
+        }
+
+        int[] labelIds = candidate.getLabelIds();
+        double[] insertionCosts = workspace.insertionCosts(candidate.size());
+        for (int y = 0; y != candidate.size(); ++y) {
+            insertionCosts[y] = labelCosts[labelIds[y]];
+        }
+        workspace.setPreparedCosts(query, candidate);
+    }
+
+
+    /**
+     * @return costs of a label of the candidates, computed on first use
+     */
+    private double[] column(T label) {
+        Object key = label == null ? NULL_LABEL : label;
+        double[] column = columns.get(key);
+        if (column == null) {
+            column = engine.columnCosts(query, label);
+            double[] known = columns.putIfAbsent(key, column);
+            column = known == null ? column : known;
+        }
+        return column;
+    }
+
+
+    /**
+     * Range of candidates, split in halves until their total size is small enough.
+     */
+    private static final class Candidates<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PreparedQuery<T> query;
+        private final List<CompactTree<T>> candidates;
+        private final double[] distances;
+        private final long grain;
+        private final int from, to;
+
+        Candidates(PreparedQuery<T> query, List<CompactTree<T>> candidates, double[] distances,
+                   long grain, int from, int to) {
+            this.query = query;
+            this.candidates = candidates;
+            this.distances = distances;
+            this.grain = grain;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                long work = 0;
+                for (int i = from; i != to && work <= grain; ++i) {
+                    work += candidates.get(i).size();
+                }
+                if (work > grain) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(new Candidates<>(query, candidates, distances, grain, from, middle),
+                            new Candidates<>(query, candidates, distances, grain, middle, to));
+                    return;
+                }
+            }
+            for (int i = from; i != to; ++i) {
+                distances[i] = query.distanceTo(candidates.get(i));
+            }
+        }
+    }
+}
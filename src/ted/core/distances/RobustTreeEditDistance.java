@@ -0,0 +1,783 @@
+package ted.core.distances;
+
+
+import ted.core.interfaces.CostFunction;
+import ted.core.interfaces.DistanceFunction;
+import ted.core.repr.CompactTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Robust Tree Edit Distance (RTED, Pawlik and Augsten) on Ordered Rooted Trees.
+ * <p>
+ * Zhang-Shasha always decomposes the trees along their leftmost paths, which is O(n^4) on some
+ * shapes (e.g. deep right-branching trees). This engine first computes, for every pair of subtrees,
+ * the cheapest decomposition path among the left, right and heavy paths of either tree, then runs
+ * the general tree edit distance algorithm along that strategy. Choosing the heavy path of the
+ * bigger tree (Demaine et al.) is one of the candidates, so the strategy is never worse than
+ * O(n^3) time, whatever the shape of the trees. Memory is O(n^2).
+ * <p>
+ * It computes the same distances as the Zhang-Shasha engine, including the whole table of subtree
+ * distances, so it can be used anywhere a TreeEditDistance is expected.
+ *
+ * @param <T> type of the label of the Ordered Rooted Tree.
+ */
+public class RobustTreeEditDistance<T> extends TreeEditDistance<T> {
+
+    // path types of the strategy, in the first tree or in the second tree
+    private static final byte LEFT_1 = 0;
+    private static final byte RIGHT_1 = 1;
+    private static final byte HEAVY_1 = 2;
+    private static final byte LEFT_2 = 3;
+    private static final byte RIGHT_2 = 4;
+    private static final byte HEAVY_2 = 5;
+
+
+    /**
+     * Robust Tree Edit Distance constructor with functions that calculate cost of
+     * deletion, insertion and relabeling on labels.
+     *
+     * @param insertionCost    scoring function for insertions
+     * @param deletionCost     scoring function for deletions
+     * @param substitutionCost scoring function for label replacement (to -> from)
+     */
+    public RobustTreeEditDistance(CostFunction<T> insertionCost,
+                                  CostFunction<T> deletionCost,
+                                  DistanceFunction<T, T> substitutionCost) {
+        super(insertionCost, deletionCost, substitutionCost);
+    }
+
+
+    /**
+     * The optimal strategy is not the Zhang-Shasha one, so the integer kernel never replaces it.
+     */
+    @Override
+    boolean runsZhangShasha(CompactTree<T> tree1, CompactTree<T> tree2) {
+        return false;
+    }
+
+
+    /**
+     * Performs the tree edit distance calculation between two compact trees, following the optimal strategy.
+     *
+     * @return dynamic programming table (row-major, tree2.size() columns), indexed by post-order indices.
+     * It belongs to the workspace, so it is only valid until the next call with the same workspace.
+     */
+    @Override
+    double[] treeEditDistance(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        prepareCosts(tree1, tree2, workspace);
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = tree2.size();
+
+        // nodes of the first tree are rows, nodes of the second tree are columns: the distance between
+        // any two nodes is at distKey[node1] + distKey[node2], whichever tree plays which role
+        TreeIndex index1 = new TreeIndex(tree1, workspace.deletionCosts(0), sizeTree2, tree2.getAlphabetSize());
+        TreeIndex index2 = new TreeIndex(tree2, workspace.insertionCosts(0), 1, 1);
+        double[] treeDistances = workspace.treeDistances(sizeTree1 * sizeTree2);
+        double[] forestDistance = workspace.forestDistance((sizeTree1 + 1) * (sizeTree2 + 1));
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+
+        byte[] strategy = computeStrategy(index1, index2);
+        HeavyPathBuffers buffers = new HeavyPathBuffers();
+
+        // the general tree edit distance, iteratively: a pair is first expanded into the pairs of
+        // subtrees hanging off its path, and once they are done, its single path function runs
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = sizeTree1 - 1;
+        stack[top++] = sizeTree2 - 1;
+        stack[top++] = 0;
+        while (top != 0) {
+            boolean expanded = stack[--top] == 1;
+            int w = stack[--top];
+            int v = stack[--top];
+            byte path = strategy[v * sizeTree2 + w];
+
+            if (!expanded) {
+                if (top + 3 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = v;
+                stack[top++] = w;
+                stack[top++] = 1;
+
+                // walk down the path, pushing the subtrees that hang off it
+                TreeIndex index = path < LEFT_2 ? index1 : index2;
+                int node = path < LEFT_2 ? v : w;
+                while (index.firstChild[node] != -1) {
+                    int next = index.pathChild(node, path % 3);
+                    for (int child = index.firstChild[node]; child != -1; child = index.nextSibling[child]) {
+                        if (child != next) {
+                            if (top + 3 > stack.length) {
+                                stack = Arrays.copyOf(stack, stack.length * 2);
+                            }
+                            stack[top++] = path < LEFT_2 ? child : v;
+                            stack[top++] = path < LEFT_2 ? w : child;
+                            stack[top++] = 0;
+                        }
+                    }
+                    node = next;
+                }
+            } else {
+                // a heavy path fills one table over the second subtree per node of the first one
+                long cells;
+                switch (path) {
+                    case LEFT_1:
+                        cells = singlePath(index1.left, index2.left, v, w, treeDistances, substitutionCosts, forestDistance);
+                        break;
+                    case RIGHT_1:
+                        cells = singlePath(index1.right, index2.right, index1.postR[v], index2.postR[w],
+                                treeDistances, substitutionCosts, forestDistance);
+                        break;
+                    case HEAVY_1:
+                        heavyPath(index1, index2, v, w, treeDistances, substitutionCosts, buffers);
+                        cells = (long) index1.size[v] * (index2.size[w] + 1) * (index2.size[w] + 1);
+                        break;
+                    case LEFT_2:
+                        cells = singlePath(index2.left, index1.left, w, v, treeDistances, substitutionCosts, forestDistance);
+                        break;
+                    case RIGHT_2:
+                        cells = singlePath(index2.right, index1.right, index2.postR[w], index1.postR[v],
+                                treeDistances, substitutionCosts, forestDistance);
+                        break;
+                    default:
+                        heavyPath(index2, index1, w, v, treeDistances, substitutionCosts, buffers);
+                        cells = (long) index2.size[w] * (index1.size[v] + 1) * (index1.size[v] + 1);
+                        break;
+                }
+                workspace.countSubproblems(1, cells);
+            }
+        }
+        return treeDistances;
+    }
+
+
+    //region Strategy
+
+    /**
+     * Computes the optimal strategy: for each pair of subtrees, the path whose decomposition
+     * costs the least, counting the subproblems of the whole recursion below it.
+     * The cost of a path is the number of cells its single path function fills, plus the cost
+     * of all the pairs made of the subtrees hanging off the path and the other subtree.
+     * Only the strategy is stored, the costs hanging off a path are accumulated into the parent
+     * of each node as soon as the node is done.
+     *
+     * @return the path type for each pair, row-major (one row per node of the first tree)
+     */
+    private static byte[] computeStrategy(TreeIndex index1, TreeIndex index2) {
+        int sizeTree1 = index1.size.length;
+        int sizeTree2 = index2.size.length;
+        byte[] strategy = new byte[sizeTree1 * sizeTree2];
+
+        // costs hanging off the left, right and heavy paths of the subtrees of the second tree
+        double[] left2 = new double[sizeTree2];
+        double[] right2 = new double[sizeTree2];
+        double[] heavy2 = new double[sizeTree2];
+
+        // same thing for the first tree, one row per node waiting for its parent to be done
+        double[][] pending = new double[3 * sizeTree1][];
+        ArrayList<double[]> pool = new ArrayList<>();
+        double[] zeros = new double[sizeTree2];
+
+        for (int v = 0; v != sizeTree1; ++v) {
+            double[] left1 = pending[3 * v] == null ? zeros : pending[3 * v];
+            double[] right1 = pending[3 * v + 1] == null ? zeros : pending[3 * v + 1];
+            double[] heavy1 = pending[3 * v + 2] == null ? zeros : pending[3 * v + 2];
+
+            int parent1 = index1.parent[v];
+            double[] parentLeft1 = null, parentRight1 = null, parentHeavy1 = null;
+            boolean first1 = false, last1 = false, heaviest1 = false;
+            if (parent1 != -1) {
+                if (pending[3 * parent1] == null) {
+                    for (int k = 0; k != 3; ++k) {
+                        pending[3 * parent1 + k] = pool.isEmpty() ? new double[sizeTree2] : pool.remove(pool.size() - 1);
+                    }
+                }
+                parentLeft1 = pending[3 * parent1];
+                parentRight1 = pending[3 * parent1 + 1];
+                parentHeavy1 = pending[3 * parent1 + 2];
+                first1 = index1.firstChild[parent1] == v;
+                last1 = index1.lastChild[parent1] == v;
+                heaviest1 = index1.heavyChild[parent1] == v;
+            }
+
+            Arrays.fill(left2, 0);
+            Arrays.fill(right2, 0);
+            Arrays.fill(heavy2, 0);
+            double size1 = index1.size[v];
+            for (int w = 0; w != sizeTree2; ++w) {
+                double size2 = index2.size[w];
+
+                byte path = LEFT_1;
+                double best = size1 * index2.leftRelevant[w] + left1[w];
+                double cost = size1 * index2.rightRelevant[w] + right1[w];
+                if (cost < best) {
+                    best = cost;
+                    path = RIGHT_1;
+                }
+                cost = (size1 + 1) * (size2 + 1) * (size2 + 1) + heavy1[w];
+                if (cost < best) {
+                    best = cost;
+                    path = HEAVY_1;
+                }
+                cost = size2 * index1.leftRelevant[v] + left2[w];
+                if (cost < best) {
+                    best = cost;
+                    path = LEFT_2;
+                }
+                cost = size2 * index1.rightRelevant[v] + right2[w];
+                if (cost < best) {
+                    best = cost;
+                    path = RIGHT_2;
+                }
+                cost = (size2 + 1) * (size1 + 1) * (size1 + 1) + heavy2[w];
+                if (cost < best) {
+                    best = cost;
+                    path = HEAVY_2;
+                }
+                strategy[v * sizeTree2 + w] = path;
+
+                // a subtree hangs off the path of its parent, unless it is the next node of that path
+                int parent2 = index2.parent[w];
+                if (parent2 != -1) {
+                    left2[parent2] += index2.firstChild[parent2] == w ? left2[w] : best;
+                    right2[parent2] += index2.lastChild[parent2] == w ? right2[w] : best;
+                    heavy2[parent2] += index2.heavyChild[parent2] == w ? heavy2[w] : best;
+                }
+                if (parent1 != -1) {
+                    parentLeft1[w] += first1 ? left1[w] : best;
+                    parentRight1[w] += last1 ? right1[w] : best;
+                    parentHeavy1[w] += heaviest1 ? heavy1[w] : best;
+                }
+            }
+
+            // the rows of v are not needed anymore
+            for (int k = 0; k != 3; ++k) {
+                if (pending[3 * v + k] != null) {
+                    Arrays.fill(pending[3 * v + k], 0);
+                    pool.add(pending[3 * v + k]);
+                    pending[3 * v + k] = null;
+                }
+            }
+        }
+        return strategy;
+    }
+
+    //endregion
+
+
+    //region Single Path Functions
+
+    /**
+     * Single path function along the leftmost path of the first subtree (Zhang-Shasha with a single
+     * keyroot on that side). Computes the distances between the subtrees rooted on the path and all
+     * the subtrees of the second subtree. Running it on the right-to-left orderings of the trees
+     * gives the single path function along the rightmost path.
+     *
+     * @param f              ordering of the tree holding the path
+     * @param g              ordering of the other tree
+     * @param v              root of the subtree holding the path, in the ordering f
+     * @param w              root of the other subtree, in the ordering g
+     * @param treeDistances  distances between subtrees, filled for the nodes on the path
+     * @param substitutions  substitution costs between the labels
+     * @param forestDistance scratch buffer for the forest distances
+     */
+    private static long singlePath(Ordering f, Ordering g, int v, int w,
+                                   double[] treeDistances, double[] substitutions, double[] forestDistance) {
+        int lmdV = f.lmd[v];
+        int m = v - lmdV + 2;
+        int iOffset = lmdV - 1;
+        long cells = 0;
+
+        for (int keyRoot = g.lmd[w]; keyRoot <= w; ++keyRoot) {
+            if (keyRoot != w && !g.keyRoot[keyRoot]) {
+                continue;
+            }
+            int lmdK = g.lmd[keyRoot];
+            int n = keyRoot - lmdK + 2;
+            int jOffset = lmdK - 1;
+            cells += (long) m * n;
+
+            // fill deletions (first tree row) and insertions (first tree column)
+            forestDistance[0] = 0;
+            for (int x = 1; x != m; ++x) {
+                forestDistance[x * n] = forestDistance[(x - 1) * n] + f.cost[x + iOffset];
+            }
+            for (int y = 1; y != n; ++y) {
+                forestDistance[y] = forestDistance[y - 1] + g.cost[y + jOffset];
+            }
+
+            for (int x = 1; x != m; ++x) {
+                int fx = x + iOffset;
+                int row = x * n;
+                int previousRow = row - n;
+                boolean xOnPath = f.lmd[fx] == lmdV;
+                double del = f.cost[fx];
+                int distKey = f.distKey[fx];
+                int renKey = f.renKey[fx];
+                int p = (f.lmd[fx] - 1 - iOffset) * n;
+                for (int y = 1; y != n; ++y) {
+                    int gy = y + jOffset;
+                    double value = Math.min(forestDistance[previousRow + y] + del,
+                            forestDistance[row + y - 1] + g.cost[gy]);
+                    // both on their paths: these are the distances the function is computing
+                    if (xOnPath && g.lmd[gy] == lmdK) {
+                        value = Math.min(value, forestDistance[previousRow + y - 1] + substitutions[renKey + g.renKey[gy]]);
+                        treeDistances[distKey + g.distKey[gy]] = value;
+                    } else {
+                        int q = g.lmd[gy] - 1 - jOffset;
+                        value = Math.min(value, forestDistance[p + q] + treeDistances[distKey + g.distKey[gy]]);
+                    }
+                    forestDistance[row + y] = value;
+                }
+            }
+        }
+        return cells;
+    }
+
+
+    /**
+     * Single path function along the heavy path of the first subtree (Demaine et al.).
+     * <p>
+     * The forests of the first subtree are the ones met while walking down the path: at each node
+     * of the path, the subtrees on its left are deleted node by node from the left, then the ones on
+     * its right from the right, until only the next node of the path is left. The forests of the second
+     * subtree are all the forests that can be obtained by removing leftmost or rightmost roots. Each of
+     * them is identified by a pair (a, b): the nodes whose left-to-right pre-order index is at least a and
+     * whose right-to-left pre-order index is at least b (both relative to the root of the subtree).
+     * Nodes removed from the left only ever change a, and from the right only b.
+     * <p>
+     * For each forest of the first subtree, a table over (a, b) is filled. Only the tables of the last
+     * node of the path and of the forests being walked are kept, so memory stays in O(m^2) for a second
+     * subtree of size m.
+     */
+    private static void heavyPath(TreeIndex f, TreeIndex g, int v, int w,
+                                  double[] treeDistances, double[] substitutions, HeavyPathBuffers buffers) {
+        int m = g.size[w];
+        int stride = m + 1;
+        buffers.prepare(m, f.size[v]);
+
+        // local views of the second subtree, by left and right pre-order
+        int aBase = g.preL[w];
+        int bBase = g.preR[w];
+        int[] leftNode = buffers.leftNode, leftSize = buffers.leftSize, leftToRight = buffers.leftToRight;
+        int[] rightNode = buffers.rightNode, rightSize = buffers.rightSize, rightToLeft = buffers.rightToLeft;
+        for (int a = 0; a != m; ++a) {
+            int node = g.preLToPost[aBase + a];
+            leftNode[a] = node;
+            leftSize[a] = g.size[node];
+            leftToRight[a] = g.preR[node] - bBase;
+        }
+        for (int b = 0; b != m; ++b) {
+            int node = g.preRToPost[bBase + b];
+            rightNode[b] = node;
+            rightSize[b] = g.size[node];
+            rightToLeft[b] = g.preL[node] - aBase;
+        }
+
+        // cost of inserting each forest of the second subtree
+        double[] insertions = buffers.insertions;
+        for (int a = m; a >= 0; --a) {
+            for (int b = m; b >= 0; --b) {
+                int cell = a * stride + b;
+                if (a == m || b == m || a >= rightToLeft[b] + rightSize[b]) {
+                    insertions[cell] = 0;
+                } else if (a < rightToLeft[b] && rightToLeft[b] < a + leftSize[a]) {
+                    insertions[cell] = insertions[cell + stride];
+                } else {
+                    insertions[cell] = insertions[cell + stride] + g.cost[leftNode[a]];
+                }
+            }
+        }
+
+        // nodes of the path, from the root down
+        int[] path = buffers.path;
+        int length = 0;
+        for (int node = v; node != -1; node = f.heavyChild[node]) {
+            path[length++] = node;
+        }
+
+        // the last node of the path is a leaf: its children forest is empty
+        double[] children = insertions;
+        double[] tree = buffers.tables[0];
+        treeState(f, g, path[length - 1], children, 0, tree, treeDistances, substitutions, buffers, m);
+
+        for (int j = length - 2; j >= 0; --j) {
+            int p = path[j];
+            int c = path[j + 1];
+            double[] below = tree;
+
+            // right phase: states are T_c plus the nodes of the right subtrees whose right pre-order
+            // index is at least i, for i in [rLow, rHigh], rHigh being T_c alone
+            int rLow = f.preR[p] + 1;
+            int rHigh = f.preR[c];
+            double[] right = below;
+            double rightDeleteAll = f.deleteAll[c];
+            if (rHigh > rLow) {
+                right = buffers.other(below, below);
+                double[] deleteAll = buffers.deleteAll;
+                deleteAll[rHigh - rLow] = f.deleteAll[c];
+                for (int i = rHigh - 1; i >= rLow; --i) {
+                    deleteAll[i - rLow] = deleteAll[i + 1 - rLow] + f.cost[f.preRToPost[i]];
+                }
+                double[] states = buffers.states;
+                for (int a = 0; a <= m; ++a) {
+                    System.arraycopy(below, a * stride, states, (rHigh - rLow) * stride, stride);
+                    for (int i = rHigh - 1; i >= rLow; --i) {
+                        int x = f.preRToPost[i];
+                        double del = f.cost[x];
+                        int distKey = f.distKey[x];
+                        int row = (i - rLow) * stride;
+                        int next = row + stride;
+                        int jump = row + f.size[x] * stride;
+                        for (int b = m; b >= 0; --b) {
+                            if (a == m || b == m || a >= rightToLeft[b] + rightSize[b]) {
+                                states[row + b] = deleteAll[i - rLow];
+                            } else if (b < leftToRight[a] && leftToRight[a] < b + rightSize[b]) {
+                                states[row + b] = states[row + b + 1];
+                            } else {
+                                int u = rightNode[b];
+                                states[row + b] = Math.min(Math.min(
+                                                states[next + b] + del,
+                                                states[row + b + 1] + g.cost[u]),
+                                        states[jump + b + rightSize[b]] + treeDistances[distKey + g.distKey[u]]);
+                            }
+                        }
+                    }
+                    System.arraycopy(states, 0, right, a * stride, stride);
+                }
+                rightDeleteAll = deleteAll[0];
+            }
+
+            // left phase: states are the right phase result plus the nodes of the left subtrees whose
+            // left pre-order index is at least i, for i in [lLow, lHigh], lHigh having no left nodes
+            int lLow = f.preL[p] + 1;
+            int lHigh = f.preL[c];
+            children = right;
+            double childrenDeleteAll = rightDeleteAll;
+            if (lHigh > lLow) {
+                children = buffers.other(right, below);
+                double[] deleteAll = buffers.deleteAll;
+                deleteAll[lHigh - lLow] = rightDeleteAll;
+                for (int i = lHigh - 1; i >= lLow; --i) {
+                    deleteAll[i - lLow] = deleteAll[i + 1 - lLow] + f.cost[f.preLToPost[i]];
+                }
+                // each column is walked on its own, so work on the transposed table, one column per row,
+                // each column of the result replacing the column it started from
+                double[] columns = buffers.transposed;
+                transpose(right, columns, stride);
+                double[] states = buffers.states;
+                for (int b = 0; b <= m; ++b) {
+                    int column = b * stride;
+                    System.arraycopy(columns, column, states, (lHigh - lLow) * stride, stride);
+                    for (int i = lHigh - 1; i >= lLow; --i) {
+                        int x = f.preLToPost[i];
+                        double del = f.cost[x];
+                        int distKey = f.distKey[x];
+                        int row = (i - lLow) * stride;
+                        int next = row + stride;
+                        int jump = row + f.size[x] * stride;
+                        for (int a = m; a >= 0; --a) {
+                            if (a == m || b == m || a >= rightToLeft[b] + rightSize[b]) {
+                                states[row + a] = deleteAll[i - lLow];
+                            } else if (a < rightToLeft[b] && rightToLeft[b] < a + leftSize[a]) {
+                                states[row + a] = states[row + a + 1];
+                            } else {
+                                int u = leftNode[a];
+                                states[row + a] = Math.min(Math.min(
+                                                states[next + a] + del,
+                                                states[row + a + 1] + g.cost[u]),
+                                        states[jump + a + leftSize[a]] + treeDistances[distKey + g.distKey[u]]);
+                            }
+                        }
+                    }
+                    System.arraycopy(states, 0, columns, column, stride);
+                }
+                transpose(columns, children, stride);
+                childrenDeleteAll = deleteAll[0];
+            }
+
+            tree = buffers.other(children, right);
+            treeState(f, g, p, children, childrenDeleteAll, tree, treeDistances, substitutions, buffers, m);
+        }
+    }
+
+
+    /**
+     * Fills the table of the forest made of the single tree rooted at p, a node of the path, given the
+     * table of the forest of its children. Along the way, the distances between the subtree of p and
+     * all the subtrees of the second subtree are stored in the tree distances.
+     */
+    private static void treeState(TreeIndex f, TreeIndex g, int p, double[] children, double childrenDeleteAll,
+                                  double[] tree, double[] treeDistances, double[] substitutions,
+                                  HeavyPathBuffers buffers, int m) {
+        int stride = m + 1;
+        int[] leftNode = buffers.leftNode, leftSize = buffers.leftSize, leftToRight = buffers.leftToRight;
+        int[] rightSize = buffers.rightSize, rightToLeft = buffers.rightToLeft;
+        double[] insertions = buffers.insertions;
+        double del = f.cost[p];
+        int distKey = f.distKey[p];
+        int renKey = f.renKey[p];
+        double deleteAll = childrenDeleteAll + del;
+
+        for (int a = m; a >= 0; --a) {
+            double subtreeDistance = 0;
+            if (a != m) {
+                // distance between the subtree of p and the subtree of u: the subtree of u is the
+                // forest (a, leftToRight[a]), and its children forest is one step further on both sides
+                int u = leftNode[a];
+                int b = leftToRight[a];
+                subtreeDistance = Math.min(Math.min(
+                                children[a * stride + b] + del,
+                                tree[(a + 1) * stride + b + 1] + g.cost[u]),
+                        children[(a + 1) * stride + b + 1] + substitutions[renKey + g.renKey[u]]);
+                treeDistances[distKey + g.distKey[u]] = subtreeDistance;
+            }
+            for (int b = m; b >= 0; --b) {
+                int cell = a * stride + b;
+                if (a == m || b == m || a >= rightToLeft[b] + rightSize[b]) {
+                    tree[cell] = deleteAll;
+                } else if (a < rightToLeft[b] && rightToLeft[b] < a + leftSize[a]) {
+                    tree[cell] = tree[cell + stride];
+                } else {
+                    int u = leftNode[a];
+                    tree[cell] = Math.min(Math.min(
+                                    children[cell] + del,
+                                    tree[cell + stride] + g.cost[u]),
+                            insertions[(a + leftSize[a]) * stride + b] + subtreeDistance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transposes a square table, tile by tile so that both sides stay in cache.
+     */
+    private static void transpose(double[] source, double[] target, int stride) {
+        final int tile = 32;
+        for (int i0 = 0; i0 < stride; i0 += tile) {
+            int i1 = Math.min(stride, i0 + tile);
+            for (int j0 = 0; j0 < stride; j0 += tile) {
+                int j1 = Math.min(stride, j0 + tile);
+                for (int i = i0; i != i1; ++i) {
+                    for (int j = j0; j != j1; ++j) {
+                        target[j * stride + i] = source[i * stride + j];
+                    }
+                }
+            }
+        }
+    }
+
+    //endregion
+
+
+    //region Data Structures
+
+    /**
+     * Scratch memory of the heavy path single path function, grown as needed and kept for the whole run.
+     */
+    private static final class HeavyPathBuffers {
+        int[] leftNode = new int[0], leftSize = new int[0], leftToRight = new int[0];
+        int[] rightNode = new int[0], rightSize = new int[0], rightToLeft = new int[0];
+        int[] path = new int[0];
+        double[] insertions = new double[0];
+        double[] transposed = new double[0];
+        double[][] tables = {new double[0], new double[0], new double[0]};
+        double[] states = new double[0];
+        double[] deleteAll = new double[0];
+
+        /**
+         * Makes sure the buffers fit a second subtree of size m and a first subtree of size n.
+         */
+        void prepare(int m, int n) {
+            int cells = (m + 1) * (m + 1);
+            if (leftNode.length < m) {
+                leftNode = new int[m];
+                leftSize = new int[m];
+                leftToRight = new int[m];
+                rightNode = new int[m];
+                rightSize = new int[m];
+                rightToLeft = new int[m];
+            }
+            if (path.length < n) {
+                path = new int[n];
+                deleteAll = new double[n + 1];
+            }
+            if (insertions.length < cells) {
+                insertions = new double[cells];
+                transposed = new double[cells];
+                for (int i = 0; i != tables.length; ++i) {
+                    tables[i] = new double[cells];
+                }
+            }
+            if (states.length < (n + 1) * (m + 1)) {
+                states = new double[(n + 1) * (m + 1)];
+            }
+        }
+
+        /**
+         * @return one of the three rotating tables, different from the two given
+         */
+        double[] other(double[] first, double[] second) {
+            for (double[] table : tables) {
+                if (table != first && table != second) {
+                    return table;
+                }
+            }
+            throw new IllegalStateException();
+        }
+    }
+
+
+    /**
+     * Per node arrays of one of the orderings (left-to-right or right-to-left post-order) of a tree,
+     * indexed by the position of the nodes in that ordering.
+     */
+    private static final class Ordering {
+        final int[] lmd;
+        final double[] cost;
+        final int[] distKey;
+        final int[] renKey;
+        final boolean[] keyRoot;
+
+        Ordering(int size) {
+            lmd = new int[size];
+            cost = new double[size];
+            distKey = new int[size];
+            renKey = new int[size];
+            keyRoot = new boolean[size];
+        }
+    }
+
+
+    /**
+     * Everything the strategy and the single path functions need to know about a tree,
+     * indexed by post-order unless stated otherwise.
+     */
+    private static final class TreeIndex {
+        final int[] size;
+        final int[] parent;
+        final int[] firstChild;
+        final int[] nextSibling;
+        final int[] lastChild;
+        final int[] heavyChild;
+        // left-to-right and right-to-left pre-order, and the reverse mappings
+        final int[] preL;
+        final int[] preLToPost;
+        final int[] preR;
+        final int[] preRToPost;
+        // right-to-left post-order
+        final int[] postR;
+        //
+        final double[] cost;
+        final double[] deleteAll;
+        final int[] distKey;
+        final int[] renKey;
+        // sum of the sizes of the subtrees rooted at the left (right) keyroots of each subtree
+        final double[] leftRelevant;
+        final double[] rightRelevant;
+        //
+        final Ordering left;
+        final Ordering right;
+
+        /**
+         * @param tree       the tree
+         * @param cost       cost of deleting (or inserting) each node
+         * @param distStride multiplier of the post-order index in the tree distances
+         * @param renStride  multiplier of the label id in the substitution costs
+         */
+        TreeIndex(CompactTree<?> tree, double[] cost, int distStride, int renStride) {
+            int n = tree.size();
+            int[] lmds = tree.getLeftmostDescendants();
+            int[] labelIds = tree.getLabelIds();
+            parent = tree.getParents();
+            firstChild = tree.getFirstChildren();
+            nextSibling = tree.getNextSiblings();
+            preLToPost = tree.getPostOrderIndices();
+
+            size = new int[n];
+            lastChild = new int[n];
+            heavyChild = new int[n];
+            this.cost = Arrays.copyOf(cost, n);
+            deleteAll = new double[n];
+            distKey = new int[n];
+            renKey = new int[n];
+            leftRelevant = new double[n];
+            rightRelevant = new double[n];
+            for (int v = 0; v != n; ++v) {
+                size[v] = v - lmds[v] + 1;
+                distKey[v] = v * distStride;
+                renKey[v] = labelIds[v] * renStride;
+                lastChild[v] = -1;
+                heavyChild[v] = -1;
+                deleteAll[v] += cost[v];
+                leftRelevant[v] += size[v];
+                rightRelevant[v] += size[v];
+                for (int child = firstChild[v]; child != -1; child = nextSibling[child]) {
+                    lastChild[v] = child;
+                    if (heavyChild[v] == -1 || size[child] > size[heavyChild[v]]) {
+                        heavyChild[v] = child;
+                    }
+                    // the first (last) child is on the left (right) path of v, so it is not a keyroot
+                    leftRelevant[v] += child == firstChild[v] ? leftRelevant[child] - size[child] : leftRelevant[child];
+                    rightRelevant[v] += rightRelevant[child];
+                }
+                if (lastChild[v] != -1) {
+                    rightRelevant[v] -= size[lastChild[v]];
+                }
+                if (parent[v] != -1) {
+                    deleteAll[parent[v]] += deleteAll[v];
+                }
+            }
+
+            preL = new int[n];
+            for (int pre = 0; pre != n; ++pre) {
+                preL[preLToPost[pre]] = pre;
+            }
+            // the last child comes right after its parent, and each sibling right after the subtree on its right
+            preR = new int[n];
+            preRToPost = new int[n];
+            postR = new int[n];
+            for (int v = n - 1; v != -1; --v) {
+                int covered = 0;
+                for (int child = firstChild[v]; child != -1; child = nextSibling[child]) {
+                    covered += size[child];
+                    preR[child] = preR[v] + size[v] - covered;
+                }
+                preRToPost[preR[v]] = v;
+                // reversing a right-to-left post-order gives the left-to-right pre-order
+                postR[v] = n - 1 - preL[v];
+            }
+
+            left = new Ordering(n);
+            right = new Ordering(n);
+            for (int v = 0; v != n; ++v) {
+                left.lmd[v] = lmds[v];
+                left.cost[v] = cost[v];
+                left.distKey[v] = distKey[v];
+                left.renKey[v] = renKey[v];
+                left.keyRoot[v] = parent[v] == -1 || firstChild[parent[v]] != v;
+
+                int r = postR[v];
+                right.lmd[r] = r - size[v] + 1;
+                right.cost[r] = cost[v];
+                right.distKey[r] = distKey[v];
+                right.renKey[r] = renKey[v];
+                right.keyRoot[r] = parent[v] == -1 || nextSibling[v] != -1;
+            }
+        }
+
+        /**
+         * @param node node having children
+         * @param type 0 for the left path, 1 for the right path, 2 for the heavy path
+         * @return the child of the node that is on the path
+         */
+        int pathChild(int node, int type) {
+            return type == 0 ? firstChild[node] : type == 1 ? lastChild[node] : heavyChild[node];
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,199 @@
+package ted.core.distances;
+
+
+import ted.core.repr.CompactTree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * Bounded cache of subtree distances, shared by the comparisons of a batch of trees.
+ * <p>
+ * Zhang-Shasha computes one table per pair of keyroots, whose only output is the distance between
+ * every node of the leftmost path of the first keyroot and every node of the leftmost path of the
+ * second one. These distances only depend on the content of the two subtrees, so they are stored
+ * under the Merkle hashes of the two keyroots, and reused whenever the same pair of subtrees comes
+ * back: a subtree repeated within a tree, or the parts that did not change between revisions.
+ * Hashes can collide, so each entry keeps a copy of the two subtrees it was computed for (shape and
+ * labels, not their whole trees), and a hit is only trusted once both subtrees are compared node by node.
+ * <p>
+ * The distances depend on the costs, so a cache must only be shared by engines with the same cost
+ * functions. The least recently used entries are evicted beyond the given capacity, where the node of a
+ * copied subtree counts as much as a distance.
+ * The cache is thread safe.
+ */
+public final class SubtreeCache {
+
+    private final long capacity;
+    private long stored = 0;
+    private long hits = 0;
+    private long misses = 0;
+    // least recently used first
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * @param capacity largest number of distances kept (8 bytes each), plus the nodes of the copied subtrees
+     */
+    public SubtreeCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("The capacity cannot be negative " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+
+    /**
+     * @return the distances between the leftmost paths of the two subtrees, or null if they are not known
+     */
+    synchronized double[] get(long hash1, long hash2, CompactTree<?> tree1, int root1, CompactTree<?> tree2, int root2) {
+        Entry entry = entries.get(new Key(hash1, hash2));
+        if (entry == null || !entry.subtree1.isIdentical(tree1, root1) || !entry.subtree2.isIdentical(tree2, root2)) {
+            misses += 1;
+            return null;
+        }
+        hits += 1;
+        return entry.distances;
+    }
+
+
+    /**
+     * Stores the distances between the leftmost paths of the two subtrees.
+     */
+    synchronized void put(long hash1, long hash2, CompactTree<?> tree1, int root1, CompactTree<?> tree2, int root2,
+                          double[] distances) {
+        long size = (long) distances.length + subtreeSize(tree1, root1) + subtreeSize(tree2, root2);
+        if (size > capacity) {
+            return;
+        }
+        Entry entry = new Entry(distances, new Subtree(tree1, root1), new Subtree(tree2, root2));
+        Entry previous = entries.put(new Key(hash1, hash2), entry);
+        stored += entry.size() - (previous == null ? 0 : previous.size());
+        while (stored > capacity) {
+            Map.Entry<Key, Entry> eldest = entries.entrySet().iterator().next();
+            stored -= eldest.getValue().size();
+            entries.remove(eldest.getKey());
+        }
+    }
+
+
+    /**
+     * @return number of keyroot pairs found in the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+
+    /**
+     * @return number of keyroot pairs looked up but not found
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+
+    /**
+     * @return number of distances currently kept, plus the nodes of the copied subtrees
+     */
+    public synchronized long getStoredDistances() {
+        return stored;
+    }
+
+
+    public synchronized void clear() {
+        entries.clear();
+        stored = 0;
+    }
+
+
+    private static int subtreeSize(CompactTree<?> tree, int root) {
+        return root - tree.getLeftmostDescendants()[root] + 1;
+    }
+
+
+    /**
+     * Distances between the leftmost paths of two subtrees, and copies of the subtrees.
+     */
+    private static final class Entry {
+        private final double[] distances;
+        private final Subtree subtree1, subtree2;
+
+        Entry(double[] distances, Subtree subtree1, Subtree subtree2) {
+            this.distances = distances;
+            this.subtree1 = subtree1;
+            this.subtree2 = subtree2;
+        }
+
+        long size() {
+            return (long) distances.length + subtree1.labels.length + subtree2.labels.length;
+        }
+    }
+
+
+    /**
+     * Copy of a subtree, in post-order: the parent of each node but the root, relative to the first node,
+     * and the labels.
+     */
+    private static final class Subtree {
+        private final int[] parents;
+        private final Object[] labels;
+
+        Subtree(CompactTree<?> tree, int root) {
+            int first = tree.getLeftmostDescendants()[root];
+            int[] treeParents = tree.getParents();
+            parents = new int[root - first];
+            labels = new Object[root - first + 1];
+            for (int k = 0; k != parents.length; ++k) {
+                parents[k] = treeParents[first + k] - first;
+            }
+            for (int k = 0; k != labels.length; ++k) {
+                labels[k] = tree.getLabel(first + k);
+            }
+        }
+
+        /**
+         * @return true if the subtree has the same shape and the same labels as this copy
+         */
+        boolean isIdentical(CompactTree<?> tree, int root) {
+            int first = tree.getLeftmostDescendants()[root];
+            if (root - first != parents.length) {
+                return false;
+            }
+            int[] treeParents = tree.getParents();
+            for (int k = 0; k != parents.length; ++k) {
+                if (treeParents[first + k] - first != parents[k]) {
+                    return false;
+                }
+            }
+            for (int k = 0; k != labels.length; ++k) {
+                if (!Objects.equals(tree.getLabel(first + k), labels[k])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    private static final class Key {
+        private final long hash1, hash2;
+
+        Key(long hash1, long hash2) {
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash1 == hash1 && ((Key) other).hash2 == hash2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash1 ^ (hash1 >>> 32)) * 31 + (int) (hash2 ^ (hash2 >>> 32));
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package ted.core.distances;
+
+
+/**
+ * Scratch memory of the tree edit distance. The tables are kept as flat, row-major arrays
+ * that only grow when a bigger pair of trees comes along, so once warmed up, computing a
+ * distance does not allocate anything.
+ * It also holds the costs precomputed for the current pair of trees: deletion costs of the
+ * nodes of the first tree, insertion costs of the nodes of the second tree, and the
+ * substitution costs between the labels of the two trees.
+ * A workspace is not thread safe, each thread needs its own.
+ */
+public final class TedWorkspace {
+
+    // forest distances computed between two readings of the clock, about a tenth of a millisecond
+    private static final long DEADLINE_CHECK_CELLS = 1 << 16;
+
+    private double[] forestDistance = new double[0];
+    private double[] treeDistances = new double[0];
+    //
+    private double[] deletionCosts = new double[0];
+    private double[] insertionCosts = new double[0];
+    private double[] substitutionCosts = new double[0];
+    private double[] labelCosts = new double[0];
+    //
+    private double[] leafDistances = new double[0];
+    private int[] indices = new int[0];
+    //
+    private int[] integerCosts = new int[0];
+    private int[] intForestDistance = new int[0];
+    private int[] intTreeDistances = new int[0];
+    private short[] shortForestDistance = new short[0];
+    private short[] shortTreeDistances = new short[0];
+    // work of the current comparison, counted by the kernels
+    private long subproblems = 0;
+    private long forestCells = 0;
+    private long costCalls = 0;
+    private long preparationNanos = 0;
+    // deadline of the current comparison, and forest distances computed since the clock was read
+    private Deadline deadline;
+    private long uncheckedCells = 0;
+    // pair of trees whose costs were filled in by a prepared query, prepareCosts keeps them
+    private Object preparedTree1, preparedTree2;
+
+
+    /**
+     * Gets the forest distance buffer, used for one keyroot pair at a time.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] forestDistance(int size) {
+        if (forestDistance.length < size) {
+            forestDistance = new double[grow(forestDistance.length, size)];
+        }
+        return forestDistance;
+    }
+
+
+    /**
+     * Gets the tree distance buffer, used for a whole pair of trees.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] treeDistances(int size) {
+        if (treeDistances.length < size) {
+            treeDistances = new double[grow(treeDistances.length, size)];
+        }
+        return treeDistances;
+    }
+
+
+    /**
+     * Gets the buffer for the deletion costs of the nodes of the first tree.
+     *
+     * @param size number of nodes
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] deletionCosts(int size) {
+        if (deletionCosts.length < size) {
+            deletionCosts = new double[grow(deletionCosts.length, size)];
+        }
+        return deletionCosts;
+    }
+
+
+    /**
+     * Gets the buffer for the insertion costs of the nodes of the second tree.
+     *
+     * @param size number of nodes
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] insertionCosts(int size) {
+        if (insertionCosts.length < size) {
+            insertionCosts = new double[grow(insertionCosts.length, size)];
+        }
+        return insertionCosts;
+    }
+
+
+    /**
+     * Gets the buffer for the substitution costs, one row per label of the first tree
+     * and one column per label of the second tree.
+     *
+     * @param size number of label pairs
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] substitutionCosts(int size) {
+        if (substitutionCosts.length < size) {
+            substitutionCosts = new double[grow(substitutionCosts.length, size)];
+        }
+        return substitutionCosts;
+    }
+
+
+    /**
+     * Gets a buffer for the costs of the labels of one tree, before they are spread over the nodes.
+     *
+     * @param size number of labels
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] labelCosts(int size) {
+        if (labelCosts.length < size) {
+            labelCosts = new double[grow(labelCosts.length, size)];
+        }
+        return labelCosts;
+    }
+
+
+    /**
+     * Gets the buffer for the distances between leaves and subtrees, used by the low memory engine.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    double[] leafDistances(int size) {
+        if (leafDistances.length < size) {
+            leafDistances = new double[grow(leafDistances.length, size)];
+        }
+        return leafDistances;
+    }
+
+
+    /**
+     * Gets a buffer for indices into the trees, used by the low memory engine.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    int[] indices(int size) {
+        if (indices.length < size) {
+            indices = new int[grow(indices.length, size)];
+        }
+        return indices;
+    }
+
+
+    /**
+     * Gets the buffer for the costs as integers, used by the integer kernel.
+     *
+     * @param size number of costs
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    int[] integerCosts(int size) {
+        if (integerCosts.length < size) {
+            integerCosts = new int[grow(integerCosts.length, size)];
+        }
+        return integerCosts;
+    }
+
+
+    /**
+     * Gets the forest distance buffer of the integer kernel, when the distances need ints.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    int[] intForestDistance(int size) {
+        if (intForestDistance.length < size) {
+            intForestDistance = new int[grow(intForestDistance.length, size)];
+        }
+        return intForestDistance;
+    }
+
+
+    /**
+     * Gets the tree distance buffer of the integer kernel, when the distances need ints.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    int[] intTreeDistances(int size) {
+        if (intTreeDistances.length < size) {
+            intTreeDistances = new int[grow(intTreeDistances.length, size)];
+        }
+        return intTreeDistances;
+    }
+
+
+    /**
+     * Gets the forest distance buffer of the integer kernel, when the distances fit in shorts.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    short[] shortForestDistance(int size) {
+        if (shortForestDistance.length < size) {
+            shortForestDistance = new short[grow(shortForestDistance.length, size)];
+        }
+        return shortForestDistance;
+    }
+
+
+    /**
+     * Gets the tree distance buffer of the integer kernel, when the distances fit in shorts.
+     *
+     * @param size number of cells needed
+     * @return buffer holding at least size cells, its content is undefined
+     */
+    short[] shortTreeDistances(int size) {
+        if (shortTreeDistances.length < size) {
+            shortTreeDistances = new short[grow(shortTreeDistances.length, size)];
+        }
+        return shortTreeDistances;
+    }
+
+
+    /**
+     * Marks the costs held by the workspace as the ones of this pair of trees.
+     *
+     * @param tree1 first tree, null once the costs are no longer needed
+     * @param tree2 second tree, null once the costs are no longer needed
+     */
+    void setPreparedCosts(Object tree1, Object tree2) {
+        preparedTree1 = tree1;
+        preparedTree2 = tree2;
+    }
+
+
+    /**
+     * @return whether the workspace already holds the costs of this pair of trees
+     */
+    boolean hasPreparedCosts(Object tree1, Object tree2) {
+        return preparedTree1 == tree1 && preparedTree2 == tree2 && tree1 != null;
+    }
+
+
+    /**
+     * Starts counting the work of a new comparison.
+     */
+    void resetCounters() {
+        subproblems = 0;
+        forestCells = 0;
+        costCalls = 0;
+        preparationNanos = 0;
+    }
+
+
+    /**
+     * Counts keyroot pairs (or path pairs) run, and the forest distances they computed.
+     * This is also where the deadline of the comparison, if any, is checked: cancellation after
+     * every pair, the clock once enough cells were computed since the last time.
+     *
+     * @throws DeadlineExceededException if the deadline expired
+     */
+    void countSubproblems(long count, long cells) {
+        subproblems += count;
+        forestCells += cells;
+        if (deadline != null) {
+            uncheckedCells += cells;
+            if (uncheckedCells >= DEADLINE_CHECK_CELLS || deadline.isCancelled()) {
+                uncheckedCells = 0;
+                checkDeadline();
+            }
+        }
+    }
+
+
+    /**
+     * Sets the deadline of the comparisons using this workspace.
+     *
+     * @param deadline the deadline, null for none
+     */
+    void setDeadline(Deadline deadline) {
+        this.deadline = deadline;
+        uncheckedCells = 0;
+    }
+
+
+    Deadline getDeadline() {
+        return deadline;
+    }
+
+
+    /**
+     * @throws DeadlineExceededException if the deadline expired
+     */
+    void checkDeadline() {
+        if (deadline != null && deadline.isExpired()) {
+            throw new DeadlineExceededException();
+        }
+    }
+
+
+    void countCostCalls(long calls) {
+        costCalls += calls;
+    }
+
+
+    void countPreparation(long nanos) {
+        preparationNanos += nanos;
+    }
+
+
+    long getSubproblems() {
+        return subproblems;
+    }
+
+
+    long getForestCells() {
+        return forestCells;
+    }
+
+
+    long getCostCalls() {
+        return costCalls;
+    }
+
+
+    long getPreparationNanos() {
+        return preparationNanos;
+    }
+
+
+    /**
+     * Grows by at least half the current capacity, to avoid reallocating for every slightly bigger pair.
+     */
+    private static int grow(int capacity, int size) {
+        long grown = (long) capacity + (capacity >> 1);
+        return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(grown, size));
+    }
+
+
+    /**
+     * getter
+     *
+     * @return number of bytes currently held by the workspace
+     */
+    public long getAllocatedBytes() {
+        return 8L * (forestDistance.length + treeDistances.length + deletionCosts.length
+                + insertionCosts.length + substitutionCosts.length + labelCosts.length + leafDistances.length)
+                + 4L * (indices.length + integerCosts.length + intForestDistance.length + intTreeDistances.length)
+                + 2L * (shortForestDistance.length + shortTreeDistances.length);
+    }
+}
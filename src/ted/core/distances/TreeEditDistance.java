@@ -3,8 +3,14 @@ package ted.core.distances;
 
 import ted.core.interfaces.CostFunction;
 import ted.core.interfaces.DistanceFunction;
+import ted.core.metrics.ComparisonStatistics;
+import ted.core.metrics.TedMetrics;
+import ted.core.repr.CompactTree;
 import ted.core.repr.OrderedLabeledTree;
 
+import java.util.Arrays;
+import java.util.HashMap;
+
 
 /**
  * Tree Edit Distance on Ordered Rooted Trees
@@ -14,8 +20,31 @@ import ted.core.repr.OrderedLabeledTree;
 public class TreeEditDistance<T> implements DistanceFunction<OrderedLabeledTree<T>,
         OrderedLabeledTree<T>> {
 
+    /**
+     * Returned by the threshold variants of getDistance when the distance is greater than the threshold.
+     */
+    public static final double EXCEEDS_THRESHOLD = Double.POSITIVE_INFINITY;
+
+    // relative slack of the bounds checked against a threshold: they add and multiply the costs in
+    // another order than the dynamic programming, so they can round a little above a distance equal to it
+    private static final double BOUND_TOLERANCE = 1e-12;
+
+    // smallest keyroot pair (in forest distances) worth looking up in the cache
+    private static final int MINIMUM_CACHED_WORK = 256;
+
     private CostFunction<T> deletionCost, insertionCost;
     private DistanceFunction<T, T> substitutionCost;
+    private SubtreeCache subtreeCache;
+    private boolean integerKernel = true;
+    private TedMetrics metrics;
+
+    // one scratch memory per thread, so that a single instance can be shared
+    private final ThreadLocal<TedWorkspace> workspaces = new ThreadLocal<TedWorkspace>() {
+        @Override
+        protected TedWorkspace initialValue() {
+            return new TedWorkspace();
+        }
+    };
 
 
     /**
@@ -35,30 +64,199 @@ public class TreeEditDistance<T> implements DistanceFunction<OrderedLabeledTree<
     }
 
 
+    /**
+     * Shares a cache of subtree distances between the comparisons made by this engine (and any other
+     * engine with the same costs). Only used by the Zhang-Shasha kernel, without a threshold.
+     *
+     * @param subtreeCache the cache, null to stop using one
+     */
+    public void setSubtreeCache(SubtreeCache subtreeCache) {
+        this.subtreeCache = subtreeCache;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return the cache of subtree distances, null if there is none
+     */
+    public SubtreeCache getSubtreeCache() {
+        return subtreeCache;
+    }
+
+
+    /**
+     * Reports the work, memory and time of each getDistance on compact trees (and so of every
+     * comparison made through this engine) to the metrics. Without metrics, nothing is measured.
+     *
+     * @param metrics receives the statistics of each comparison, null to stop measuring
+     */
+    public void setMetrics(TedMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return the metrics receiving the statistics of each comparison, null if there are none
+     */
+    public TedMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Lets getDistance run the integer kernel when all the costs of a pair of trees are integers
+     * (on by default). The distances are the same, only the memory used and the speed differ.
+     *
+     * @param integerKernel false to always run the kernel on doubles
+     */
+    public void setIntegerKernel(boolean integerKernel) {
+        this.integerKernel = integerKernel;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return whether getDistance runs the integer kernel when the costs are integers
+     */
+    public boolean isIntegerKernel() {
+        return integerKernel;
+    }
+
+
+    /**
+     * Whether the distance between these trees is computed by the sequential Zhang-Shasha kernel,
+     * so that the integer kernel can replace it.
+     */
+    boolean runsZhangShasha(CompactTree<T> tree1, CompactTree<T> tree2) {
+        return true;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return the scratch memory of the calling thread
+     */
+    TedWorkspace localWorkspace() {
+        return workspaces.get();
+    }
+
+
+    /**
+     * Computes the costs of the edit operations for a pair of trees, once per distinct label:
+     * the deletion cost of each node of the first tree, the insertion cost of each node of
+     * the second tree and the substitution cost between each label of the first tree and each
+     * label of the second tree. They are stored in the workspace, unless a prepared query already
+     * put them there.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param workspace scratch memory receiving the costs
+     */
+    void prepareCosts(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        if (workspace.hasPreparedCosts(tree1, tree2)) {
+            return;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        int alphabetSize1 = tree1.getAlphabetSize();
+        int alphabetSize2 = tree2.getAlphabetSize();
+
+        // deletions, spread over the nodes of the first tree
+        double[] labelCosts = workspace.labelCosts(Math.max(alphabetSize1, alphabetSize2));
+        for (int i = 0; i != alphabetSize1; ++i) {
+            labelCosts[i] = deletionCost.getCost(tree1.getAlphabetLabel(i));
+        }
+        int[] labelIds = tree1.getLabelIds();
+        double[] deletionCosts = workspace.deletionCosts(tree1.size());
+        for (int x = 0; x != tree1.size(); ++x) {
+            deletionCosts[x] = labelCosts[labelIds[x]];
+        }
+
+        // insertions, spread over the nodes of the second tree
+        for (int i = 0; i != alphabetSize2; ++i) {
+            labelCosts[i] = insertionCost.getCost(tree2.getAlphabetLabel(i));
+        }
+        labelIds = tree2.getLabelIds();
+        double[] insertionCosts = workspace.insertionCosts(tree2.size());
+        for (int y = 0; y != tree2.size(); ++y) {
+            insertionCosts[y] = labelCosts[labelIds[y]];
+        }
+
+        // substitutions, one row per label of the first tree
+        double[] substitutionCosts = workspace.substitutionCosts(alphabetSize1 * alphabetSize2);
+        for (int i = 0; i != alphabetSize1; ++i) {
+            T label1 = tree1.getAlphabetLabel(i);
+            for (int j = 0; j != alphabetSize2; ++j) {
+                substitutionCosts[i * alphabetSize2 + j] = substitutionCost.getDistance(label1, tree2.getAlphabetLabel(j));
+            }
+        }
+        workspace.countCostCalls(alphabetSize1 + alphabetSize2 + (long) alphabetSize1 * alphabetSize2);
+        if (metrics != null) {
+            workspace.countPreparation(System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * @return deletion cost of a label of the first tree
+     */
+    double getDeletionCost(T label) {
+        return deletionCost.getCost(label);
+    }
+
+
+    /**
+     * Costs of a label of the second tree against the labels of the first tree, for prepared queries.
+     *
+     * @return insertion cost of the label, then its substitution cost from each label of the first tree
+     */
+    double[] columnCosts(CompactTree<T> tree1, T label2) {
+        double[] column = new double[tree1.getAlphabetSize() + 1];
+        column[0] = insertionCost.getCost(label2);
+        for (int i = 0; i != tree1.getAlphabetSize(); ++i) {
+            column[i + 1] = substitutionCost.getDistance(tree1.getAlphabetLabel(i), label2);
+        }
+        return column;
+    }
+
+
     /**
      * Performs the calculation of the tree edit distance on two subtrees, given
      * post-order indices of the subtrees. Fills the dynamic programming table at the suitable index.
+     * Only reads primitive arrays: the costs have been precomputed by prepareCosts.
      *
-     * @param tree1                   first tree to compare
-     * @param tree2                   second tree to compare
+     * @param FirstLMDS               leftmost descendants of the first tree
+     * @param SecondLMDS              leftmost descendants of the second tree
+     * @param labelIds1               label ids of the first tree
+     * @param labelIds2               label ids of the second tree
      * @param index1                  postorder index of the keyroot in the first tree
      * @param index2                  postorder index of the keyroot in the second tree
-     * @param dynamicProgrammingTable dynamic programming table to modify
+     * @param dynamicProgrammingTable dynamic programming table to modify (row-major, sizeTree2 columns)
+     * @param sizeTree2               number of columns of the dynamic programming table
+     * @param alphabetSize2           number of columns of the substitution costs
+     * @param costs                   workspace holding the costs
+     * @param scratch                 workspace holding the forest distances (same as costs, unless
+     *                                several threads work on the same pair of trees)
      */
-    private void treeEditDistanceHelper(OrderedLabeledTree<T> tree1,
-                                        OrderedLabeledTree<T> tree2,
-                                        int index1, int index2,
-                                        double[][] dynamicProgrammingTable) {
+    static void treeEditDistanceHelper(int[] FirstLMDS, int[] SecondLMDS,
+                                       int[] labelIds1, int[] labelIds2,
+                                       int index1, int index2,
+                                       double[] dynamicProgrammingTable, int sizeTree2,
+                                       int alphabetSize2, TedWorkspace costs, TedWorkspace scratch) {
         //region Initialization
-        int[] FirstLMDS = tree1.getLeftmostDescendants();
-        int[] SecondLMDS = tree2.getLeftmostDescendants();
         int p, q;
 
+        // the forest distances are a m x n matrix, stored row-major
         int m = index1 - FirstLMDS[index1] + 2;
         int n = index2 - SecondLMDS[index2] + 2;
-
-        // create a m x n matrix of zeros
-        double[][] forestDistance = new double[m][n];
+        double[] forestDistance = scratch.forestDistance(m * n);
+        double[] deletionCosts = costs.deletionCosts(0);
+        double[] insertionCosts = costs.insertionCosts(0);
+        double[] substitutionCosts = costs.substitutionCosts(0);
 
         // figure out the offset
         int iOffset = FirstLMDS[index1] - 1;
@@ -67,51 +265,52 @@ public class TreeEditDistance<T> implements DistanceFunction<OrderedLabeledTree<
 
         //region Distance Calculations
         // fill deletions (tree1 row) and insertions (tree1 column)
+        forestDistance[0] = 0;
         for (int x = 1; x != m; ++x) {
-            forestDistance[x][0] = forestDistance[x - 1][0] + 1;
+            forestDistance[x * n] = forestDistance[(x - 1) * n] + deletionCosts[x + iOffset];
         }
         for (int y = 1; y != n; ++y) {
-            forestDistance[0][y] = forestDistance[0][y - 1] + 1;
+            forestDistance[y] = forestDistance[y - 1] + insertionCosts[y + jOffset];
         }
 
 
         // fill the rest of the matrix
         for (int x = 1; x != m; ++x) {
+            int row = x * n;
+            int previousRow = row - n;
+            int tableRow = (x + iOffset) * sizeTree2;
+            int substitutionRow = labelIds1[x + iOffset] * alphabetSize2;
+            boolean xOnPath = FirstLMDS[index1] == FirstLMDS[x + iOffset];
+            double del = deletionCosts[x + iOffset];
             for (int y = 1; y != n; ++y) {
-                // some situation independent data
-                T label1 = tree1.getPostOrderLabels().get((x + iOffset));
-                T label2 = tree2.getPostOrderLabels().get((y + jOffset));
-
-                double del = deletionCost.getCost(label1);
-                double insert = insertionCost.getCost(label2);
+                double insert = insertionCosts[y + jOffset];
 
                 // case 1
                 // x is an ancestor of i and y is an ancestor of j
-                if ((FirstLMDS[index1] == FirstLMDS[x + iOffset]) &&
-                        (SecondLMDS[index2] == SecondLMDS[y + jOffset])) {
-                    double sub = substitutionCost.getDistance(label1, label2);
-                    forestDistance[x][y] = Math.min(Math.min(
+                if (xOnPath && (SecondLMDS[index2] == SecondLMDS[y + jOffset])) {
+                    double sub = substitutionCosts[substitutionRow + labelIds2[y + jOffset]];
+                    forestDistance[row + y] = Math.min(Math.min(
                                     // deletion
-                                    (forestDistance[x - 1][y] + del),
+                                    (forestDistance[previousRow + y] + del),
                                     // insertion
-                                    (forestDistance[x][y - 1] + insert)),
+                                    (forestDistance[row + y - 1] + insert)),
                             // substitution
-                            (forestDistance[x - 1][y - 1] + sub)
+                            (forestDistance[previousRow + y - 1] + sub)
                     );
 
-                    dynamicProgrammingTable[x + iOffset][y + jOffset] = forestDistance[x][y];
+                    dynamicProgrammingTable[tableRow + y + jOffset] = forestDistance[row + y];
                 }
                 // case 2
                 else {
                     p = FirstLMDS[x + iOffset] - 1 - iOffset;
                     q = SecondLMDS[y + jOffset] - 1 - jOffset;
-                    forestDistance[x][y] = Math.min(Math.min(
+                    forestDistance[row + y] = Math.min(Math.min(
                                     // deletion
-                                    (forestDistance[x - 1][y] + del),
+                                    (forestDistance[previousRow + y] + del),
                                     // insertion
-                                    (forestDistance[x][y - 1] + insert)),
+                                    (forestDistance[row + y - 1] + insert)),
                             // substitution
-                            (forestDistance[p][q] + dynamicProgrammingTable[x + iOffset][y + jOffset])
+                            (forestDistance[p * n + q] + dynamicProgrammingTable[tableRow + y + jOffset])
                     );
                 }
             }
@@ -121,39 +320,447 @@ public class TreeEditDistance<T> implements DistanceFunction<OrderedLabeledTree<
 
 
     /**
-     * Performs the tree edit distance calculation between two Ordered Labeled Trees.
+     * Same as treeEditDistanceHelper, for distances that only matter up to a threshold.
+     * Any value above the threshold is stored as +infinity: since costs are not negative, such a
+     * value can never be part of a distance within the threshold. Forest distances between prefixes
+     * whose sizes differ too much are known to be above the threshold, so only a band around the
+     * diagonal is filled. Subtree distances follow the same rule: the distance between the subtrees
+     * of x and y is computed exactly when their sizes are close enough, so it is only read then.
      *
-     * @param tree1 first whole tree to compare
-     * @param tree2 second whole tree to compare
-     * @return dynamic programming table (can be interpreted for matches, or just get the distance by
-     * looking at the last cell on the lower right.
+     * @param threshold  the threshold
+     * @param bandDel    largest number of deletions that fit in the threshold
+     * @param bandIns    largest number of insertions that fit in the threshold
+     * @param wholeTrees whether the keyroots are the roots of the trees
+     * @return false when the keyroots are the roots of the trees and the distance is known to exceed the threshold
      */
-    public double[][] treeEditDistance(OrderedLabeledTree<T> tree1,
-                                       OrderedLabeledTree<T> tree2) {
-        int sizeTree1 = tree1.getPostOrderLabels().size();
-        int sizeTree2 = tree2.getPostOrderLabels().size();
+    static boolean boundedHelper(int[] FirstLMDS, int[] SecondLMDS,
+                                 int[] labelIds1, int[] labelIds2,
+                                 int index1, int index2,
+                                 double[] dynamicProgrammingTable, int sizeTree2,
+                                 int alphabetSize2, TedWorkspace workspace,
+                                 double threshold, int bandDel, int bandIns, boolean wholeTrees) {
+        int m = index1 - FirstLMDS[index1] + 2;
+        int n = index2 - SecondLMDS[index2] + 2;
+        double[] forestDistance = workspace.forestDistance(m * n);
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+        int iOffset = FirstLMDS[index1] - 1;
+        int jOffset = SecondLMDS[index2] - 1;
+
+        // past the band, the first row and column are not read, and the rows are empty
+        int lastRow = (int) Math.min(m - 1, (long) n - 1 + bandDel);
+        forestDistance[0] = 0;
+        for (int x = 1; x <= Math.min(lastRow, bandDel + 1); ++x) {
+            double value = forestDistance[(x - 1) * n] + deletionCosts[x + iOffset];
+            forestDistance[x * n] = value > threshold ? Double.POSITIVE_INFINITY : value;
+        }
+        for (int y = 1; y <= Math.min(n - 1, bandIns + 1); ++y) {
+            double value = forestDistance[y - 1] + insertionCosts[y + jOffset];
+            forestDistance[y] = value > threshold ? Double.POSITIVE_INFINITY : value;
+        }
+
+        long cells = 0;
+        for (int x = 1; x <= lastRow; ++x) {
+            int row = x * n;
+            int previousRow = row - n;
+            int tableRow = (x + iOffset) * sizeTree2;
+            int substitutionRow = labelIds1[x + iOffset] * alphabetSize2;
+            boolean xOnPath = FirstLMDS[index1] == FirstLMDS[x + iOffset];
+            double del = deletionCosts[x + iOffset];
+            int p = FirstLMDS[x + iOffset] - 1 - iOffset;
+            int sizeX = x - p;
+
+            // the cells just outside the band are read by their neighbours
+            int yFrom = Math.max(1, x - bandDel);
+            int yTo = Math.min(n - 1, x + bandIns);
+            if (yFrom > 1) {
+                forestDistance[row + yFrom - 1] = Double.POSITIVE_INFINITY;
+            }
+            if (yTo < n - 1) {
+                forestDistance[row + yTo + 1] = Double.POSITIVE_INFINITY;
+            }
+
+            cells += Math.max(0, yTo - yFrom + 1);
+            double rowMinimum = x <= bandDel ? forestDistance[row] : Double.POSITIVE_INFINITY;
+            for (int y = yFrom; y <= yTo; ++y) {
+                double value = Math.min(forestDistance[previousRow + y] + del,
+                        forestDistance[row + y - 1] + insertionCosts[y + jOffset]);
+                if (xOnPath && (SecondLMDS[index2] == SecondLMDS[y + jOffset])) {
+                    value = Math.min(value, forestDistance[previousRow + y - 1]
+                            + substitutionCosts[substitutionRow + labelIds2[y + jOffset]]);
+                    value = value > threshold ? Double.POSITIVE_INFINITY : value;
+                    dynamicProgrammingTable[tableRow + y + jOffset] = value;
+                } else {
+                    int q = SecondLMDS[y + jOffset] - 1 - jOffset;
+                    int sizeY = y - q;
+                    if (p - q <= bandDel && q - p <= bandIns && sizeX - sizeY <= bandDel && sizeY - sizeX <= bandIns) {
+                        value = Math.min(value, forestDistance[p * n + q] + dynamicProgrammingTable[tableRow + y + jOffset]);
+                    }
+                    value = value > threshold ? Double.POSITIVE_INFINITY : value;
+                }
+                forestDistance[row + y] = value;
+                rowMinimum = Math.min(rowMinimum, value);
+            }
+
+            // any mapping between the whole trees, restricted to the first x nodes of the first tree,
+            // is a mapping between that prefix and a prefix of the second tree: it costs at least the
+            // smallest distance of the row
+            if (wholeTrees && rowMinimum > threshold) {
+                workspace.countSubproblems(1, cells);
+                return false;
+            }
+        }
+        workspace.countSubproblems(1, cells);
+        return true;
+    }
 
-        // create the matrix holding tree cost
-        double[][] treeDistances = new double[sizeTree1][sizeTree2];
 
+    /**
+     * Lower bound of the tree edit distance, from the costs prepared in the workspace.
+     * <ul>
+     * <li>size: when the first tree is bigger, at least the difference is deleted (and conversely).</li>
+     * <li>labels: each node is either deleted (inserted) or mapped, and among the nodes of the first
+     * tree having a given label, at most as many as there are in the second tree can be mapped to
+     * that same label. The others are deleted or relabeled.</li>
+     * </ul>
+     */
+    double lowerBound(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = tree2.size();
+        int alphabetSize1 = tree1.getAlphabetSize();
+        int alphabetSize2 = tree2.getAlphabetSize();
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+
+        // counts and costs by label
+        int[] labelIds1 = tree1.getLabelIds();
+        int[] labelIds2 = tree2.getLabelIds();
+        int[] counts1 = new int[alphabetSize1];
+        int[] counts2 = new int[alphabetSize2];
+        double[] deletions = new double[alphabetSize1];
+        double[] insertions = new double[alphabetSize2];
+        double minimumDeletion = Double.POSITIVE_INFINITY;
+        double minimumInsertion = Double.POSITIVE_INFINITY;
+        for (int x = 0; x != sizeTree1; ++x) {
+            counts1[labelIds1[x]] += 1;
+            deletions[labelIds1[x]] = deletionCosts[x];
+            minimumDeletion = Math.min(minimumDeletion, deletionCosts[x]);
+        }
+        for (int y = 0; y != sizeTree2; ++y) {
+            counts2[labelIds2[y]] += 1;
+            insertions[labelIds2[y]] = insertionCosts[y];
+            minimumInsertion = Math.min(minimumInsertion, insertionCosts[y]);
+        }
 
+        double sizeBound = sizeTree1 > sizeTree2 ? (sizeTree1 - sizeTree2) * minimumDeletion
+                : (sizeTree2 - sizeTree1) * minimumInsertion;
+
+        // same labels in both alphabets
+        HashMap<Object, Integer> ids2 = new HashMap<>();
+        for (int j = 0; j != alphabetSize2; ++j) {
+            ids2.put(tree2.getAlphabetLabel(j), j);
+        }
+        int[] same1 = new int[alphabetSize1];
+        int[] same2 = new int[alphabetSize2];
+        Arrays.fill(same2, -1);
+        for (int i = 0; i != alphabetSize1; ++i) {
+            Integer j = ids2.get(tree1.getAlphabetLabel(i));
+            same1[i] = j == null ? -1 : j;
+            if (j != null) {
+                same2[j] = i;
+            }
+        }
+
+        double bound1 = 0;
+        for (int i = 0; i != alphabetSize1; ++i) {
+            double any = deletions[i], other = deletions[i];
+            for (int j = 0; j != alphabetSize2; ++j) {
+                double sub = substitutionCosts[i * alphabetSize2 + j];
+                any = Math.min(any, sub);
+                if (j != same1[i]) {
+                    other = Math.min(other, sub);
+                }
+            }
+            int excess = Math.max(0, counts1[i] - (same1[i] == -1 ? 0 : counts2[same1[i]]));
+            bound1 += excess * other + (counts1[i] - excess) * any;
+        }
+        double bound2 = 0;
+        for (int j = 0; j != alphabetSize2; ++j) {
+            double any = insertions[j], other = insertions[j];
+            for (int i = 0; i != alphabetSize1; ++i) {
+                double sub = substitutionCosts[i * alphabetSize2 + j];
+                any = Math.min(any, sub);
+                if (i != same2[j]) {
+                    other = Math.min(other, sub);
+                }
+            }
+            int excess = Math.max(0, counts2[j] - (same2[j] == -1 ? 0 : counts1[same2[j]]));
+            bound2 += excess * other + (counts2[j] - excess) * any;
+        }
+        return Math.max(sizeBound, Math.max(bound1, bound2));
+    }
+
+
+    /**
+     * Upper bound of the tree edit distance, from the costs prepared in the workspace: the cost of
+     * deleting every node of the first tree and inserting every node of the second one, or of doing
+     * so for every node but the roots, the roots being substituted.
+     */
+    double upperBound(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        int root1 = tree1.size() - 1;
+        int root2 = tree2.size() - 1;
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        double[] substitutionCosts = workspace.substitutionCosts(0);
+        double total = 0;
+        for (int x = 0; x <= root1; ++x) {
+            total += deletionCosts[x];
+        }
+        for (int y = 0; y <= root2; ++y) {
+            total += insertionCosts[y];
+        }
+        double roots = substitutionCosts[tree1.getLabelIds()[root1] * tree2.getAlphabetSize() + tree2.getLabelIds()[root2]];
+        return Math.min(total, total - deletionCosts[root1] - insertionCosts[root2] + roots);
+    }
+
+
+    /**
+     * Performs the tree edit distance calculation between two compact trees.
+     * Nothing is allocated once the workspace is big enough for the trees.
+     *
+     * @return dynamic programming table (row-major, tree2.size() columns), indexed by post-order indices.
+     * It belongs to the workspace, so it is only valid until the next call with the same workspace.
+     */
+    double[] treeEditDistance(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        prepareCosts(tree1, tree2, workspace);
+        return keyRootPairs(tree1, tree2, workspace);
+    }
+
+
+    /**
+     * Runs the Zhang-Shasha kernel on every pair of keyroots, from the costs prepared in the workspace.
+     *
+     * @return dynamic programming table (row-major, tree2.size() columns), indexed by post-order indices
+     */
+    private double[] keyRootPairs(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        int sizeTree2 = tree2.size();
+
+        // get the matrix holding tree cost, and the forest distances big enough for any keyroot pair
+        double[] treeDistances = workspace.treeDistances(tree1.size() * sizeTree2);
+        workspace.forestDistance((tree1.size() + 1) * (sizeTree2 + 1));
+
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        int[] labelIds1 = tree1.getLabelIds();
+        int[] labelIds2 = tree2.getLabelIds();
+        int alphabetSize2 = tree2.getAlphabetSize();
         int[] keyRoots1 = tree1.getKeyRoots();
         int[] keyRoots2 = tree2.getKeyRoots();
+        SubtreeCache cache = subtreeCache;
+        long[] hashes1 = cache == null ? null : tree1.getSubtreeHashes();
+        long[] hashes2 = cache == null ? null : tree2.getSubtreeHashes();
         int keyRoot1, keyRoot2;
         for (int i = 0; i != keyRoots1.length; ++i) {
             keyRoot1 = keyRoots1[i];
             for (int j = 0; j != keyRoots2.length; ++j) {
                 keyRoot2 = keyRoots2[j];
-                treeEditDistanceHelper(tree1, tree2, keyRoot1, keyRoot2, treeDistances);
+                boolean cached = cache != null
+                        && (long) (keyRoot1 - lmds1[keyRoot1] + 1) * (keyRoot2 - lmds2[keyRoot2] + 1) >= MINIMUM_CACHED_WORK;
+                if (cached) {
+                    double[] known = cache.get(hashes1[keyRoot1], hashes2[keyRoot2], tree1, keyRoot1, tree2, keyRoot2);
+                    if (known != null && copyPaths(lmds1, lmds2, keyRoot1, keyRoot2, treeDistances, sizeTree2, known, true)) {
+                        continue;
+                    }
+                }
+                treeEditDistanceHelper(lmds1, lmds2, labelIds1, labelIds2, keyRoot1, keyRoot2,
+                        treeDistances, sizeTree2, alphabetSize2, workspace, workspace);
+                workspace.countSubproblems(1, (long) (keyRoot1 - lmds1[keyRoot1] + 2) * (keyRoot2 - lmds2[keyRoot2] + 2));
+                if (cached) {
+                    double[] computed = new double[pathLength(lmds1, keyRoot1) * pathLength(lmds2, keyRoot2)];
+                    copyPaths(lmds1, lmds2, keyRoot1, keyRoot2, treeDistances, sizeTree2, computed, false);
+                    cache.put(hashes1[keyRoot1], hashes2[keyRoot2], tree1, keyRoot1, tree2, keyRoot2, computed);
+                }
             }
         }
         return treeDistances;
     }
 
 
+    /**
+     * Work of the Zhang-Shasha kernel on a pair of trees, known before running it, e.g. to send the
+     * most expensive pairs to another engine, or to refuse them.
+     *
+     * @return number of forest distances computed by the Zhang-Shasha kernel (without cache nor threshold)
+     */
+    public static long estimateForestCells(CompactTree<?> tree1, CompactTree<?> tree2) {
+        return forestRows(tree1) * forestRows(tree2);
+    }
+
+
+    /**
+     * Number of keyroot pairs the Zhang-Shasha kernel runs on a pair of trees, known before running it.
+     *
+     * @return product of the numbers of keyroots of the trees
+     */
+    public static long estimateSubproblems(CompactTree<?> tree1, CompactTree<?> tree2) {
+        return (long) tree1.getKeyRoots().length * tree2.getKeyRoots().length;
+    }
+
+
+    /**
+     * @return sum over the keyroots of the sizes of their subtrees plus one
+     */
+    static long forestRows(CompactTree<?> tree) {
+        int[] lmds = tree.getLeftmostDescendants();
+        long rows = 0;
+        for (int keyRoot : tree.getKeyRoots()) {
+            rows += keyRoot - lmds[keyRoot] + 2;
+        }
+        return rows;
+    }
+
+
+    /**
+     * @return number of nodes on the leftmost path down from the keyroot
+     */
+    private static int pathLength(int[] lmds, int keyRoot) {
+        int length = 0;
+        for (int x = lmds[keyRoot]; x <= keyRoot; ++x) {
+            if (lmds[x] == lmds[keyRoot]) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+
+    /**
+     * Copies the tree distances written by a keyroot pair (all the pairs of nodes of the leftmost
+     * paths of the two keyroots, row-major) between the table and a flat array.
+     *
+     * @param toTable true to copy the array to the table, false for the other way around
+     * @return false if the array does not have one distance per pair (a collision of hashes)
+     */
+    private static boolean copyPaths(int[] lmds1, int[] lmds2, int keyRoot1, int keyRoot2,
+                                     double[] treeDistances, int sizeTree2, double[] paths, boolean toTable) {
+        if (paths.length != pathLength(lmds1, keyRoot1) * pathLength(lmds2, keyRoot2)) {
+            return false;
+        }
+        int index = 0;
+        for (int x = lmds1[keyRoot1]; x <= keyRoot1; ++x) {
+            if (lmds1[x] != lmds1[keyRoot1]) {
+                continue;
+            }
+            for (int y = lmds2[keyRoot2]; y <= keyRoot2; ++y) {
+                if (lmds2[y] != lmds2[keyRoot2]) {
+                    continue;
+                }
+                if (toTable) {
+                    treeDistances[x * sizeTree2 + y] = paths[index];
+                } else {
+                    paths[index] = treeDistances[x * sizeTree2 + y];
+                }
+                index += 1;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Identical trees are at distance 0 when substituting each of their labels by itself is free,
+     * which is checked once per distinct label.
+     */
+    boolean isFreeCopy(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        if (!tree1.isIdentical(tree2)) {
+            return false;
+        }
+        for (int i = 0; i != tree1.getAlphabetSize(); ++i) {
+            T label = tree1.getAlphabetLabel(i);
+            workspace.countCostCalls(1);
+            if (substitutionCost.getDistance(label, label) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Copies the flat dynamic programming table to a new two dimensional table.
+     */
+    private static double[][] toMatrix(double[] treeDistances, int sizeTree1, int sizeTree2) {
+        double[][] matrix = new double[sizeTree1][sizeTree2];
+        for (int i = 0; i != sizeTree1; ++i) {
+            System.arraycopy(treeDistances, i * sizeTree2, matrix[i], 0, sizeTree2);
+        }
+        return matrix;
+    }
+
+
+    /**
+     * Performs the tree edit distance calculation between two Ordered Labeled Trees.
+     *
+     * @param tree1 first whole tree to compare
+     * @param tree2 second whole tree to compare
+     * @return dynamic programming table (can be interpreted for matches, or just get the distance by
+     * looking at the last cell on the lower right.
+     */
+    public double[][] treeEditDistance(OrderedLabeledTree<T> tree1,
+                                       OrderedLabeledTree<T> tree2) {
+        return treeEditDistance(tree1.toCompactTree(), tree2.toCompactTree());
+    }
+
+
+    /**
+     * Performs the tree edit distance calculation between two Compact Trees.
+     *
+     * @param tree1 first whole tree to compare
+     * @param tree2 second whole tree to compare
+     * @return dynamic programming table, indexed by post-order indices
+     */
+    public double[][] treeEditDistance(CompactTree<T> tree1,
+                                       CompactTree<T> tree2) {
+        return toMatrix(treeEditDistance(tree1, tree2, workspaces.get()), tree1.size(), tree2.size());
+    }
+
+
+    /**
+     * Computes an optimal mapping between the nodes of two trees, and the edit script it stands for.
+     *
+     * @param tree1 first tree
+     * @param tree2 second tree
+     * @return mapping and edit script, on post-order indices
+     */
+    public EditMapping getEditMapping(OrderedLabeledTree<T> tree1,
+                                      OrderedLabeledTree<T> tree2) {
+        return getEditMapping(tree1.toCompactTree(), tree2.toCompactTree());
+    }
+
+
+    /**
+     * Computes an optimal mapping between the nodes of two compact trees, and the edit script it stands for.
+     * The subtree distances are computed by the Zhang-Shasha kernel, whatever the engine, then the mapping
+     * is backtracked through them (see EditMapping). Uses the workspace of the calling thread.
+     *
+     * @param tree1 first tree
+     * @param tree2 second tree
+     * @return mapping and edit script, on post-order indices
+     */
+    public EditMapping getEditMapping(CompactTree<T> tree1,
+                                      CompactTree<T> tree2) {
+        TedWorkspace workspace = workspaces.get();
+        prepareCosts(tree1, tree2, workspace);
+        return EditMapping.backtrace(tree1, tree2, keyRootPairs(tree1, tree2, workspace), workspace);
+    }
+
+
     /**
      * Computes the tree edit distance between two trees, according to the
      * cost functions specified in the tree edit distance declaration.
+     * Uses the workspace of the calling thread.
      *
      * @param tree1 first tree
      * @param tree2 second tree
@@ -161,8 +768,284 @@ public class TreeEditDistance<T> implements DistanceFunction<OrderedLabeledTree<
      */
     public double getDistance(OrderedLabeledTree<T> tree1,
                               OrderedLabeledTree<T> tree2) {
-        double[][] dynamicProgrammingTable = treeEditDistance(tree1, tree2);
-        return dynamicProgrammingTable[dynamicProgrammingTable.length - 1][dynamicProgrammingTable[0].length - 1];
+        return getDistance(tree1.toCompactTree(), tree2.toCompactTree(), workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two trees, using the given scratch memory.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param workspace scratch memory, reused across calls
+     * @return tree edit distance between the two trees
+     */
+    public double getDistance(OrderedLabeledTree<T> tree1,
+                              OrderedLabeledTree<T> tree2,
+                              TedWorkspace workspace) {
+        return getDistance(tree1.toCompactTree(), tree2.toCompactTree(), workspace);
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, according to the
+     * cost functions specified in the tree edit distance declaration.
+     * Uses the workspace of the calling thread.
+     *
+     * @param tree1 first tree
+     * @param tree2 second tree
+     * @return tree edit distance between the two trees
+     */
+    public double getDistance(CompactTree<T> tree1,
+                              CompactTree<T> tree2) {
+        return getDistance(tree1, tree2, workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, using the given scratch memory.
+     * Identical trees (checked through their subtree hashes, then node by node) are at distance 0 right
+     * away when substituting a label by itself is free. When all the costs are integers, the Zhang-Shasha
+     * kernel runs on short or int tables (see setIntegerKernel).
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param workspace scratch memory, reused across calls
+     * @return tree edit distance between the two trees
+     */
+    public double getDistance(CompactTree<T> tree1,
+                              CompactTree<T> tree2,
+                              TedWorkspace workspace) {
+        TedMetrics listener = metrics;
+        if (listener == null) {
+            return distance(tree1, tree2, workspace);
+        }
+        workspace.resetCounters();
+        long bytes = workspace.getAllocatedBytes();
+        long start = System.nanoTime();
+        double distance = distance(tree1, tree2, workspace);
+        record(listener, tree1, tree2, distance, workspace, bytes, start);
+        return distance;
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, using the given scratch memory.
+     */
+    double distance(CompactTree<T> tree1, CompactTree<T> tree2, TedWorkspace workspace) {
+        if (isFreeCopy(tree1, tree2, workspace)) {
+            return 0;
+        }
+        double[] dynamicProgrammingTable;
+        if (integerKernel && subtreeCache == null && runsZhangShasha(tree1, tree2)) {
+            prepareCosts(tree1, tree2, workspace);
+            long total = IntegerKernel.prepareCosts(tree1, tree2, workspace);
+            if (total != -1) {
+                return total <= Short.MAX_VALUE ? IntegerKernel.shortDistance(tree1, tree2, workspace)
+                        : IntegerKernel.intDistance(tree1, tree2, workspace);
+            }
+            dynamicProgrammingTable = keyRootPairs(tree1, tree2, workspace);
+        } else {
+            dynamicProgrammingTable = treeEditDistance(tree1, tree2, workspace);
+        }
+        return dynamicProgrammingTable[tree1.size() * tree2.size() - 1];
+    }
+
+    /**
+     * Computes the tree edit distance between two trees, if it is within the threshold.
+     * Uses the workspace of the calling thread.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param threshold largest distance of interest
+     * @return tree edit distance between the two trees, or EXCEEDS_THRESHOLD if it is greater than the threshold
+     */
+    public double getDistance(OrderedLabeledTree<T> tree1,
+                              OrderedLabeledTree<T> tree2,
+                              double threshold) {
+        return getDistance(tree1.toCompactTree(), tree2.toCompactTree(), threshold, workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, if it is within the threshold.
+     * Uses the workspace of the calling thread.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param threshold largest distance of interest
+     * @return tree edit distance between the two trees, or EXCEEDS_THRESHOLD if it is greater than the threshold
+     */
+    public double getDistance(CompactTree<T> tree1,
+                              CompactTree<T> tree2,
+                              double threshold) {
+        return getDistance(tree1, tree2, threshold, workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, if it is within the threshold.
+     * Pairs are first checked against cheap lower bounds (sizes and labels), then only the cells
+     * that can stay within the threshold are computed, and the computation stops as soon as a whole
+     * prefix of the first tree is too far from every prefix of the second tree.
+     * Always runs the Zhang-Shasha kernel, whatever the engine.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param threshold largest distance of interest
+     * @param workspace scratch memory, reused across calls
+     * @return tree edit distance between the two trees, or EXCEEDS_THRESHOLD if it is greater than the threshold
+     */
+    public double getDistance(CompactTree<T> tree1,
+                              CompactTree<T> tree2,
+                              double threshold,
+                              TedWorkspace workspace) {
+        TedMetrics listener = metrics;
+        if (listener == null) {
+            return boundedDistance(tree1, tree2, threshold, workspace);
+        }
+        workspace.resetCounters();
+        long bytes = workspace.getAllocatedBytes();
+        long start = System.nanoTime();
+        double distance = boundedDistance(tree1, tree2, threshold, workspace);
+        record(listener, tree1, tree2, distance, workspace, bytes, start);
+        return distance;
+    }
+
+
+    /**
+     * Computes the tree edit distance between two trees, unless the deadline expires first.
+     * Uses the workspace of the calling thread.
+     *
+     * @param tree1    first tree
+     * @param tree2    second tree
+     * @param deadline time limit of the computation, can be cancelled from another thread
+     * @return the tree edit distance, or bounds of it if the deadline expired
+     */
+    public DistanceResult getDistance(OrderedLabeledTree<T> tree1,
+                                      OrderedLabeledTree<T> tree2,
+                                      Deadline deadline) {
+        return getDistance(tree1.toCompactTree(), tree2.toCompactTree(), deadline, workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, unless the deadline expires first.
+     * Uses the workspace of the calling thread.
+     *
+     * @param tree1    first tree
+     * @param tree2    second tree
+     * @param deadline time limit of the computation, can be cancelled from another thread
+     * @return the tree edit distance, or bounds of it if the deadline expired
+     */
+    public DistanceResult getDistance(CompactTree<T> tree1,
+                                      CompactTree<T> tree2,
+                                      Deadline deadline) {
+        return getDistance(tree1, tree2, deadline, workspaces.get());
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, unless the deadline expires first.
+     * The deadline is checked between keyroot pairs (or path pairs, or wavefronts, depending on the
+     * engine), so the computation stops soon after it expires, except inside a single huge pair.
+     * It then returns the lower bound of the threshold variants (sizes and labels) and the cost of
+     * keeping only the roots mapped, both computed from the costs of the pair.
+     * Use estimateForestCells and estimateSubproblems to refuse or reroute the pairs that cannot
+     * complete in time, before running them.
+     *
+     * @param tree1     first tree
+     * @param tree2     second tree
+     * @param deadline  time limit of the computation, can be cancelled from another thread
+     * @param workspace scratch memory, reused across calls
+     * @return the tree edit distance, or bounds of it if the deadline expired
+     */
+    public DistanceResult getDistance(CompactTree<T> tree1,
+                                      CompactTree<T> tree2,
+                                      Deadline deadline,
+                                      TedWorkspace workspace) {
+        workspace.setDeadline(deadline);
+        try {
+            double distance = getDistance(tree1, tree2, workspace);
+            return new DistanceResult(true, distance, distance);
+        } catch (DeadlineExceededException e) {
+            // the costs were prepared before any keyroot pair ran
+            return new DistanceResult(false, lowerBound(tree1, tree2, workspace), upperBound(tree1, tree2, workspace));
+        } finally {
+            workspace.setDeadline(null);
+        }
+    }
+
+
+    /**
+     * Hands the statistics of a comparison, counted in the workspace, to the metrics.
+     */
+    private static void record(TedMetrics listener, CompactTree<?> tree1, CompactTree<?> tree2, double distance,
+                               TedWorkspace workspace, long bytesBefore, long start) {
+        long total = System.nanoTime() - start;
+        long preparation = Math.min(total, workspace.getPreparationNanos());
+        listener.record(new ComparisonStatistics(tree1.size(), tree2.size(), distance,
+                workspace.getSubproblems(), workspace.getForestCells(), workspace.getCostCalls(),
+                workspace.getAllocatedBytes() - bytesBefore, preparation, total - preparation));
+    }
+
+
+    /**
+     * Computes the tree edit distance between two compact trees, if it is within the threshold.
+     */
+    private double boundedDistance(CompactTree<T> tree1, CompactTree<T> tree2, double threshold, TedWorkspace workspace) {
+        if (isFreeCopy(tree1, tree2, workspace)) {
+            return threshold >= 0 ? 0 : EXCEEDS_THRESHOLD;
+        }
+        prepareCosts(tree1, tree2, workspace);
+        long start = metrics == null ? 0 : System.nanoTime();
+        double slack = threshold + Math.abs(threshold) * BOUND_TOLERANCE;
+        boolean bounded = lowerBound(tree1, tree2, workspace) <= slack;
+        if (metrics != null) {
+            workspace.countPreparation(System.nanoTime() - start);
+        }
+        if (!bounded) {
+            return EXCEEDS_THRESHOLD;
+        }
+
+        // widest band of forest distances that can stay within the threshold
+        int sizeTree1 = tree1.size();
+        int sizeTree2 = tree2.size();
+        double minimumDeletion = Double.POSITIVE_INFINITY;
+        double minimumInsertion = Double.POSITIVE_INFINITY;
+        double[] deletionCosts = workspace.deletionCosts(0);
+        double[] insertionCosts = workspace.insertionCosts(0);
+        for (int x = 0; x != sizeTree1; ++x) {
+            minimumDeletion = Math.min(minimumDeletion, deletionCosts[x]);
+        }
+        for (int y = 0; y != sizeTree2; ++y) {
+            minimumInsertion = Math.min(minimumInsertion, insertionCosts[y]);
+        }
+        // free deletions (or insertions) fit in any threshold, even 0 (where the quotient is NaN)
+        int bandDel = minimumDeletion == 0 ? sizeTree1 : (int) Math.min(sizeTree1, Math.floor(slack / minimumDeletion));
+        int bandIns = minimumInsertion == 0 ? sizeTree2 : (int) Math.min(sizeTree2, Math.floor(slack / minimumInsertion));
+
+        double[] treeDistances = workspace.treeDistances(sizeTree1 * sizeTree2);
+        workspace.forestDistance((sizeTree1 + 1) * (sizeTree2 + 1));
+        int[] lmds1 = tree1.getLeftmostDescendants();
+        int[] lmds2 = tree2.getLeftmostDescendants();
+        int[] labelIds1 = tree1.getLabelIds();
+        int[] labelIds2 = tree2.getLabelIds();
+        int alphabetSize2 = tree2.getAlphabetSize();
+        int[] keyRoots1 = tree1.getKeyRoots();
+        int[] keyRoots2 = tree2.getKeyRoots();
+        for (int i = 0; i != keyRoots1.length; ++i) {
+            for (int j = 0; j != keyRoots2.length; ++j) {
+                boolean wholeTrees = i == keyRoots1.length - 1 && j == keyRoots2.length - 1;
+                if (!boundedHelper(lmds1, lmds2, labelIds1, labelIds2, keyRoots1[i], keyRoots2[j],
+                        treeDistances, sizeTree2, alphabetSize2, workspace,
+                        threshold, bandDel, bandIns, wholeTrees)) {
+                    return EXCEEDS_THRESHOLD;
+                }
+            }
+        }
+        double distance = treeDistances[sizeTree1 * sizeTree2 - 1];
+        return distance <= threshold ? distance : EXCEEDS_THRESHOLD;
     }
 
 
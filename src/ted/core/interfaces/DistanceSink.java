@@ -0,0 +1,11 @@
+package ted.core.interfaces;
+
+/**
+ * Receives the distances of a batch computation, one pair at a time.
+ * Pairs come in no particular order, and from several threads at once,
+ * so implementations have to be thread safe.
+ */
+public interface DistanceSink {
+
+    void accept(int index1, int index2, double distance);
+}
@@ -0,0 +1,161 @@
+package ted.core.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Aggregates the statistics of all the comparisons of one or several engines: totals, and histograms
+ * of the time, work and memory of a comparison. Thread safe, so it can be shared by the engines of an
+ * application, and exported at any time in the Prometheus text format.
+ */
+public class AggregatingMetrics implements TedMetrics {
+
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong subproblems = new AtomicLong();
+    private final AtomicLong costCalls = new AtomicLong();
+    private final AtomicLong preparationNanos = new AtomicLong();
+    private final AtomicLong dynamicProgrammingNanos = new AtomicLong();
+    //
+    private final Histogram totalNanos = new Histogram();
+    private final Histogram forestCells = new Histogram();
+    private final Histogram allocatedBytes = new Histogram();
+
+
+    @Override
+    public void record(ComparisonStatistics statistics) {
+        comparisons.incrementAndGet();
+        subproblems.addAndGet(statistics.getSubproblems());
+        costCalls.addAndGet(statistics.getCostCalls());
+        preparationNanos.addAndGet(statistics.getPreparationNanos());
+        dynamicProgrammingNanos.addAndGet(statistics.getDynamicProgrammingNanos());
+        totalNanos.record(statistics.getTotalNanos());
+        forestCells.record(statistics.getForestCells());
+        allocatedBytes.record(statistics.getAllocatedBytes());
+    }
+
+
+    /**
+     * @return number of comparisons recorded
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+
+    /**
+     * @return number of keyroot pairs (or path pairs) run by all the comparisons
+     */
+    public long getSubproblems() {
+        return subproblems.get();
+    }
+
+
+    /**
+     * @return number of calls to the cost functions made by all the comparisons
+     */
+    public long getCostCalls() {
+        return costCalls.get();
+    }
+
+
+    /**
+     * @return time spent preparing the costs by all the comparisons
+     */
+    public long getPreparationNanos() {
+        return preparationNanos.get();
+    }
+
+
+    /**
+     * @return time spent in the dynamic program by all the comparisons
+     */
+    public long getDynamicProgrammingNanos() {
+        return dynamicProgrammingNanos.get();
+    }
+
+
+    /**
+     * @return histogram of the time of a comparison, in nanoseconds
+     */
+    public Histogram getTotalNanos() {
+        return totalNanos;
+    }
+
+
+    /**
+     * @return histogram of the number of forest distances computed by a comparison
+     */
+    public Histogram getForestCells() {
+        return forestCells;
+    }
+
+
+    /**
+     * @return histogram of the bytes allocated for the tables by a comparison
+     */
+    public Histogram getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+
+    /**
+     * Writes the metrics in the Prometheus text format, each name starting with the prefix.
+     *
+     * @param out    where the metrics are written
+     * @param prefix e.g. "ted"
+     */
+    public void export(Appendable out, String prefix) throws IOException {
+        counter(out, prefix + "_comparisons_total", comparisons.get());
+        counter(out, prefix + "_subproblems_total", subproblems.get());
+        counter(out, prefix + "_cost_calls_total", costCalls.get());
+        counter(out, prefix + "_preparation_nanoseconds_total", preparationNanos.get());
+        counter(out, prefix + "_dynamic_programming_nanoseconds_total", dynamicProgrammingNanos.get());
+        histogram(out, prefix + "_comparison_nanoseconds", totalNanos);
+        histogram(out, prefix + "_forest_cells", forestCells);
+        histogram(out, prefix + "_allocated_bytes", allocatedBytes);
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            export(builder, "ted");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * Writes a counter in the Prometheus text format.
+     */
+    public static void counter(Appendable out, String name, long value) throws IOException {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(String.valueOf(value)).append('\n');
+    }
+
+
+    /**
+     * Writes a histogram in the Prometheus text format: cumulative buckets, up to the highest non empty one.
+     */
+    public static void histogram(Appendable out, String name, Histogram histogram) throws IOException {
+        long[] counts = histogram.getBucketCounts();
+        int last = 0;
+        for (int b = 0; b != counts.length; ++b) {
+            last = counts[b] != 0 ? b : last;
+        }
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long cumulative = 0;
+        for (int b = 0; b <= last; ++b) {
+            cumulative += counts[b];
+            out.append(name).append("_bucket{le=\"").append(String.valueOf(Histogram.getBucketBound(b)))
+                    .append("\"} ").append(String.valueOf(cumulative)).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(String.valueOf(cumulative)).append('\n');
+        out.append(name).append("_sum ").append(String.valueOf(histogram.getSum())).append('\n');
+        out.append(name).append("_count ").append(String.valueOf(cumulative)).append('\n');
+    }
+}
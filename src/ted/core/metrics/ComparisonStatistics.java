@@ -0,0 +1,114 @@
+package ted.core.metrics;
+
+/**
+ * Work, memory and time of the comparison of a pair of trees.
+ * <p>
+ * The subproblems are the keyroot pairs for the Zhang-Shasha kernels (the path pairs for the robust
+ * engine), and the forest cells the forest distances they computed: the work of the dynamic program,
+ * which explains its time. Pairs found in a subtree cache, and cells outside the band of a threshold,
+ * are not computed, so not counted. Identical trees are at distance 0 without any work.
+ */
+public final class ComparisonStatistics {
+
+    private final int sizeTree1;
+    private final int sizeTree2;
+    private final double distance;
+    private final long subproblems;
+    private final long forestCells;
+    private final long costCalls;
+    private final long allocatedBytes;
+    private final long preparationNanos;
+    private final long dynamicProgrammingNanos;
+
+    public ComparisonStatistics(int sizeTree1, int sizeTree2, double distance, long subproblems,
+                                long forestCells, long costCalls, long allocatedBytes,
+                                long preparationNanos, long dynamicProgrammingNanos) {
+        this.sizeTree1 = sizeTree1;
+        this.sizeTree2 = sizeTree2;
+        this.distance = distance;
+        this.subproblems = subproblems;
+        this.forestCells = forestCells;
+        this.costCalls = costCalls;
+        this.allocatedBytes = allocatedBytes;
+        this.preparationNanos = preparationNanos;
+        this.dynamicProgrammingNanos = dynamicProgrammingNanos;
+    }
+
+    /**
+     * @return number of nodes of the first tree
+     */
+    public int getSizeTree1() {
+        return sizeTree1;
+    }
+
+    /**
+     * @return number of nodes of the second tree
+     */
+    public int getSizeTree2() {
+        return sizeTree2;
+    }
+
+    /**
+     * @return the distance returned (EXCEEDS_THRESHOLD when above the threshold)
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return number of keyroot pairs (or path pairs) run
+     */
+    public long getSubproblems() {
+        return subproblems;
+    }
+
+    /**
+     * @return number of forest distances computed
+     */
+    public long getForestCells() {
+        return forestCells;
+    }
+
+    /**
+     * @return number of calls to the cost functions
+     */
+    public long getCostCalls() {
+        return costCalls;
+    }
+
+    /**
+     * @return bytes by which the tables of the workspace grew (0 once it is warm)
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return time spent preparing the costs (and checking the lower bounds, with a threshold)
+     */
+    public long getPreparationNanos() {
+        return preparationNanos;
+    }
+
+    /**
+     * @return time spent in the dynamic program
+     */
+    public long getDynamicProgrammingNanos() {
+        return dynamicProgrammingNanos;
+    }
+
+    /**
+     * @return time of the whole comparison
+     */
+    public long getTotalNanos() {
+        return preparationNanos + dynamicProgrammingNanos;
+    }
+
+    @Override
+    public String toString() {
+        return sizeTree1 + " x " + sizeTree2 + " nodes: distance " + distance + ", " + subproblems
+                + " subproblems, " + forestCells + " forest cells, " + costCalls + " cost calls, "
+                + allocatedBytes + " bytes allocated, " + preparationNanos + "ns preparing, "
+                + dynamicProgrammingNanos + "ns computing";
+    }
+}
@@ -0,0 +1,101 @@
+package ted.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of non negative values with power of two buckets: bucket b counts the values in
+ * [2^(b-1), 2^b - 1], bucket 0 counts the zeros. Precise enough to tell 2ms from 20s, cheap enough
+ * to be updated by every comparison. Thread safe, without locks.
+ */
+public final class Histogram {
+
+    static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * @param value value to count, negative values count as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long previous = max.get();
+        while (value > previous && !max.compareAndSet(previous, value)) {
+            previous = max.get();
+        }
+    }
+
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * @return sum of the values recorded
+     */
+    public long getSum() {
+        return sum.get();
+    }
+
+
+    /**
+     * @return largest value recorded, 0 if there is none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * @return number of values in each bucket
+     */
+    public long[] getBucketCounts() {
+        long[] copy = new long[BUCKETS];
+        for (int b = 0; b != BUCKETS; ++b) {
+            copy[b] = counts.get(b);
+        }
+        return copy;
+    }
+
+
+    /**
+     * @return largest value of the bucket
+     */
+    public static long getBucketBound(int bucket) {
+        return bucket == 0 ? 0 : bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+
+    /**
+     * @param quantile between 0 and 1
+     * @return upper bound of the bucket holding the quantile (at most twice the actual value), 0 if empty
+     */
+    public long getQuantile(double quantile) {
+        long[] buckets = getBucketCounts();
+        long total = 0;
+        for (long bucket : buckets) {
+            total += bucket;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int b = 0; b != BUCKETS; ++b) {
+            seen += buckets[b];
+            if (seen >= rank && seen != 0) {
+                return Math.min(getBucketBound(b), getMax());
+            }
+        }
+        return 0;
+    }
+}
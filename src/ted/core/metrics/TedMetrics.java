@@ -0,0 +1,15 @@
+package ted.core.metrics;
+
+/**
+ * Receives what each comparison of a tree edit distance engine cost (see TreeEditDistance.setMetrics).
+ * Called on the thread that made the comparison, once it is done: an engine shared between threads
+ * needs a thread safe implementation. While an engine has no metrics, no clock is read and nothing
+ * is allocated: the work is only counted in the workspace, a few additions per keyroot pair.
+ */
+public interface TedMetrics {
+
+    /**
+     * @param statistics work, memory and time of one comparison
+     */
+    void record(ComparisonStatistics statistics);
+}
@@ -0,0 +1,396 @@
+package ted.core.repr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Single pass parser for trees in bracket notation, e.g. "{a{b}{c}}", building compact trees directly.
+ * <p>
+ * The characters are read by chunks from a Reader, a CharBuffer or a memory-mapped file, and each
+ * tree is built without any intermediate string: the parents are recorded while the brackets are
+ * read, and the labels are copied to a reused buffer, then looked up in a table of the labels already
+ * seen so a label repeated across the input is only allocated once.
+ * <p>
+ * Several trees can follow each other, separated by whitespace (e.g. one tree per line), and are read
+ * one at a time, so a file of any size streams through a constant amount of memory besides the largest tree.
+ * As an Iterator, I/O errors are rethrown as IllegalStateException; read() gives them as they are.
+ * A parser is not thread safe.
+ */
+public final class BracketParser implements Iterator<CompactTree<String>>, Closeable {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    // bytes of the file mapped at a time
+    private static final int WINDOW_SIZE = 1 << 26;
+    // largest number of distinct labels kept for reuse
+    private static final int MAX_INTERNED = 1 << 16;
+
+    private final Source source;
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    //
+    private char[] label = new char[16];
+    private String[] interned = new String[64];
+    private int internedCount = 0;
+    // indexed by pre-order index, reused from one tree to the next
+    private int[] preOrderParents = new int[64];
+    private int[] postOrderIndices = new int[64];
+    private String[] preOrderLabels = new String[64];
+    private int[] stack = new int[64];
+    //
+    private CompactTree<String> next;
+
+
+    /**
+     * @param reader trees in bracket notation, read by chunks
+     */
+    public BracketParser(final Reader reader) {
+        source = new Source() {
+            @Override
+            public int fill(char[] buffer) throws IOException {
+                return reader.read(buffer);
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+        };
+    }
+
+
+    /**
+     * @param characters trees in bracket notation, read from the current position to the limit
+     */
+    public BracketParser(final CharBuffer characters) {
+        source = new Source() {
+            @Override
+            public int fill(char[] buffer) {
+                int length = Math.min(buffer.length, characters.remaining());
+                if (length == 0) {
+                    return -1;
+                }
+                characters.get(buffer, 0, length);
+                return length;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+
+    /**
+     * @param channel file of trees in bracket notation, memory-mapped one window at a time
+     * @param charset encoding of the file
+     */
+    public BracketParser(FileChannel channel, Charset charset) {
+        source = new MappedSource(channel, charset.newDecoder());
+    }
+
+
+    /**
+     * Parses a single tree.
+     *
+     * @param brackets bracket notation of the tree e.g. "{a{b}{c}}"
+     * @return the compact tree
+     */
+    public static CompactTree<String> parse(CharSequence brackets) {
+        BracketParser parser = new BracketParser(CharBuffer.wrap(brackets));
+        try {
+            CompactTree<String> tree = parser.read();
+            if (tree == null || parser.read() != null) {
+                throw new IllegalArgumentException("Expected exactly one tree " + brackets);
+            }
+            return tree;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * Reads the next tree.
+     *
+     * @return the tree, or null at the end of the input
+     * @throws IllegalArgumentException if the input is not a sequence of well formed trees
+     */
+    public CompactTree<String> read() throws IOException {
+        if (next != null) {
+            CompactTree<String> tree = next;
+            next = null;
+            return tree;
+        }
+
+        // trees are separated by whitespace
+        int c = nextChar();
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = nextChar();
+        }
+        if (c == -1) {
+            return null;
+        }
+        if (c != '{') {
+            throw new IllegalArgumentException("Expected '{' but found '" + (char) c + "'");
+        }
+
+        // parents are first recorded by pre-order index, the post-order index of a node is only known once it is closed
+        int top = 0;
+        int preOrderCount = 0;
+        int postOrderCount = 0;
+        while (true) {
+            if (c == '{') {      // open a new node, push it, and read its label
+                if (preOrderCount == preOrderParents.length) {
+                    grow();
+                }
+                preOrderParents[preOrderCount] = top == 0 ? -1 : stack[top - 1];
+                stack[top] = preOrderCount;
+                top += 1;
+                int length = 0;
+                c = nextChar();
+                while (c != '{' && c != '}' && c != -1) {
+                    if (length == label.length) {
+                        label = Arrays.copyOf(label, 2 * length);
+                    }
+                    label[length] = (char) c;
+                    length += 1;
+                    c = nextChar();
+                }
+                preOrderLabels[preOrderCount] = intern(label, length);
+                preOrderCount += 1;
+            } else if (c == '}') {    // close the current node, pop it
+                top -= 1;
+                postOrderIndices[stack[top]] = postOrderCount;
+                postOrderCount += 1;
+                if (top == 0) {
+                    break;
+                }
+                // whitespace between siblings is ignored
+                c = nextChar();
+                while (c != -1 && Character.isWhitespace(c)) {
+                    c = nextChar();
+                }
+            } else {
+                throw new IllegalArgumentException(c == -1
+                        ? "This structure seems unbalanced, the input ends within a tree"
+                        : "Expected '{' or '}' but found '" + (char) c + "'");
+            }
+        }
+
+        int size = preOrderCount;
+        int[] parents = new int[size];
+        Object[] labels = new Object[size];
+        for (int pre = 0; pre != size; ++pre) {
+            int post = postOrderIndices[pre];
+            labels[post] = preOrderLabels[pre];
+            parents[post] = preOrderParents[pre] == -1 ? -1 : postOrderIndices[preOrderParents[pre]];
+        }
+        Arrays.fill(preOrderLabels, 0, size, null);
+        return new CompactTree<>(parents, labels);
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = read();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the trees", e);
+            }
+        }
+        return next != null;
+    }
+
+
+    @Override
+    public CompactTree<String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        CompactTree<String> tree = next;
+        next = null;
+        return tree;
+    }
+
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+
+    /**
+     * @return the next character, or -1 at the end of the input
+     */
+    private int nextChar() throws IOException {
+        if (position == limit) {
+            int read = source.fill(chunk);
+            while (read == 0) {
+                read = source.fill(chunk);
+            }
+            if (read == -1) {
+                return -1;
+            }
+            position = 0;
+            limit = read;
+        }
+        char c = chunk[position];
+        position += 1;
+        return c;
+    }
+
+
+    private void grow() {
+        int length = 2 * preOrderParents.length;
+        preOrderParents = Arrays.copyOf(preOrderParents, length);
+        postOrderIndices = Arrays.copyOf(postOrderIndices, length);
+        preOrderLabels = Arrays.copyOf(preOrderLabels, length);
+        stack = Arrays.copyOf(stack, length);
+    }
+
+
+    /**
+     * Looks the characters up in the labels already seen (open addressing, linear probing).
+     *
+     * @return the label already seen with these characters, or a new one
+     */
+    private String intern(char[] characters, int length) {
+        int hash = 0;
+        for (int i = 0; i != length; ++i) {
+            hash = 31 * hash + characters[i];
+        }
+        int mask = interned.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (interned[slot] != null) {
+            String candidate = interned[slot];
+            if (candidate.hashCode() == hash && candidate.length() == length && sameCharacters(candidate, characters)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String created = new String(characters, 0, length);
+        if (internedCount < MAX_INTERNED) {
+            interned[slot] = created;
+            internedCount += 1;
+            if (2 * internedCount > interned.length) {
+                rehash();
+            }
+        }
+        return created;
+    }
+
+
+    private static boolean sameCharacters(String candidate, char[] characters) {
+        for (int i = 0; i != candidate.length(); ++i) {
+            if (candidate.charAt(i) != characters[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private void rehash() {
+        String[] old = interned;
+        interned = new String[2 * old.length];
+        int mask = interned.length - 1;
+        for (String label : old) {
+            if (label != null) {
+                int hash = label.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (interned[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                interned[slot] = label;
+            }
+        }
+    }
+
+
+    /**
+     * Where the characters come from.
+     */
+    private interface Source {
+        /**
+         * @return number of characters written at the start of the buffer, or -1 at the end of the input
+         */
+        int fill(char[] buffer) throws IOException;
+
+        void close() throws IOException;
+    }
+
+
+    /**
+     * Decodes a file through a window of it mapped in memory, moved forward as it is consumed.
+     */
+    private static final class MappedSource implements Source {
+        private final FileChannel channel;
+        private final CharsetDecoder decoder;
+        private final long size;
+        // file offset of the start of the window
+        private long offset;
+        private ByteBuffer window;
+        private boolean flushed = false;
+
+        MappedSource(FileChannel channel, CharsetDecoder decoder) {
+            this.channel = channel;
+            this.decoder = decoder;
+            try {
+                size = channel.size();
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read the size of the file", e);
+            }
+        }
+
+        @Override
+        public int fill(char[] buffer) throws IOException {
+            if (flushed) {
+                return -1;
+            }
+            CharBuffer out = CharBuffer.wrap(buffer);
+            while (out.position() == 0) {
+                // move the window forward, keeping the bytes of a character cut at its end
+                if (window == null || (window.remaining() < 16 && offset + window.limit() < size)) {
+                    offset += window == null ? 0 : window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, size - offset));
+                }
+                boolean endOfInput = offset + window.limit() == size;
+                CoderResult result = decoder.decode(window, out, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                if (endOfInput && !window.hasRemaining()) {
+                    decoder.flush(out);
+                    flushed = true;
+                    return out.position() == 0 ? -1 : out.position();
+                }
+            }
+            return out.position();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,638 @@
+package ted.core.repr;
+
+
+import ted.core.util.Verifier;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+
+
+/**
+ * Ordered Labeled Tree stored as flat primitive arrays instead of a graph of Node objects.
+ * All the nodes are identified by their post-order index, so the arrays can be handed
+ * directly to the tree edit distance without any further preprocessing.
+ * Building one allocates a handful of arrays per tree, never an object per node.
+ * Labels are interned: each node holds the dense id of its label in the alphabet of the tree,
+ * so equal labels are stored once and costs can be computed once per distinct label.
+ *
+ * @param <T> type of the labels
+ */
+public class CompactTree<T> {
+
+    private final int size;
+    //
+    private final int[] parents;
+    private final int[] firstChildren;
+    private final int[] nextSiblings;
+    private final int[] postOrderIndices;
+    //
+    private final int[] leftmostDescendants;
+    private final int[] keyRoots;
+    //
+    private final int[] labelIds;
+    private final Object[] alphabet;
+    // computed on demand, volatile so that a tree shared between threads only ever shows them complete
+    private volatile long[] subtreeHashes;
+    private volatile long[] binaryBranches;
+    private volatile PqGrams pqGrams;
+
+    // hash of the empty label padding the binary branches and the pq-grams
+    private static final long EMPTY_LABEL = 0x6A09E667F3BCC909L;
+    private static final long PQ_GRAM_MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+
+    /**
+     * Compact Ordered Labeled Tree, built in a single pass over the brackets.
+     *
+     * @param brackets       bracket notation that specifies the topology of the tree, e.g. (()()(()()))
+     *                       (same format as the Ordered Labeled Tree constructor).
+     * @param preOrderLabels labels of the tree, organized in a pre-order fashion.
+     */
+    public CompactTree(String brackets, List<T> preOrderLabels) throws IllegalArgumentException {
+        // check that the tree is really a tree, and is balanced
+        if (!Verifier.isValidTreeStructure(brackets) || brackets.length() != 2 * preOrderLabels.size()) {
+            throw new IllegalArgumentException("This structure seems unbalanced " + brackets);
+        }
+
+        size = preOrderLabels.size();
+        parents = new int[size];
+        firstChildren = new int[size];
+        nextSiblings = new int[size];
+        postOrderIndices = new int[size];
+        Object[] labels = new Object[size];
+
+        // parents are first recorded by pre-order index (nextSiblings is used as scratch space),
+        // the post-order index of a node is only known once it is closed
+        int[] stack = firstChildren;
+        int[] preOrderParents = nextSiblings;
+        int top = 0;
+        int preOrderCount = 0;
+        int postOrderCount = 0;
+        for (int i = 0; i != brackets.length(); ++i) {
+            if (brackets.charAt(i) == '(')      // open a new node, push it
+            {
+                preOrderParents[preOrderCount] = top == 0 ? -1 : stack[top - 1];
+                stack[top] = preOrderCount;
+                top += 1;
+                preOrderCount += 1;
+            } else                              // close the current node, pop it
+            {
+                top -= 1;
+                postOrderIndices[stack[top]] = postOrderCount;
+                postOrderCount += 1;
+            }
+            if (top == 0 && i != brackets.length() - 1) {
+                throw new IllegalArgumentException("This structure is a forest " + brackets);
+            }
+        }
+
+        for (int pre = 0; pre != size; ++pre) {
+            int post = postOrderIndices[pre];
+            labels[post] = preOrderLabels.get(pre);
+            parents[post] = preOrderParents[pre] == -1 ? -1 : postOrderIndices[preOrderParents[pre]];
+        }
+
+        linkChildren(parents, firstChildren, nextSiblings);
+        leftmostDescendants = computeLeftmostDescendants(firstChildren);
+        keyRoots = computeKeyRoots(parents, firstChildren);
+        labelIds = new int[size];
+        alphabet = internLabels(labels, labelIds);
+    }
+
+
+    /**
+     * Builds the tree from its parent array, nodes being numbered in post-order.
+     *
+     * @param parents post-order index of the parent of each node, -1 for the root
+     * @param labels  labels of the tree, in post-order traversal order
+     */
+    CompactTree(int[] parents, Object[] labels) {
+        this.size = parents.length;
+        this.parents = parents;
+        labelIds = new int[size];
+        alphabet = internLabels(labels, labelIds);
+        firstChildren = new int[size];
+        nextSiblings = new int[size];
+        linkChildren(parents, firstChildren, nextSiblings);
+        leftmostDescendants = computeLeftmostDescendants(firstChildren);
+        keyRoots = computeKeyRoots(parents, firstChildren);
+        postOrderIndices = computePostOrderIndices(firstChildren, nextSiblings, leftmostDescendants);
+    }
+
+
+    /**
+     * Builds a tree from its parent array, nodes being numbered in post-order (the nodes of each
+     * subtree come right before its root), e.g. a tree edited by a program.
+     *
+     * @param parents         post-order index of the parent of each node, -1 for the root (the last node)
+     * @param postOrderLabels labels of the tree, in post-order traversal order
+     * @throws IllegalArgumentException if the nodes are not numbered in post-order
+     */
+    public static <T> CompactTree<T> fromParents(int[] parents, List<T> postOrderLabels) throws IllegalArgumentException {
+        int size = parents.length;
+        if (size == 0 || size != postOrderLabels.size() || parents[size - 1] != -1) {
+            throw new IllegalArgumentException("A tree needs one label per node, and its root last");
+        }
+        for (int i = 0; i != size - 1; ++i) {
+            if (parents[i] <= i || parents[i] >= size) {
+                throw new IllegalArgumentException("The parent of node " + i + " does not come after it");
+            }
+        }
+        // each child starts right after its left sibling, and the last child ends right before its parent
+        int[] firstChildren = new int[size];
+        int[] nextSiblings = new int[size];
+        linkChildren(parents, firstChildren, nextSiblings);
+        int[] leftmostDescendants = computeLeftmostDescendants(firstChildren);
+        for (int i = 0; i != size; ++i) {
+            boolean contiguous = nextSiblings[i] != -1 ? leftmostDescendants[nextSiblings[i]] == i + 1
+                    : parents[i] == -1 || parents[i] == i + 1;
+            if (!contiguous) {
+                throw new IllegalArgumentException("The nodes are not numbered in post-order");
+            }
+        }
+        return new CompactTree<>(parents.clone(), postOrderLabels.toArray());
+    }
+
+
+    /**
+     * Rebuilds a tree from all of its arrays, as they were preprocessed before (e.g. stored in a corpus).
+     * Nothing is checked nor computed.
+     */
+    CompactTree(int[] parents, int[] firstChildren, int[] nextSiblings, int[] postOrderIndices,
+                int[] leftmostDescendants, int[] keyRoots, int[] labelIds, Object[] alphabet) {
+        this.size = parents.length;
+        this.parents = parents;
+        this.firstChildren = firstChildren;
+        this.nextSiblings = nextSiblings;
+        this.postOrderIndices = postOrderIndices;
+        this.leftmostDescendants = leftmostDescendants;
+        this.keyRoots = keyRoots;
+        this.labelIds = labelIds;
+        this.alphabet = alphabet;
+    }
+
+
+    /**
+     * Gives a dense id to each distinct label, in order of first appearance.
+     *
+     * @param labels   labels of the nodes
+     * @param labelIds filled with the id of the label of each node
+     * @return the distinct labels, indexed by id
+     */
+    private static Object[] internLabels(Object[] labels, int[] labelIds) {
+        HashMap<Object, Integer> ids = new HashMap<>();
+        Object[] alphabet = new Object[labels.length];
+        for (int i = 0; i != labels.length; ++i) {
+            Integer id = ids.get(labels[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(labels[i], id);
+                alphabet[id] = labels[i];
+            }
+            labelIds[i] = id;
+        }
+        return Arrays.copyOf(alphabet, ids.size());
+    }
+
+
+    /**
+     * Fills the first child and next sibling arrays from the parent array.
+     * Children have smaller post-order indices than their parent, and siblings are numbered
+     * from left to right, so going backward prepends each child in front of its right siblings.
+     */
+    static void linkChildren(int[] parents, int[] firstChildren, int[] nextSiblings) {
+        Arrays.fill(firstChildren, -1);
+        for (int i = parents.length - 1; i != -1; --i) {
+            int parent = parents[i];
+            if (parent == -1) {
+                nextSiblings[i] = -1;
+            } else {
+                nextSiblings[i] = firstChildren[parent];
+                firstChildren[parent] = i;
+            }
+        }
+    }
+
+
+    /**
+     * The leftmost descendant of a node is the leftmost descendant of its first child,
+     * which has a smaller post-order index, so a single forward pass is enough.
+     */
+    static int[] computeLeftmostDescendants(int[] firstChildren) {
+        int[] leftmostDescendants = new int[firstChildren.length];
+        for (int i = 0; i != firstChildren.length; ++i) {
+            leftmostDescendants[i] = firstChildren[i] == -1 ? i : leftmostDescendants[firstChildren[i]];
+        }
+        return leftmostDescendants;
+    }
+
+
+    /**
+     * The keyRoots are the root and all the nodes that have a left sibling, i.e. the
+     * highest node for each distinct leftmost descendant. They come out sorted.
+     */
+    static int[] computeKeyRoots(int[] parents, int[] firstChildren) {
+        int count = 0;
+        for (int i = 0; i != parents.length; ++i) {
+            if (parents[i] == -1 || firstChildren[parents[i]] != i) {
+                count += 1;
+            }
+        }
+        int[] keyRoots = new int[count];
+        int index = 0;
+        for (int i = 0; i != parents.length; ++i) {
+            if (parents[i] == -1 || firstChildren[parents[i]] != i) {
+                keyRoots[index] = i;
+                index += 1;
+            }
+        }
+        return keyRoots;
+    }
+
+
+    /**
+     * Maps pre-order indices to post-order indices. The pre-order index of the first child is
+     * the one of its parent plus one, and each following sibling comes right after the subtree
+     * of the previous one. Parents have larger post-order indices, so going backward is enough.
+     */
+    private static int[] computePostOrderIndices(int[] firstChildren, int[] nextSiblings, int[] leftmostDescendants) {
+        int size = firstChildren.length;
+        int[] preOrderIndices = new int[size];
+        int[] postOrderIndices = new int[size];
+        for (int i = size - 1; i != -1; --i) {
+            int pre = preOrderIndices[i] + 1;
+            for (int child = firstChildren[i]; child != -1; child = nextSiblings[child]) {
+                preOrderIndices[child] = pre;
+                pre += child - leftmostDescendants[child] + 1;
+            }
+            postOrderIndices[preOrderIndices[i]] = i;
+        }
+        return postOrderIndices;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return number of nodes in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * getter
+     *
+     * @return post-order index of the root
+     */
+    public int getRoot() {
+        return size - 1;
+    }
+
+    /**
+     * getter
+     *
+     * @return post-order index of the parent of each node, -1 for the root
+     */
+    public int[] getParents() {
+        return parents;
+    }
+
+    /**
+     * getter
+     *
+     * @return post-order index of the first child of each node, -1 for the leaves
+     */
+    public int[] getFirstChildren() {
+        return firstChildren;
+    }
+
+    /**
+     * getter
+     *
+     * @return post-order index of the next sibling of each node, -1 for the last children
+     */
+    public int[] getNextSiblings() {
+        return nextSiblings;
+    }
+
+    /**
+     * getter
+     *
+     * @return post-order index of each node, indexed by its pre-order index
+     */
+    public int[] getPostOrderIndices() {
+        return postOrderIndices;
+    }
+
+    /**
+     * getter
+     *
+     * @return leftmost descendants for each of the nodes
+     */
+    public int[] getLeftmostDescendants() {
+        return leftmostDescendants;
+    }
+
+    /**
+     * getter
+     *
+     * @return the keyRoots of the tree
+     */
+    public int[] getKeyRoots() {
+        return keyRoots;
+    }
+
+    /**
+     * getter
+     *
+     * @param postOrderIndex post-order index of the node
+     * @return label of the node
+     */
+    @SuppressWarnings("unchecked")
+    public T getLabel(int postOrderIndex) {
+        return (T) alphabet[labelIds[postOrderIndex]];
+    }
+
+    /**
+     * getter
+     *
+     * @return id of the label of each node, in post-order traversal order
+     */
+    public int[] getLabelIds() {
+        return labelIds;
+    }
+
+    /**
+     * getter
+     *
+     * @return number of distinct labels in the tree
+     */
+    public int getAlphabetSize() {
+        return alphabet.length;
+    }
+
+    /**
+     * getter
+     *
+     * @param labelId id of the label
+     * @return the label having this id
+     */
+    @SuppressWarnings("unchecked")
+    public T getAlphabetLabel(int labelId) {
+        return (T) alphabet[labelId];
+    }
+
+    /**
+     * Merkle hash of each subtree: it depends on the label of the node and, in order, on the hashes of
+     * its children, so identical subtrees (same shape and labels) get the same hash, in any tree.
+     * Distinct subtrees get distinct hashes with high probability (64 bits, not a guarantee).
+     * Computed on the first call, children before their parent (concurrent first calls may each compute it).
+     *
+     * @return hash of the subtree of each node, in post-order traversal order
+     */
+    public long[] getSubtreeHashes() {
+        long[] cached = subtreeHashes;
+        if (cached == null) {
+            long[] labels = labelHashes();
+            long[] hashes = new long[size];
+            for (int x = 0; x != size; ++x) {
+                long hash = labels[labelIds[x]];
+                for (int child = firstChildren[x]; child != -1; child = nextSiblings[child]) {
+                    hash = mix(hash * 31 + hashes[child]);
+                }
+                hashes[x] = mix(hash + x - leftmostDescendants[x]);
+            }
+            subtreeHashes = cached = hashes;
+        }
+        return cached;
+    }
+
+
+    /**
+     * Bag of the binary branches of the tree, hashed. In the binary tree (first child on the left,
+     * next sibling on the right), each node gives the branch made of its label and the labels of its
+     * two children, a missing child being an empty label. Labels are hashed, so the profiles of
+     * different trees can be compared without a shared dictionary.
+     * Computed on the first call.
+     *
+     * @return hash of the branch of each node, sorted
+     */
+    public long[] getBinaryBranches() {
+        long[] cached = binaryBranches;
+        if (cached == null) {
+            long[] hashes = labelHashes();
+            long[] branches = new long[size];
+            for (int x = 0; x != size; ++x) {
+                long left = firstChildren[x] == -1 ? EMPTY_LABEL : hashes[labelIds[firstChildren[x]]];
+                long right = nextSiblings[x] == -1 ? EMPTY_LABEL : hashes[labelIds[nextSiblings[x]]];
+                branches[x] = mix((hashes[labelIds[x]] * 31 + left) * 31 + right);
+            }
+            Arrays.sort(branches);
+            binaryBranches = cached = branches;
+        }
+        return cached;
+    }
+
+
+    /**
+     * Bag of the pq-grams of the tree, hashed. The tree is extended with p - 1 empty ancestors above
+     * the root, q empty children below each leaf, and q - 1 empty children before the first and after
+     * the last child of the other nodes. A pq-gram is a node with its p - 1 nearest ancestors (the
+     * stem) and q consecutive children (the base) in the extended tree: a leaf has one, a node with
+     * k children has k + q - 1.
+     * The profile of the last (p, q) asked for is kept.
+     *
+     * @param p length of the stem, at least 1
+     * @param q length of the base, at least 1
+     * @return hash of each pq-gram, sorted
+     */
+    public long[] getPqGrams(int p, int q) {
+        if (p < 1 || q < 1) {
+            throw new IllegalArgumentException("Invalid pq-gram shape " + p + ", " + q);
+        }
+        PqGrams cached = pqGrams;
+        if (cached != null && cached.p == p && cached.q == q) {
+            return cached.hashes;
+        }
+        long[] hashes = labelHashes();
+        long[] stemLabels = new long[p];
+        long[] base = new long[q];
+        long[] grams = new long[pqGramCount(q)];
+        int count = 0;
+        for (int x = 0; x != size; ++x) {
+            // the stem, from the farthest ancestor down to the node
+            int ancestor = x;
+            for (int i = p - 1; i >= 0; --i) {
+                stemLabels[i] = ancestor == -1 ? EMPTY_LABEL : hashes[labelIds[ancestor]];
+                ancestor = ancestor == -1 ? -1 : parents[ancestor];
+            }
+            long stem = 0;
+            for (long label : stemLabels) {
+                stem = stem * PQ_GRAM_MULTIPLIER + label;
+            }
+            // slides the base over the children, padded with q - 1 empty labels on each side
+            // (a leaf only has a base of q empty labels)
+            Arrays.fill(base, EMPTY_LABEL);
+            int next = 0;
+            if (firstChildren[x] == -1) {
+                grams[count++] = pqGram(stem, base, next);
+                continue;
+            }
+            for (int child = firstChildren[x]; child != -1; child = nextSiblings[child]) {
+                base[next] = hashes[labelIds[child]];
+                next = next + 1 == q ? 0 : next + 1;
+                grams[count++] = pqGram(stem, base, next);
+            }
+            for (int pad = 1; pad != q; ++pad) {
+                base[next] = EMPTY_LABEL;
+                next = next + 1 == q ? 0 : next + 1;
+                grams[count++] = pqGram(stem, base, next);
+            }
+        }
+        Arrays.sort(grams);
+        pqGrams = new PqGrams(p, q, grams);
+        return grams;
+    }
+
+
+    /**
+     * @return number of pq-grams of the tree
+     */
+    private int pqGramCount(int q) {
+        int count = 0;
+        for (int x = 0; x != size; ++x) {
+            count += firstChildren[x] == -1 ? 1 : q - 1;
+        }
+        // and each child adds one window to its parent
+        return count + size - 1;
+    }
+
+
+    /**
+     * Hash of a stem followed by a base, stored circularly from its oldest label at first.
+     */
+    private static long pqGram(long stem, long[] base, int first) {
+        long hash = stem;
+        for (int i = 0; i != base.length; ++i) {
+            hash = hash * PQ_GRAM_MULTIPLIER + base[(first + i) % base.length];
+        }
+        return mix(hash);
+    }
+
+
+    /**
+     * @return hash of each label of the alphabet, the same in every tree
+     */
+    private long[] labelHashes() {
+        long[] hashes = new long[alphabet.length];
+        for (int i = 0; i != hashes.length; ++i) {
+            hashes[i] = labelHash(alphabet[i]);
+        }
+        return hashes;
+    }
+
+
+    /**
+     * 64 bits hash of a label. Strings are hashed from their characters, as their 32 bits hash codes
+     * collide too easily ("Aa" and "BB"), other labels from their hash codes.
+     */
+    private static long labelHash(Object label) {
+        long hash;
+        if (label instanceof String) {
+            String string = (String) label;
+            hash = string.length();
+            for (int i = 0; i != string.length(); ++i) {
+                hash = (hash + string.charAt(i)) * 0xC2B2AE3D27D4EB4FL;
+            }
+        } else {
+            hash = Objects.hashCode(label);
+        }
+        return mix(hash + 0x9E3779B97F4A7C15L);
+    }
+
+
+    /**
+     * Cached pq-gram profile, with the shape it was computed for.
+     */
+    private static final class PqGrams {
+        final int p, q;
+        final long[] hashes;
+
+        PqGrams(int p, int q, long[] hashes) {
+            this.p = p;
+            this.q = q;
+            this.hashes = hashes;
+        }
+    }
+
+
+    /**
+     * Finalizer of SplitMix64, every bit of the input affects every bit of the output.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+
+    /**
+     * @return true if both trees have the same shape and the same labels
+     */
+    public boolean isIdentical(CompactTree<?> other) {
+        return size == other.size && getSubtreeHashes()[size - 1] == other.getSubtreeHashes()[size - 1]
+                && isIdenticalSubtree(size - 1, other, other.size - 1);
+    }
+
+
+    /**
+     * Compares two subtrees node by node, regardless of their hashes.
+     *
+     * @param root      post-order index of the root of the subtree of this tree
+     * @param other     tree holding the other subtree
+     * @param otherRoot post-order index of the root of the other subtree
+     * @return true if both subtrees have the same shape and the same labels
+     */
+    public boolean isIdenticalSubtree(int root, CompactTree<?> other, int otherRoot) {
+        int first = leftmostDescendants[root];
+        int otherFirst = other.leftmostDescendants[otherRoot];
+        if (root - first != otherRoot - otherFirst) {
+            return false;
+        }
+        for (int k = 0; k != root - first; ++k) {
+            if (parents[first + k] - first != other.parents[otherFirst + k] - otherFirst) {
+                return false;
+            }
+        }
+        for (int k = 0; k <= root - first; ++k) {
+            if (!Objects.equals(alphabet[labelIds[first + k]], other.alphabet[other.labelIds[otherFirst + k]])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * getter
+     *
+     * @return labels in post-order traversal order (read-only view, no copy)
+     */
+    public List<T> getPostOrderLabels() {
+        return new AbstractList<T>() {
+            @Override
+            public T get(int index) {
+                return getLabel(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
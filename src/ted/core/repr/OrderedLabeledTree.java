@@ -3,7 +3,7 @@ package ted.core.repr;
 
 import ted.core.util.Verifier;
 
-import java.util.*;
+import java.util.ArrayList;
 
 
 /**
@@ -14,16 +14,20 @@ public class OrderedLabeledTree<T> {
     private final Node<T> root;
     //
     private final ArrayList<T> postOrderLabels;
-    private final ArrayList<Node<T>> postOrderNodes;
+    private final int[] parents;
     //
     private final int[] leftmostDescendants;
     private final int[] keyRoots;
+    //
+    private CompactTree<T> compactTree;
 
 
     /**
      * Ordered Labeled Tree that contains arbitrary data as labels.
      * This is the internal constructor, can be used directly, or use the more friendly String Tree constructor
      * if the labels are of type String (good enough for most cases).
+     * The tree is built in a single pass over the brackets, with an explicit stack, and the leftmost
+     * descendants and keyRoots are computed in linear time, so trees of any depth can be used.
      *
      * @param brackets       bracket notation that specifies the topology of the tree:
      *                       '(' : nesting symbol, adds a child and sets the position as a child of the current position
@@ -34,105 +38,88 @@ public class OrderedLabeledTree<T> {
      */
     public OrderedLabeledTree(String brackets, ArrayList<T> preOrderLabels) throws IllegalArgumentException {
         // check that the tree is really a tree, and is balanced
-        if (!Verifier.isValidTreeStructure(brackets)) {
+        if (!Verifier.isValidTreeStructure(brackets) || brackets.isEmpty()
+                || brackets.length() != 2 * preOrderLabels.size()) {
             throw new IllegalArgumentException("This structure seems unbalanced " + brackets);
         }
 
-        // instantiate the root and start building the tree
-        String bracketsMinusTheRoot = brackets.substring(1, brackets.length() - 2);
-        root = new Node<>(null, preOrderLabels.get(0));
-        Node<T> position = root;
-
-        int nodeCount = 1;
-        for (char c : bracketsMinusTheRoot.toCharArray()) {
-            if (c == '(')       // create new node and position goes down
+        // nodes are created in pre-order, the post-order index of a node is only known once it is closed
+        int size = preOrderLabels.size();
+        ArrayList<Node<T>> preOrderNodes = new ArrayList<>(size);
+        int[] preOrderParents = new int[size];
+        int[] preOrderIndices = new int[size];
+        int[] stack = new int[size];
+        int top = 0;
+        int preOrderCount = 0;
+        int postOrderCount = 0;
+        for (int i = 0; i != brackets.length(); ++i) {
+            if (brackets.charAt(i) == '(')      // create new node and position goes down
             {
-                position = new Node<>(position, preOrderLabels.get(nodeCount));
-
-                nodeCount += 1;
-            } else if (c == ')')  // position goes up
+                int parent = top == 0 ? -1 : stack[top - 1];
+                preOrderParents[preOrderCount] = parent;
+                preOrderNodes.add(new Node<>(parent == -1 ? null : preOrderNodes.get(parent),
+                        preOrderLabels.get(preOrderCount)));
+                stack[top] = preOrderCount;
+                top += 1;
+                preOrderCount += 1;
+            } else                              // position goes up, the node is done
             {
-                position = position.getParent();
+                top -= 1;
+                preOrderNodes.get(stack[top]).setIndex(postOrderCount);
+                preOrderIndices[postOrderCount] = stack[top];
+                postOrderCount += 1;
+            }
+            if (top == 0 && i != brackets.length() - 1) {
+                throw new IllegalArgumentException("This structure is a forest " + brackets);
             }
         }
-
-
-        // get post order pointers, set the index and get the labels
-        postOrderNodes = getPostOrderEnumeration(root);
-        postOrderLabels = new ArrayList<>();
-        assert preOrderLabels.size() == postOrderNodes.size();
-        for (int i = 0; i != postOrderNodes.size(); ++i) {
-            // set the index of the nodes
-            postOrderNodes.get(i).setIndex(i);
-
-            // extract the post-order label
-            postOrderLabels.add(postOrderNodes.get(i).getLabel());
+        root = preOrderNodes.get(0);
+
+        // post-order labels and parents
+        postOrderLabels = new ArrayList<>(size);
+        parents = new int[size];
+        for (int i = 0; i != size; ++i) {
+            int pre = preOrderIndices[i];
+            postOrderLabels.add(preOrderLabels.get(pre));
+            parents[i] = preOrderParents[pre] == -1 ? -1 : preOrderNodes.get(preOrderParents[pre]).getIndex();
         }
 
+        // leftmost descendants and keyRoots, in a single pass each
+        int[] firstChildren = stack;
+        int[] nextSiblings = preOrderIndices;
+        CompactTree.linkChildren(parents, firstChildren, nextSiblings);
+        leftmostDescendants = CompactTree.computeLeftmostDescendants(firstChildren);
+        keyRoots = CompactTree.computeKeyRoots(parents, firstChildren);
+    }
 
-        // compute the leftmost descendants
-        leftmostDescendants = new int[postOrderNodes.size()];
-        for (int i = 0; i != postOrderNodes.size(); ++i) {
-            position = postOrderNodes.get(i);
-            while (position.getChildren().size() != 0) {
-                position = position.getChildren().get(0);
-            }
-            leftmostDescendants[i] = position.getIndex();
-        }
-
-        // compute the keyRoots
-        Hashtable<Integer, Integer> nodeToLeftmostDescendant = new Hashtable<>();
-        Integer lmd;
-        for (int i = postOrderNodes.size() - 1; i != -1; --i) {
-            lmd = leftmostDescendants[i];
 
-            if (!(nodeToLeftmostDescendant.containsKey(lmd))) {
-                nodeToLeftmostDescendant.put(lmd, i);
-            }
-        }
-
-        keyRoots = new int[nodeToLeftmostDescendant.size()];
-        Enumeration<Integer> keyRootsEnum = nodeToLeftmostDescendant.elements();
-        int index = 0;
-        while (keyRootsEnum.hasMoreElements()) {
-            keyRoots[index] = keyRootsEnum.nextElement();
-            index += 1;
-        }
-        java.util.Arrays.sort(keyRoots);
+    public Node<T> getRoot() {
+        return root;
     }
 
 
     /**
-     * Used by the getPostOrderEnumeration method to perform a post-order traversal
-     * of the tree, while filling an array of Nodes.
+     * Converts the tree to its compact representation, which only holds primitive arrays
+     * and the interned labels. Post-order indices are preserved. The conversion is done
+     * once, later calls return the same compact tree.
      *
-     * @param position pointer to the node in the tree.
+     * @return compact version of the tree
      */
-    private void postorderHelper(Node<T> position, ArrayList<Node<T>> postOrderNodes) {
-        if (position != null) {
-            for (Node<T> n : position.getChildren()) {
-                postorderHelper(n, postOrderNodes);
-            }
-            postOrderNodes.add(position);
+    public CompactTree<T> toCompactTree() {
+        if (compactTree == null) {
+            compactTree = new CompactTree<>(parents.clone(), postOrderLabels.toArray());
         }
+        return compactTree;
     }
 
 
     /**
-     * Computes a list of the nodes, in post-order traversal order.
+     * Merkle hash of each subtree, identical subtrees (same shape and labels) get the same hash.
      *
-     * @param root root node of the tree
-     * @return the nodes, in post-order traversal order.
+     * @return hash of the subtree of each node, in post-order traversal order
      */
-    private ArrayList<Node<T>> getPostOrderEnumeration(Node<T> root) {
-        ArrayList<Node<T>> postOrderEnum = new ArrayList<>();
-        postorderHelper(root, postOrderEnum);
-        return postOrderEnum;
-    }
-
-
-    public Node<T> getRoot() {
-        return root;
+    public long[] getSubtreeHashes() {
+        return toCompactTree().getSubtreeHashes();
     }
 
 
@@ -25,16 +25,23 @@ public class StringTree extends OrderedLabeledTree<String> {
      */
     public static String extractTopology(String brackets)
     {
-        StringBuilder bracketsBuilder = new StringBuilder();
-        for (char c : brackets.toCharArray())
+        char[] topology = new char[brackets.length()];
+        int length = 0;
+        for (int i = 0; i != brackets.length(); ++i)
         {
-            if (c == '{' || c == '}')
+            char c = brackets.charAt(i);
+            if (c == '{')
+            {
+                topology[length] = '(';
+                length += 1;
+            }
+            else if (c == '}')
             {
-                bracketsBuilder.append(c);
+                topology[length] = ')';
+                length += 1;
             }
         }
-
-        return  bracketsBuilder.toString().replace("{", "(").replace("}", ")");
+        return new String(topology, 0, length);
     }
 
 
@@ -45,59 +52,57 @@ public class StringTree extends OrderedLabeledTree<String> {
      */
     public static ArrayList<String> extractPreOrderLabels(String brackets)
     {
-        ArrayList<String> postOrderLabels = new ArrayList<>();
-        char[] bracketsChars = brackets.toCharArray();
+        ArrayList<String> preOrderLabels = new ArrayList<>();
         int i = 0;
-        while (i < bracketsChars.length)
+        while (i < brackets.length())
         {
-            char c = bracketsChars[i];
-            if (c == '{')
+            if (brackets.charAt(i) == '{')
             {
-                // step
-                i+=1;
-                c = bracketsChars[i];
-
-                // read the label
-                StringBuilder builder = new StringBuilder();
-                while(c != '{' && c != '}'  && i < bracketsChars.length)
+                // the label runs up to the next bracket
+                int start = i + 1;
+                i = start;
+                while (i < brackets.length() && brackets.charAt(i) != '{' && brackets.charAt(i) != '}')
                 {
-                    builder.append(c);
-                    i+=1;
-                    c = bracketsChars[i];
+                    i += 1;
                 }
-                postOrderLabels.add(builder.toString());
+                preOrderLabels.add(brackets.substring(start, i));
             }
             else
             {
-                i+=1;
+                i += 1;
             }
         }
-        return postOrderLabels;
-    }
-
-    /**
-     * Helper for the toString function, called recursively mostly. It is tasked with filling the labels StringBuilder.
-     * @param position node position in the tree, usually called on the root, and it calls itself on the subtrees.
-     * @param brackets the brackets notation of the String Tree
-     */
-    private static void toStringHelper(Node<String> position, StringBuilder brackets)
-    {
-        //
-        brackets.append("{");
-        brackets.append(position.getLabel());
-        for(Node<String> child : position.getChildren())
-        {
-            toStringHelper(child, brackets);
-        }
-        brackets.append("}");
+        return preOrderLabels;
     }
 
 
     @Override
     public String toString()
     {
+        // depth first traversal with an explicit stack of nodes, and the next child to visit for each of them
         StringBuilder builder = new StringBuilder();
-        toStringHelper(getRoot(), builder);
+        ArrayList<Node<String>> path = new ArrayList<>();
+        int[] nextChildren = new int[getPostOrderLabels().size()];
+        path.add(getRoot());
+        builder.append("{").append(getRoot().getLabel());
+        while (!path.isEmpty())
+        {
+            int depth = path.size() - 1;
+            ArrayList<Node<String>> children = path.get(depth).getChildren();
+            if (nextChildren[depth] != children.size())
+            {
+                Node<String> child = children.get(nextChildren[depth]);
+                nextChildren[depth] += 1;
+                nextChildren[depth + 1] = 0;
+                path.add(child);
+                builder.append("{").append(child.getLabel());
+            }
+            else
+            {
+                path.remove(depth);
+                builder.append("}");
+            }
+        }
         return builder.toString();
     }
 }
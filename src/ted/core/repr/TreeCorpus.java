@@ -0,0 +1,170 @@
+package ted.core.repr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Binary corpus of preprocessed compact trees, memory-mapped read only, so that opening it costs
+ * no more than mapping the file and reading its dictionary, and processes opening the same file
+ * share its pages.
+ * <p>
+ * Layout (big endian):
+ * <ul>
+ * <li>header: magic, version, number of trees, number of labels (ints), offsets of the dictionary and
+ * of the index (longs)</li>
+ * <li>trees: size, number of keyroots and alphabet size, then the parents, first children, next siblings,
+ * post-order indices, leftmost descendants, keyroots and label ids arrays as stored in the compact tree,
+ * then the dictionary id of each label of its alphabet (ints)</li>
+ * <li>dictionary: each label as its length and its UTF-8 bytes</li>
+ * <li>index: offset of each tree (longs)</li>
+ * </ul>
+ * A tree is rebuilt by bulk copies of its arrays out of the mapped file, nothing is recomputed, and the
+ * labels are shared by all the trees. The corpus is a read-only List, and can be shared between threads.
+ */
+public final class TreeCorpus extends AbstractList<CompactTree<String>> implements Closeable {
+
+    static final int MAGIC = 0x54454443;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    // largest window of the file mapped at once
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final String[] dictionary;
+    // the trees are mapped by windows, each tree fits in one of them
+    private final List<MappedByteBuffer> windows = new ArrayList<>();
+    private final int[] windowOfTree;
+    private final int[] positionOfTree;
+
+
+    /**
+     * Opens a corpus written by TreeCorpusWriter.
+     *
+     * @param channel file of the corpus, closed with the corpus
+     */
+    public TreeCorpus(FileChannel channel) throws IOException {
+        this.channel = channel;
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            throw new IOException("This file is not a tree corpus");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("This file is not a tree corpus, or from another version");
+        }
+        int treeCount = header.getInt();
+        int labelCount = header.getInt();
+        long dictionaryOffset = header.getLong();
+        long indexOffset = header.getLong();
+
+        // the labels are decoded once
+        MappedByteBuffer labels = channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, indexOffset - dictionaryOffset);
+        dictionary = new String[labelCount];
+        for (int i = 0; i != labelCount; ++i) {
+            byte[] bytes = new byte[labels.getInt()];
+            labels.get(bytes);
+            dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        // windows grow until the next tree does not fit
+        LongBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 8L * treeCount).asLongBuffer();
+        windowOfTree = new int[treeCount];
+        positionOfTree = new int[treeCount];
+        long windowStart = HEADER_SIZE;
+        int firstTree = 0;
+        for (int i = 0; i != treeCount; ++i) {
+            long treeEnd = i + 1 == treeCount ? dictionaryOffset : index.get(i + 1);
+            if (treeEnd - windowStart > WINDOW_SIZE && i != firstTree) {
+                addWindow(index, windowStart, index.get(i), firstTree, i);
+                windowStart = index.get(i);
+                firstTree = i;
+            }
+            if (treeEnd - windowStart > WINDOW_SIZE) {
+                throw new IOException("Tree " + i + " is too large to be mapped");
+            }
+        }
+        addWindow(index, windowStart, dictionaryOffset, firstTree, treeCount);
+    }
+
+
+    /**
+     * Maps the part of the file holding a range of trees.
+     */
+    private void addWindow(LongBuffer index, long start, long end, int fromTree, int toTree) throws IOException {
+        windows.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+        for (int tree = fromTree; tree != toTree; ++tree) {
+            windowOfTree[tree] = windows.size() - 1;
+            positionOfTree[tree] = (int) (index.get(tree) - start);
+        }
+    }
+
+
+    /**
+     * @return number of trees in the corpus
+     */
+    @Override
+    public int size() {
+        return windowOfTree.length;
+    }
+
+
+    /**
+     * Rebuilds a tree from the mapped file.
+     *
+     * @param index position of the tree in the corpus
+     * @return the tree, a new instance at each call
+     */
+    @Override
+    public CompactTree<String> get(int index) {
+        ByteBuffer window = windows.get(windowOfTree[index]).duplicate();
+        window.position(positionOfTree[index]);
+        IntBuffer ints = window.slice().asIntBuffer();
+        int size = ints.get();
+        int keyRootCount = ints.get();
+        int alphabetSize = ints.get();
+        int[] parents = read(ints, size);
+        int[] firstChildren = read(ints, size);
+        int[] nextSiblings = read(ints, size);
+        int[] postOrderIndices = read(ints, size);
+        int[] leftmostDescendants = read(ints, size);
+        int[] keyRoots = read(ints, keyRootCount);
+        int[] labelIds = read(ints, size);
+        Object[] alphabet = new Object[alphabetSize];
+        for (int i = 0; i != alphabetSize; ++i) {
+            alphabet[i] = dictionary[ints.get()];
+        }
+        return new CompactTree<>(parents, firstChildren, nextSiblings, postOrderIndices,
+                leftmostDescendants, keyRoots, labelIds, alphabet);
+    }
+
+
+    /**
+     * @return number of distinct labels in the corpus
+     */
+    public int getDictionarySize() {
+        return dictionary.length;
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+
+    private static int[] read(IntBuffer ints, int length) {
+        int[] values = new int[length];
+        ints.get(values);
+        return values;
+    }
+}
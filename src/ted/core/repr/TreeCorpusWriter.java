@@ -0,0 +1,169 @@
+package ted.core.repr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Writes compact trees to a binary corpus, read back by TreeCorpus.
+ * <p>
+ * Trees are appended one at a time as they are added, so the corpus can be written while the trees
+ * are parsed. The label dictionary and the index of the trees are written when the writer is closed,
+ * and the header last, so an interrupted write never gives a valid corpus.
+ * See TreeCorpus for the layout.
+ */
+public final class TreeCorpusWriter implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+    // file offset of the start of the buffer
+    private long offset = TreeCorpus.HEADER_SIZE;
+    //
+    private final HashMap<String, Integer> dictionary = new HashMap<>();
+    private long[] treeOffsets = new long[64];
+    private int treeCount = 0;
+
+
+    /**
+     * @param channel file emptied, then written from its start
+     */
+    public TreeCorpusWriter(FileChannel channel) throws IOException {
+        this.channel = channel;
+        channel.truncate(0);
+    }
+
+
+    /**
+     * Appends a tree to the corpus.
+     *
+     * @param tree tree, whose labels are saved as strings
+     */
+    public void add(CompactTree<?> tree) throws IOException {
+        if (treeCount == treeOffsets.length) {
+            treeOffsets = Arrays.copyOf(treeOffsets, 2 * treeCount);
+        }
+        treeOffsets[treeCount] = offset + buffer.position();
+        treeCount += 1;
+
+        int[] alphabet = new int[tree.getAlphabetSize()];
+        for (int i = 0; i != alphabet.length; ++i) {
+            String label = String.valueOf(tree.getAlphabetLabel(i));
+            Integer id = dictionary.get(label);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(label, id);
+            }
+            alphabet[i] = id;
+        }
+
+        writeInt(tree.size());
+        writeInt(tree.getKeyRoots().length);
+        writeInt(alphabet.length);
+        writeInts(tree.getParents());
+        writeInts(tree.getFirstChildren());
+        writeInts(tree.getNextSiblings());
+        writeInts(tree.getPostOrderIndices());
+        writeInts(tree.getLeftmostDescendants());
+        writeInts(tree.getKeyRoots());
+        writeInts(tree.getLabelIds());
+        writeInts(alphabet);
+    }
+
+
+    /**
+     * Writes the dictionary, the index and the header, then closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            // dictionary, by id
+            long dictionaryOffset = offset + buffer.position();
+            String[] labels = new String[dictionary.size()];
+            for (Map.Entry<String, Integer> entry : dictionary.entrySet()) {
+                labels[entry.getValue()] = entry.getKey();
+            }
+            for (String label : labels) {
+                byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                int from = 0;
+                while (from != bytes.length) {
+                    if (!buffer.hasRemaining()) {
+                        flush();
+                    }
+                    int length = Math.min(bytes.length - from, buffer.remaining());
+                    buffer.put(bytes, from, length);
+                    from += length;
+                }
+            }
+
+            // index, aligned so it can be read as a view of longs
+            if (buffer.remaining() < 8) {
+                flush();
+            }
+            while ((offset + buffer.position()) % 8 != 0) {
+                buffer.put((byte) 0);
+            }
+            long indexOffset = offset + buffer.position();
+            for (int i = 0; i != treeCount; ++i) {
+                if (buffer.remaining() < 8) {
+                    flush();
+                }
+                buffer.putLong(treeOffsets[i]);
+            }
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(TreeCorpus.HEADER_SIZE);
+            header.putInt(TreeCorpus.MAGIC);
+            header.putInt(TreeCorpus.VERSION);
+            header.putInt(treeCount);
+            header.putInt(labels.length);
+            header.putLong(dictionaryOffset);
+            header.putLong(indexOffset);
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    private void writeInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putInt(value);
+    }
+
+
+    private void writeInts(int[] values) throws IOException {
+        int from = 0;
+        while (from != values.length) {
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            int length = Math.min(values.length - from, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, from, length);
+            buffer.position(buffer.position() + 4 * length);
+            from += length;
+        }
+    }
+
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        buffer.clear();
+    }
+}
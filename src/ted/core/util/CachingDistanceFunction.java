@@ -0,0 +1,207 @@
+package ted.core.util;
+
+import ted.core.interfaces.DistanceFunction;
+
+import java.util.Objects;
+
+/**
+ * Distance function remembering the distances it computed, for label distances too costly to be
+ * computed again and again (e.g. an edit distance between long strings).
+ * <p>
+ * Within a pair of trees, the engines already compute the distance of each pair of distinct labels
+ * once. Across a collection, where the same labels come back in many trees, this cache makes the
+ * distance of each pair of labels paid roughly once overall.
+ * <p>
+ * The cache holds a fixed number of label pairs: it is split into sets of 4 entries, a pair of labels
+ * only going to the set chosen by the hash codes of its labels, and a full set evicts the entry that
+ * was not read for the longest time around its clock (second chance). Entries are found by a primitive
+ * key made of the two hash codes, then the labels are checked with equals. Sets are guarded by a few
+ * locks, each shared by many sets, which are never held while the wrapped function runs, so the cache
+ * can be shared by the threads of a parallel engine or of a distance matrix.
+ *
+ * @param <T1> type of the first labels
+ * @param <T2> type of the second labels
+ */
+public final class CachingDistanceFunction<T1, T2> implements DistanceFunction<T1, T2> {
+
+    private static final int WAYS = 4;
+    private static final int MAX_STRIPES = 64;
+
+    private final DistanceFunction<T1, T2> distance;
+    private final int setMask;
+    private final Object[] locks;
+    // entries, WAYS consecutive ones per set
+    private final long[] keys;
+    private final double[] values;
+    private final Object[] labels1;
+    private final Object[] labels2;
+    private final boolean[] occupied;
+    private final boolean[] referenced;
+    // clock hand of each set
+    private final byte[] hands;
+    // statistics, per lock
+    private final long[] hits;
+    private final long[] misses;
+    private final long[] evictions;
+
+
+    /**
+     * @param distance distance function whose results are cached
+     * @param capacity largest number of label pairs kept, rounded up to a power of two (at least 4)
+     */
+    public CachingDistanceFunction(DistanceFunction<T1, T2> distance, int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        this.distance = distance;
+        int sets = Math.max(1, Integer.highestOneBit(capacity - 1) * 2 / WAYS);
+        setMask = sets - 1;
+        int stripes = Math.min(MAX_STRIPES, sets);
+        locks = new Object[stripes];
+        for (int i = 0; i != stripes; ++i) {
+            locks[i] = new Object();
+        }
+        keys = new long[sets * WAYS];
+        values = new double[sets * WAYS];
+        labels1 = new Object[sets * WAYS];
+        labels2 = new Object[sets * WAYS];
+        occupied = new boolean[sets * WAYS];
+        referenced = new boolean[sets * WAYS];
+        hands = new byte[sets];
+        hits = new long[stripes];
+        misses = new long[stripes];
+        evictions = new long[stripes];
+    }
+
+
+    @Override
+    public double getDistance(T1 label1, T2 label2) {
+        long key = ((long) Objects.hashCode(label1) << 32) | (Objects.hashCode(label2) & 0xFFFFFFFFL);
+        int set = (int) mix(key) & setMask;
+        int stripe = set & (locks.length - 1);
+        synchronized (locks[stripe]) {
+            int entry = find(set, key, label1, label2);
+            if (entry != -1) {
+                referenced[entry] = true;
+                hits[stripe] += 1;
+                return values[entry];
+            }
+            misses[stripe] += 1;
+        }
+
+        double value = distance.getDistance(label1, label2);
+        synchronized (locks[stripe]) {
+            // another thread may have computed it meanwhile
+            if (find(set, key, label1, label2) == -1) {
+                int entry = victim(set, stripe);
+                keys[entry] = key;
+                values[entry] = value;
+                labels1[entry] = label1;
+                labels2[entry] = label2;
+                occupied[entry] = true;
+                referenced[entry] = false;
+            }
+        }
+        return value;
+    }
+
+
+    /**
+     * @return entry of the set holding the pair of labels, -1 if none
+     */
+    private int find(int set, long key, Object label1, Object label2) {
+        for (int entry = set * WAYS; entry != (set + 1) * WAYS; ++entry) {
+            if (occupied[entry] && keys[entry] == key
+                    && Objects.equals(labels1[entry], label1) && Objects.equals(labels2[entry], label2)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return a free entry of the set, otherwise the first one the clock finds not read since it last passed
+     */
+    private int victim(int set, int stripe) {
+        for (int entry = set * WAYS; entry != (set + 1) * WAYS; ++entry) {
+            if (!occupied[entry]) {
+                return entry;
+            }
+        }
+        evictions[stripe] += 1;
+        int hand = hands[set];
+        while (referenced[set * WAYS + hand]) {
+            referenced[set * WAYS + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        hands[set] = (byte) ((hand + 1) % WAYS);
+        return set * WAYS + hand;
+    }
+
+
+    /**
+     * Finalizer of SplitMix64, every bit of the input affects every bit of the output.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+
+    /**
+     * @return largest number of label pairs kept
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+
+    /**
+     * @return number of calls answered from the cache
+     */
+    public long getHits() {
+        long total = 0;
+        for (int stripe = 0; stripe != locks.length; ++stripe) {
+            synchronized (locks[stripe]) {
+                total += hits[stripe];
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * @return number of calls that ran the wrapped distance function
+     */
+    public long getMisses() {
+        long total = 0;
+        for (int stripe = 0; stripe != locks.length; ++stripe) {
+            synchronized (locks[stripe]) {
+                total += misses[stripe];
+            }
+        }
+        return total;
+    }
+
+
+    /**
+     * @return number of label pairs dropped to make room for others
+     */
+    public long getEvictions() {
+        long total = 0;
+        for (int stripe = 0; stripe != locks.length; ++stripe) {
+            synchronized (locks[stripe]) {
+                total += evictions[stripe];
+            }
+        }
+        return total;
+    }
+
+
+    @Override
+    public String toString() {
+        return getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+    }
+}
@@ -0,0 +1,87 @@
+package ted.core.util;
+
+import ted.core.interfaces.DistanceSink;
+
+/**
+ * Symmetric matrix with an empty diagonal, such as the distances between all the pairs of
+ * a collection, packed as its upper triangle. The cells are split into blocks, so that it can
+ * hold more than Integer.MAX_VALUE cells. Cells are independent: several threads can set
+ * different cells concurrently.
+ */
+public final class TriangularMatrix implements DistanceSink {
+
+    private static final int BLOCK_BITS = 20;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    private final int size;
+    private final double[][] blocks;
+
+
+    /**
+     * @param size number of rows (and columns)
+     */
+    public TriangularMatrix(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Negative size " + size);
+        }
+        this.size = size;
+        long cells = (long) size * (size - 1) / 2;
+        blocks = new double[(int) ((cells + BLOCK_SIZE - 1) >> BLOCK_BITS)][];
+        for (int i = 0; i != blocks.length; ++i) {
+            blocks[i] = new double[(int) Math.min(BLOCK_SIZE, cells - ((long) i << BLOCK_BITS))];
+        }
+    }
+
+
+    /**
+     * Position of the cell in the packed upper triangle, rows one after the other.
+     */
+    private long index(int i, int j) {
+        if (i == j || i < 0 || j < 0 || i >= size || j >= size) {
+            throw new IndexOutOfBoundsException("No cell at (" + i + ", " + j + ")");
+        }
+        if (i > j) {
+            int swap = i;
+            i = j;
+            j = swap;
+        }
+        return (long) i * (2L * size - i - 1) / 2 + (j - i - 1);
+    }
+
+
+    /**
+     * getter
+     *
+     * @return number of rows (and columns)
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * @return the value at (i, j), which is also the one at (j, i), 0 on the diagonal
+     */
+    public double get(int i, int j) {
+        if (i == j && i >= 0 && i < size) {
+            return 0;
+        }
+        long index = index(i, j);
+        return blocks[(int) (index >>> BLOCK_BITS)][(int) (index & (BLOCK_SIZE - 1))];
+    }
+
+
+    /**
+     * Sets the value at (i, j), and at (j, i).
+     */
+    public void set(int i, int j, double value) {
+        long index = index(i, j);
+        blocks[(int) (index >>> BLOCK_BITS)][(int) (index & (BLOCK_SIZE - 1))] = value;
+    }
+
+
+    @Override
+    public void accept(int index1, int index2, double distance) {
+        set(index1, index2, distance);
+    }
+}
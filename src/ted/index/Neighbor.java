@@ -0,0 +1,28 @@
+package ted.index;
+
+/**
+ * Tree found by a query, identified by its index in the indexed collection.
+ */
+public final class Neighbor {
+
+    private final int index;
+    private final double distance;
+
+    public Neighbor(int index, double distance) {
+        this.index = index;
+        this.distance = distance;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + index + ": " + distance + ")";
+    }
+}
@@ -0,0 +1,248 @@
+package ted.index;
+
+import ted.approximate.ProfileDistance;
+import ted.core.distances.TreeEditDistance;
+import ted.core.repr.CompactTree;
+import ted.core.repr.OrderedLabeledTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * Inverted index of the profiles (pq-grams, binary branches...) of a collection of trees, answering
+ * approximate k nearest neighbors queries, and exact ones by running the tree edit distance on a
+ * shortlist only.
+ * <p>
+ * Every distinct hash of the profiles has a posting list: the trees having it, with its number of
+ * occurrences in each. A query walks the posting lists of its own hashes, which gives the size of the
+ * intersection of its profile with the profile of every tree, then the approximate distance to every
+ * tree, without merging the profiles one by one: only the posting lists of the hashes of the query are read.
+ * <p>
+ * The exact search ranks the trees by approximate distance, keeps the most promising ones and
+ * computes their tree edit distances, nearest first, each one with the k-th best distance so far as
+ * threshold. It finds the exact k nearest neighbors when they are on the shortlist, which is likely but
+ * not guaranteed: the approximate distance is not a bound of the tree edit distance.
+ *
+ * @param <T> type of the labels
+ */
+public final class ProfileIndex<T> {
+
+    private final ProfileDistance<T> approximation;
+    private final TreeEditDistance<T> distance;
+    private final List<CompactTree<T>> trees;
+    private final int[] profileSizes;
+    // distinct hashes of the collection, sorted, and where their posting lists start
+    private final long[] hashes;
+    private final int[] offsets;
+    // posting lists, one after the other: index of the tree and occurrences of the hash in it
+    private final int[] postingTrees;
+    private final int[] postingCounts;
+
+
+    /**
+     * Builds the index.
+     *
+     * @param trees         indexed collection
+     * @param approximation approximate distance, giving the profiles
+     * @param distance      tree edit distance, run on the shortlists
+     */
+    public ProfileIndex(List<? extends OrderedLabeledTree<T>> trees, ProfileDistance<T> approximation,
+                        TreeEditDistance<T> distance) {
+        this.approximation = approximation;
+        this.distance = distance;
+        int size = trees.size();
+        this.trees = new ArrayList<>(size);
+        profileSizes = new int[size];
+        List<long[]> profiles = new ArrayList<>(size);
+        long total = 0;
+        for (OrderedLabeledTree<T> tree : trees) {
+            CompactTree<T> compactTree = tree.toCompactTree();
+            long[] profile = approximation.getProfile(compactTree);
+            profileSizes[this.trees.size()] = profile.length;
+            this.trees.add(compactTree);
+            profiles.add(profile);
+            total += profile.length;
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many hashes to index " + total);
+        }
+
+        // distinct hashes of each tree, then of the whole collection
+        long[] all = new long[(int) total];
+        int postings = 0;
+        for (long[] profile : profiles) {
+            for (int i = 0; i != profile.length; ++i) {
+                if (i == 0 || profile[i] != profile[i - 1]) {
+                    all[postings++] = profile[i];
+                }
+            }
+        }
+        Arrays.sort(all, 0, postings);
+        int distinct = 0;
+        for (int i = 0; i != postings; ++i) {
+            if (i == 0 || all[i] != all[i - 1]) {
+                all[distinct++] = all[i];
+            }
+        }
+        hashes = Arrays.copyOf(all, distinct);
+
+        // posting lists, laid out by counting their sizes first
+        offsets = new int[distinct + 1];
+        for (long[] profile : profiles) {
+            for (int i = 0; i != profile.length; ++i) {
+                if (i == 0 || profile[i] != profile[i - 1]) {
+                    offsets[Arrays.binarySearch(hashes, profile[i]) + 1] += 1;
+                }
+            }
+        }
+        for (int h = 0; h != distinct; ++h) {
+            offsets[h + 1] += offsets[h];
+        }
+        postingTrees = new int[postings];
+        postingCounts = new int[postings];
+        int[] next = Arrays.copyOf(offsets, distinct);
+        for (int t = 0; t != size; ++t) {
+            long[] profile = profiles.get(t);
+            for (int i = 0; i != profile.length; ) {
+                int run = run(profile, i);
+                int position = next[Arrays.binarySearch(hashes, profile[i])]++;
+                postingTrees[position] = t;
+                postingCounts[position] = run - i;
+                i = run;
+            }
+        }
+    }
+
+
+    /**
+     * @return number of indexed trees
+     */
+    public int size() {
+        return trees.size();
+    }
+
+
+    /**
+     * Approximate distances from the query to every indexed tree.
+     *
+     * @param query tree searched for
+     * @return approximate distance to each tree, in the order of the collection
+     */
+    public double[] approximateDistances(OrderedLabeledTree<T> query) {
+        long[] profile = approximation.getProfile(query.toCompactTree());
+        int[] shared = new int[trees.size()];
+        for (int i = 0; i != profile.length; ) {
+            int run = run(profile, i);
+            int h = Arrays.binarySearch(hashes, profile[i]);
+            if (h >= 0) {
+                int occurrences = run - i;
+                for (int position = offsets[h]; position != offsets[h + 1]; ++position) {
+                    shared[postingTrees[position]] += Math.min(occurrences, postingCounts[position]);
+                }
+            }
+            i = run;
+        }
+        double[] distances = new double[trees.size()];
+        for (int t = 0; t != distances.length; ++t) {
+            distances[t] = approximation.getDistance(profile.length, profileSizes[t], shared[t]);
+        }
+        return distances;
+    }
+
+
+    /**
+     * Finds the k trees nearest to the query according to the approximate distance (ties by index).
+     * No tree edit distance is computed.
+     *
+     * @param query tree searched for
+     * @param k     number of trees wanted
+     * @return the trees found with their approximate distances, nearest first
+     */
+    public QueryResult approximateKnn(OrderedLabeledTree<T> query, int k) {
+        return new QueryResult(nearest(approximateDistances(query), k), 0);
+    }
+
+
+    /**
+     * Finds the k trees nearest to the query, computing the tree edit distances of the shortlist only.
+     *
+     * @param query     tree searched for
+     * @param k         number of trees wanted
+     * @param shortlist number of trees nearest by approximate distance that are compared exactly, at least k
+     * @return the trees found with their tree edit distances, nearest first
+     */
+    public QueryResult knn(OrderedLabeledTree<T> query, int k, int shortlist) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Cannot search for a negative number of neighbors " + k);
+        }
+        if (shortlist < k) {
+            throw new IllegalArgumentException("The shortlist " + shortlist + " is shorter than k " + k);
+        }
+        if (k == 0) {
+            return new QueryResult(new ArrayList<Neighbor>(), 0);
+        }
+        CompactTree<T> queryTree = query.toCompactTree();
+        PriorityQueue<Neighbor> found = new PriorityQueue<>(11, Collections.reverseOrder(VantagePointTree.NEAREST_FIRST));
+        double tau = Double.POSITIVE_INFINITY;
+        int distanceComputations = 0;
+        for (Neighbor candidate : nearest(approximateDistances(query), shortlist)) {
+            CompactTree<T> tree = trees.get(candidate.getIndex());
+            double d = tau == Double.POSITIVE_INFINITY
+                    ? distance.getDistance(queryTree, tree)
+                    : distance.getDistance(queryTree, tree, tau);
+            distanceComputations += 1;
+            if (d <= tau) {
+                found.add(new Neighbor(candidate.getIndex(), d));
+                if (found.size() > k) {
+                    found.poll();
+                }
+                if (found.size() == k) {
+                    tau = found.peek().getDistance();
+                }
+            }
+        }
+        List<Neighbor> neighbors = new ArrayList<>(found);
+        Collections.sort(neighbors, VantagePointTree.NEAREST_FIRST);
+        return new QueryResult(neighbors, distanceComputations);
+    }
+
+
+    /**
+     * @return the k smallest distances, nearest first (ties by index)
+     */
+    private static List<Neighbor> nearest(double[] distances, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Cannot search for a negative number of neighbors " + k);
+        }
+        // farthest on top
+        PriorityQueue<Neighbor> found = new PriorityQueue<>(11, Collections.reverseOrder(VantagePointTree.NEAREST_FIRST));
+        for (int t = 0; t != distances.length && k != 0; ++t) {
+            Neighbor neighbor = new Neighbor(t, distances[t]);
+            if (found.size() < k) {
+                found.add(neighbor);
+            } else if (VantagePointTree.NEAREST_FIRST.compare(neighbor, found.peek()) < 0) {
+                found.poll();
+                found.add(neighbor);
+            }
+        }
+        List<Neighbor> neighbors = new ArrayList<>(found);
+        Collections.sort(neighbors, VantagePointTree.NEAREST_FIRST);
+        return neighbors;
+    }
+
+
+    /**
+     * @return end of the run of equal hashes starting at from
+     */
+    private static int run(long[] profile, int from) {
+        int to = from + 1;
+        while (to != profile.length && profile[to] == profile[from]) {
+            to += 1;
+        }
+        return to;
+    }
+}
@@ -0,0 +1,36 @@
+package ted.index;
+
+import java.util.List;
+
+/**
+ * Answer to a query on a metric index: the trees found, and what it cost to find them.
+ */
+public final class QueryResult {
+
+    private final List<Neighbor> neighbors;
+    private final int distanceComputations;
+
+    QueryResult(List<Neighbor> neighbors, int distanceComputations) {
+        this.neighbors = neighbors;
+        this.distanceComputations = distanceComputations;
+    }
+
+    /**
+     * @return the trees found, nearest first (ties by index)
+     */
+    public List<Neighbor> getNeighbors() {
+        return neighbors;
+    }
+
+    /**
+     * @return number of tree edit distances the query computed, at most the size of the index
+     */
+    public int getDistanceComputations() {
+        return distanceComputations;
+    }
+
+    @Override
+    public String toString() {
+        return neighbors + " after " + distanceComputations + " distances";
+    }
+}
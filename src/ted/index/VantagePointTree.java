@@ -0,0 +1,337 @@
+package ted.index;
+
+import ted.core.distances.TreeEditDistance;
+import ted.core.repr.CompactTree;
+import ted.core.repr.OrderedLabeledTree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Vantage point tree over a collection of trees, answering range and k nearest neighbors queries
+ * without comparing the query to every tree.
+ * <p>
+ * Each node picks a tree of its range as vantage point, and splits the others at the median
+ * of their distances to it: the inner half is within that radius, the outer half beyond it.
+ * A query at distance d from the vantage point, looking for trees within r of itself, can skip
+ * the inner half when d - r is beyond the radius and the outer half when d + r is within it
+ * (triangle inequality). Distances to the vantage points are computed with a threshold, as only
+ * whether they fall within the radius plus r matters beyond that.
+ * <p>
+ * The pruning is only exact when the tree edit distance is a metric: insertions and deletions of a
+ * label cost the same, and the substitution cost is itself a metric over the labels (as with unit costs).
+ * <p>
+ * The nodes are laid out in a single array: a node covering positions [from, to) has its vantage point at
+ * from, its inner half at [from + 1, split) and its outer half at [split, to).
+ *
+ * @param <T> type of the labels
+ */
+public class VantagePointTree<T> {
+
+    // below this many trees, a range is built by a single task
+    private static final int SEQUENTIAL_THRESHOLD = 64;
+
+    private final TreeEditDistance<T> distance;
+    private final List<CompactTree<T>> trees;
+    // index in the collection of the tree at each position
+    private final int[] order;
+    // for the node starting at each position, its radius and where its outer half starts
+    private final double[] radius;
+    private final int[] split;
+
+
+    /**
+     * Builds the index, using a pool with one thread per core.
+     *
+     * @param trees    indexed collection
+     * @param distance tree edit distance, which must be a metric
+     */
+    public VantagePointTree(List<? extends OrderedLabeledTree<T>> trees, TreeEditDistance<T> distance) {
+        this(trees, distance, null);
+    }
+
+
+    /**
+     * Builds the index, using the given pool.
+     *
+     * @param trees    indexed collection
+     * @param distance tree edit distance, which must be a metric
+     * @param pool     threads computing the distances to the vantage points
+     */
+    public VantagePointTree(List<? extends OrderedLabeledTree<T>> trees, TreeEditDistance<T> distance, ForkJoinPool pool) {
+        this.distance = distance;
+        this.trees = new ArrayList<>(trees.size());
+        for (OrderedLabeledTree<T> tree : trees) {
+            this.trees.add(tree.toCompactTree());
+        }
+        int size = trees.size();
+        order = new int[size];
+        for (int i = 0; i != size; ++i) {
+            order[i] = i;
+        }
+        radius = new double[size];
+        split = new int[size];
+
+        Build<T> build = new Build<>(this, new double[size], 0, size);
+        if (pool != null) {
+            pool.invoke(build);
+        } else {
+            ForkJoinPool ownPool = new ForkJoinPool();
+            try {
+                ownPool.invoke(build);
+            } finally {
+                ownPool.shutdown();
+            }
+        }
+    }
+
+
+    /**
+     * @return number of indexed trees
+     */
+    public int size() {
+        return order.length;
+    }
+
+
+    /**
+     * Finds all the trees within the given distance of the query.
+     *
+     * @param query  tree searched for
+     * @param radius largest distance of interest
+     * @return the trees found, nearest first
+     */
+    public QueryResult range(OrderedLabeledTree<T> query, double radius) {
+        Search search = new Search(query.toCompactTree(), Integer.MAX_VALUE, radius);
+        search.visit(0, order.length);
+        return search.result();
+    }
+
+
+    /**
+     * Finds the k trees nearest to the query (ties broken arbitrarily).
+     *
+     * @param query tree searched for
+     * @param k     number of trees wanted
+     * @return the trees found, nearest first
+     */
+    public QueryResult knn(OrderedLabeledTree<T> query, int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Cannot search for a negative number of neighbors " + k);
+        }
+        Search search = new Search(query.toCompactTree(), k, Double.POSITIVE_INFINITY);
+        if (k != 0) {
+            search.visit(0, order.length);
+        }
+        return search.result();
+    }
+
+
+    /**
+     * State of a query: the best trees so far and the radius they leave to search.
+     * A range query is a search for as many neighbors as needed, with a radius that never shrinks.
+     */
+    private final class Search {
+        private final CompactTree<T> query;
+        private final int k;
+        private double tau;
+        // farthest on top
+        private final PriorityQueue<Neighbor> found;
+        private int distanceComputations = 0;
+
+        Search(CompactTree<T> query, int k, double tau) {
+            this.query = query;
+            this.k = k;
+            this.tau = tau;
+            found = new PriorityQueue<>(11, Collections.reverseOrder(NEAREST_FIRST));
+        }
+
+        void visit(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            int vantagePoint = order[from];
+            double mu = radius[from];
+            // beyond mu + tau, the exact distance does not change anything
+            double bound = mu + tau;
+            double d = bound == Double.POSITIVE_INFINITY
+                    ? distance.getDistance(query, trees.get(vantagePoint))
+                    : distance.getDistance(query, trees.get(vantagePoint), bound);
+            distanceComputations += 1;
+            if (d <= tau) {
+                found.add(new Neighbor(vantagePoint, d));
+                if (found.size() > k) {
+                    found.poll();
+                }
+                if (found.size() == k) {
+                    tau = found.peek().getDistance();
+                }
+            }
+
+            // nearest half first, tau shrinks in between for k nearest neighbors
+            if (d < mu) {
+                if (d - tau <= mu) {
+                    visit(from + 1, split[from]);
+                }
+                if (d + tau >= mu) {
+                    visit(split[from], to);
+                }
+            } else {
+                if (d + tau >= mu) {
+                    visit(split[from], to);
+                }
+                if (d - tau <= mu) {
+                    visit(from + 1, split[from]);
+                }
+            }
+        }
+
+        QueryResult result() {
+            List<Neighbor> neighbors = new ArrayList<>(found);
+            Collections.sort(neighbors, NEAREST_FIRST);
+            return new QueryResult(neighbors, distanceComputations);
+        }
+    }
+
+
+    static final Comparator<Neighbor> NEAREST_FIRST = new Comparator<Neighbor>() {
+        @Override
+        public int compare(Neighbor neighbor1, Neighbor neighbor2) {
+            int byDistance = Double.compare(neighbor1.getDistance(), neighbor2.getDistance());
+            return byDistance != 0 ? byDistance : Integer.compare(neighbor1.getIndex(), neighbor2.getIndex());
+        }
+    };
+
+
+    /**
+     * Builds the node covering a range of positions, then its two halves in parallel.
+     */
+    private static final class Build<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final VantagePointTree<T> index;
+        // distance of the tree at each position to the vantage point of its node
+        private final double[] distances;
+        private final int from, to;
+
+        Build(VantagePointTree<T> index, double[] distances, int from, int to) {
+            this.index = index;
+            this.distances = distances;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (from == to) {
+                return;
+            }
+            int[] order = index.order;
+
+            // a vantage point picked at random, but the same for every build
+            int pick = from + new Random(31L * from + to).nextInt(to - from);
+            swap(order, distances, from, pick);
+
+            Distances<T> all = new Distances<>(index, distances, index.trees.get(order[from]), from + 1, to);
+            all.invoke();
+
+            // the median goes to the outer half, which starts with it
+            int middle = from + 1 + (to - from - 1) / 2;
+            if (middle < to) {
+                select(order, distances, from + 1, to, middle);
+                index.radius[from] = distances[middle];
+            }
+            index.split[from] = middle;
+
+            Build<T> inner = new Build<>(index, distances, from + 1, middle);
+            Build<T> outer = new Build<>(index, distances, middle, to);
+            if (to - from > SEQUENTIAL_THRESHOLD) {
+                invokeAll(inner, outer);
+            } else {
+                inner.compute();
+                outer.compute();
+            }
+        }
+
+        /**
+         * Moves the k-th smallest distance of the range to position k, the smaller (or equal) ones before it,
+         * the larger (or equal) ones after it.
+         */
+        private static void select(int[] order, double[] distances, int from, int to, int k) {
+            int low = from, high = to - 1;
+            while (low < high) {
+                double pivot = distances[(low + high) >>> 1];
+                int i = low, j = high;
+                while (i <= j) {
+                    while (distances[i] < pivot) {
+                        i += 1;
+                    }
+                    while (distances[j] > pivot) {
+                        j -= 1;
+                    }
+                    if (i <= j) {
+                        swap(order, distances, i, j);
+                        i += 1;
+                        j -= 1;
+                    }
+                }
+                if (k <= j) {
+                    high = j;
+                } else if (k >= i) {
+                    low = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static void swap(int[] order, double[] distances, int i, int j) {
+            int index = order[i];
+            order[i] = order[j];
+            order[j] = index;
+            double distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+        }
+    }
+
+
+    /**
+     * Distances of the trees of a range of positions to a vantage point, split in halves
+     * down to a few trees.
+     */
+    private static final class Distances<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final VantagePointTree<T> index;
+        private final double[] distances;
+        private final CompactTree<T> vantagePoint;
+        private final int from, to;
+
+        Distances(VantagePointTree<T> index, double[] distances, CompactTree<T> vantagePoint, int from, int to) {
+            this.index = index;
+            this.distances = distances;
+            this.vantagePoint = vantagePoint;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 8) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Distances<>(index, distances, vantagePoint, from, middle),
+                        new Distances<>(index, distances, vantagePoint, middle, to));
+                return;
+            }
+            for (int position = from; position != to; ++position) {
+                distances[position] = index.distance.getDistance(vantagePoint, index.trees.get(index.order[position]));
+            }
+        }
+    }
+}
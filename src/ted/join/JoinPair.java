@@ -0,0 +1,34 @@
+package ted.join;
+
+/**
+ * Pair of trees found by a similarity join, identified by their indices in the joined collections.
+ */
+public final class JoinPair {
+
+    private final int leftIndex;
+    private final int rightIndex;
+    private final double distance;
+
+    public JoinPair(int leftIndex, int rightIndex, double distance) {
+        this.leftIndex = leftIndex;
+        this.rightIndex = rightIndex;
+        this.distance = distance;
+    }
+
+    public int getLeftIndex() {
+        return leftIndex;
+    }
+
+    public int getRightIndex() {
+        return rightIndex;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + leftIndex + ", " + rightIndex + ": " + distance + ")";
+    }
+}
@@ -0,0 +1,28 @@
+package ted.join;
+
+import java.util.List;
+
+/**
+ * Outcome of a similarity join: the pairs within the threshold, and how they were found.
+ */
+public final class JoinResult {
+
+    private final List<JoinPair> pairs;
+    private final JoinStatistics statistics;
+
+    JoinResult(List<JoinPair> pairs, JoinStatistics statistics) {
+        this.pairs = pairs;
+        this.statistics = statistics;
+    }
+
+    /**
+     * @return pairs within the threshold, sorted by left then right index
+     */
+    public List<JoinPair> getPairs() {
+        return pairs;
+    }
+
+    public JoinStatistics getStatistics() {
+        return statistics;
+    }
+}
@@ -0,0 +1,90 @@
+package ted.join;
+
+/**
+ * What each stage of a similarity join did with the pairs. Every pair of the cross product
+ * is either pruned by one of the filters, or verified with the exact tree edit distance.
+ */
+public final class JoinStatistics {
+
+    private final long pairs;
+    private final long prunedBySize;
+    private final long prunedByIndex;
+    private final long prunedByLabels;
+    private final long prunedByBranches;
+    private final long verified;
+    private final long results;
+
+    JoinStatistics(long pairs, long prunedBySize, long prunedByIndex, long prunedByLabels, long prunedByBranches,
+                   long verified, long results) {
+        this.pairs = pairs;
+        this.prunedBySize = prunedBySize;
+        this.prunedByIndex = prunedByIndex;
+        this.prunedByLabels = prunedByLabels;
+        this.prunedByBranches = prunedByBranches;
+        this.verified = verified;
+        this.results = results;
+    }
+
+    /**
+     * @return number of pairs in the cross product
+     */
+    public long getPairs() {
+        return pairs;
+    }
+
+    /**
+     * @return number of pairs never enumerated, their sizes being too different
+     */
+    public long getPrunedBySize() {
+        return prunedBySize;
+    }
+
+    /**
+     * @return number of pairs of close sizes never enumerated, the label index finding no common rare label
+     */
+    public long getPrunedByIndex() {
+        return prunedByIndex;
+    }
+
+    /**
+     * @return number of pairs enumerated by the label index
+     */
+    public long getCandidates() {
+        return pairs - prunedBySize - prunedByIndex;
+    }
+
+    /**
+     * @return number of pairs pruned by the difference of their label histograms
+     */
+    public long getPrunedByLabels() {
+        return prunedByLabels;
+    }
+
+    /**
+     * @return number of pairs pruned by the difference of their binary branches
+     */
+    public long getPrunedByBranches() {
+        return prunedByBranches;
+    }
+
+    /**
+     * @return number of pairs whose tree edit distance was computed
+     */
+    public long getVerified() {
+        return verified;
+    }
+
+    /**
+     * @return number of pairs within the threshold
+     */
+    public long getResults() {
+        return results;
+    }
+
+    @Override
+    public String toString() {
+        return "pairs " + pairs + ", pruned by size " + prunedBySize + ", by index " + prunedByIndex
+                + ", candidates " + getCandidates() + ", by labels " + prunedByLabels
+                + ", by branches " + prunedByBranches + ", verified " + verified + ", results " + results;
+    }
+}
@@ -0,0 +1,183 @@
+package ted.join;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Inverted index over the labels of the right collection of a join, enumerating for a tree of the
+ * left collection only the trees that can pass the label filter (prefix filtering).
+ * <p>
+ * Each node of a tree is a token: its label, numbered by the nodes of the tree having that label
+ * before it. Two trees share as many tokens as their bags of labels have in common, which is at least
+ * max(size1, size2) - q when they are within q operations. The tokens are ranked in a global order,
+ * rarest first, and the prefix of a tree is made of its q + 1 first tokens: two trees sharing at least
+ * one token that way share a token of their prefixes. Only the prefixes of the right trees are indexed,
+ * each posting list sorted by size, so a probe reads, for each token of the prefix of the query, the
+ * trees of the right sizes only. Pairs of trees both no bigger than q need no common label, and are
+ * enumerated by size.
+ */
+final class PrefixIndex {
+
+    // number of tokens of the prefix of a tree: the number of operations plus one
+    private final int prefix;
+    // ranks of the tokens of the left trees, increasing
+    private final int[][] leftTokens;
+    // posting list of each rank, one after the other, sorted by size
+    private final int[] offsets;
+    private final int[] postingTrees;
+    private final int[] postingSizes;
+
+
+    /**
+     * @param left       left collection
+     * @param right      right collection, indexed
+     * @param operations largest number of operations of a pair of the join
+     */
+    PrefixIndex(List<? extends TreeSignature<?>> left, final List<? extends TreeSignature<?>> right, int operations) {
+        prefix = operations + 1;
+
+        // number of trees having each token, in both collections
+        final HashMap<Long, Integer> frequencies = new HashMap<>();
+        for (List<? extends TreeSignature<?>> trees : Arrays.asList(left, right)) {
+            for (TreeSignature<?> tree : trees) {
+                for (long token : tokens(tree)) {
+                    Integer frequency = frequencies.get(token);
+                    frequencies.put(token, frequency == null ? 1 : frequency + 1);
+                }
+            }
+        }
+        // rarest first, ties by token
+        Long[] tokens = frequencies.keySet().toArray(new Long[frequencies.size()]);
+        Arrays.sort(tokens, new Comparator<Long>() {
+            @Override
+            public int compare(Long token1, Long token2) {
+                int byFrequency = Integer.compare(frequencies.get(token1), frequencies.get(token2));
+                return byFrequency != 0 ? byFrequency : Long.compare(token1, token2);
+            }
+        });
+        HashMap<Long, Integer> ranks = new HashMap<>();
+        for (int rank = 0; rank != tokens.length; ++rank) {
+            ranks.put(tokens[rank], rank);
+        }
+
+        leftTokens = new int[left.size()][];
+        for (int i = 0; i != left.size(); ++i) {
+            leftTokens[i] = ranks(left.get(i), ranks);
+        }
+
+        // posting lists of the prefixes of the right trees, laid out by counting their sizes first
+        int[][] rightTokens = new int[right.size()][];
+        offsets = new int[tokens.length + 1];
+        for (int j = 0; j != right.size(); ++j) {
+            rightTokens[j] = ranks(right.get(j), ranks);
+            for (int k = 0; k != Math.min(prefix, rightTokens[j].length); ++k) {
+                offsets[rightTokens[j][k] + 1] += 1;
+            }
+        }
+        for (int rank = 0; rank != tokens.length; ++rank) {
+            offsets[rank + 1] += offsets[rank];
+        }
+        postingTrees = new int[offsets[tokens.length]];
+        postingSizes = new int[offsets[tokens.length]];
+        Integer[] bySize = new Integer[right.size()];
+        for (int j = 0; j != bySize.length; ++j) {
+            bySize[j] = j;
+        }
+        Arrays.sort(bySize, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer j1, Integer j2) {
+                return Integer.compare(right.get(j1).size, right.get(j2).size);
+            }
+        });
+        int[] next = Arrays.copyOf(offsets, tokens.length);
+        for (int j : bySize) {
+            for (int k = 0; k != Math.min(prefix, rightTokens[j].length); ++k) {
+                int position = next[rightTokens[j][k]]++;
+                postingTrees[position] = j;
+                postingSizes[position] = right.get(j).size;
+            }
+        }
+    }
+
+
+    /**
+     * @param i        index of the left tree
+     * @param smallest smallest size of the right trees wanted
+     * @param largest  largest size of the right trees wanted
+     * @return indices of the right trees of those sizes sharing a token of their prefix with the left
+     * tree, increasing
+     */
+    int[] probe(int i, long smallest, long largest) {
+        int[] tokens = leftTokens[i];
+        int length = Math.min(prefix, tokens.length);
+        int[] from = new int[length];
+        int[] to = new int[length];
+        int total = 0;
+        for (int k = 0; k != length; ++k) {
+            from[k] = lowerBound(offsets[tokens[k]], offsets[tokens[k] + 1], smallest);
+            to[k] = lowerBound(from[k], offsets[tokens[k] + 1], largest + 1);
+            total += to[k] - from[k];
+        }
+        int[] found = new int[total];
+        total = 0;
+        for (int k = 0; k != length; ++k) {
+            System.arraycopy(postingTrees, from[k], found, total, to[k] - from[k]);
+            total += to[k] - from[k];
+        }
+        // a tree sharing several tokens is in several lists
+        Arrays.sort(found);
+        int distinct = 0;
+        for (int k = 0; k != found.length; ++k) {
+            if (k == 0 || found[k] != found[k - 1]) {
+                found[distinct++] = found[k];
+            }
+        }
+        return Arrays.copyOf(found, distinct);
+    }
+
+
+    /**
+     * @return first position of the posting list whose size is at least the key
+     */
+    private int lowerBound(int low, int high, long key) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (postingSizes[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+     * @return tokens of the tree: its label ids, numbered within each label
+     */
+    private static long[] tokens(TreeSignature<?> tree) {
+        // the labels of the signature are sorted, equal labels are consecutive
+        long[] tokens = new long[tree.size];
+        for (int x = 0; x != tree.size; ++x) {
+            int occurrence = x > 0 && tree.labels[x] == tree.labels[x - 1] ? (int) tokens[x - 1] + 1 : 0;
+            tokens[x] = (long) tree.labels[x] << 32 | occurrence;
+        }
+        return tokens;
+    }
+
+
+    /**
+     * @return ranks of the tokens of the tree, increasing
+     */
+    private static int[] ranks(TreeSignature<?> tree, HashMap<Long, Integer> ranks) {
+        long[] tokens = tokens(tree);
+        int[] ranked = new int[tokens.length];
+        for (int x = 0; x != tokens.length; ++x) {
+            ranked[x] = ranks.get(tokens[x]);
+        }
+        Arrays.sort(ranked);
+        return ranked;
+    }
+}
@@ -0,0 +1,272 @@
+package ted.join;
+
+import ted.core.distances.TreeEditDistance;
+import ted.core.repr.OrderedLabeledTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * Threshold similarity join between two collections of trees: finds all the pairs (one tree from
+ * each collection) whose tree edit distance is within the threshold.
+ * <p>
+ * It runs as a filter and verify pipeline. The right collection is indexed by size and by the rare
+ * labels of its trees (PrefixIndex), so only the pairs whose sizes are close enough and that share one
+ * of those labels are enumerated, not all the pairs of similar sizes. Those are then filtered by the
+ * difference of their label histograms, then of their binary branches, and the tree edit distance is
+ * only computed for the pairs that survive, in parallel.
+ * <p>
+ * The filters bound the number of edit operations. They are turned into bounds on the distance with
+ * the smallest cost of an edit operation (deletion, insertion, or substitution between different labels),
+ * which the caller provides: 1 for unit costs, 0 disables the filters.
+ *
+ * @param <T> type of the labels
+ */
+public class SimilarityJoin<T> {
+
+    // relative slack of the number of operations: the costs of a distance are added one at a time, so
+    // threshold / minimumOperationCost can round a little below the operations of a distance equal to it
+    private static final double BOUND_TOLERANCE = 1e-12;
+
+    private final TreeEditDistance<T> distance;
+    private final double minimumOperationCost;
+    private final ForkJoinPool pool;
+
+
+    /**
+     * Similarity join using a pool with one thread per core.
+     *
+     * @param distance             tree edit distance, shared by all the threads
+     * @param minimumOperationCost smallest cost of an edit operation under this distance
+     */
+    public SimilarityJoin(TreeEditDistance<T> distance, double minimumOperationCost) {
+        this(distance, minimumOperationCost, null);
+    }
+
+
+    /**
+     * Similarity join using the given pool.
+     *
+     * @param distance             tree edit distance, shared by all the threads
+     * @param minimumOperationCost smallest cost of an edit operation under this distance
+     * @param pool                 threads verifying the pairs
+     */
+    public SimilarityJoin(TreeEditDistance<T> distance, double minimumOperationCost, ForkJoinPool pool) {
+        if (!(minimumOperationCost >= 0)) {
+            throw new IllegalArgumentException("The minimum operation cost cannot be negative " + minimumOperationCost);
+        }
+        this.distance = distance;
+        this.minimumOperationCost = minimumOperationCost;
+        this.pool = pool;
+    }
+
+
+    /**
+     * Finds all the pairs of trees within the threshold.
+     *
+     * @param left      first collection
+     * @param right     second collection
+     * @param threshold largest distance of interest
+     * @return the pairs (sorted by left then right index) and what each stage pruned
+     */
+    public JoinResult join(List<? extends OrderedLabeledTree<T>> left,
+                           List<? extends OrderedLabeledTree<T>> right,
+                           double threshold) {
+        if (pool != null) {
+            return join(left, right, threshold, pool);
+        }
+        ForkJoinPool ownPool = new ForkJoinPool();
+        try {
+            return join(left, right, threshold, ownPool);
+        } finally {
+            ownPool.shutdown();
+        }
+    }
+
+
+    private JoinResult join(List<? extends OrderedLabeledTree<T>> left,
+                            List<? extends OrderedLabeledTree<T>> right,
+                            double threshold,
+                            ForkJoinPool pool) {
+        // signatures, with the labels numbered in a shared dictionary
+        HashMap<Object, Integer> dictionary = new HashMap<>();
+        List<TreeSignature<T>> leftSignatures = new ArrayList<>(left.size());
+        for (OrderedLabeledTree<T> tree : left) {
+            leftSignatures.add(new TreeSignature<>(tree.toCompactTree(), dictionary));
+        }
+        final List<TreeSignature<T>> rightSignatures = new ArrayList<>(right.size());
+        for (OrderedLabeledTree<T> tree : right) {
+            rightSignatures.add(new TreeSignature<>(tree.toCompactTree(), dictionary));
+        }
+
+        // size index over the right collection
+        Integer[] order = new Integer[right.size()];
+        for (int j = 0; j != order.length; ++j) {
+            order[j] = j;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer j1, Integer j2) {
+                return Integer.compare(rightSignatures.get(j1).size, rightSignatures.get(j2).size);
+            }
+        });
+        int[] sortedIndices = new int[order.length];
+        int[] sortedSizes = new int[order.length];
+        for (int j = 0; j != order.length; ++j) {
+            sortedIndices[j] = order[j];
+            sortedSizes[j] = rightSignatures.get(order[j]).size;
+        }
+
+        // number of operations that fit in the threshold
+        double operations = minimumOperationCost > 0
+                ? (threshold + Math.abs(threshold) * BOUND_TOLERANCE) / minimumOperationCost : Double.POSITIVE_INFINITY;
+
+        // label index over the right collection, unless any number of operations fits
+        PrefixIndex index = operations < Integer.MAX_VALUE - 1 && operations >= 0
+                ? new PrefixIndex(leftSignatures, rightSignatures, (int) operations) : null;
+
+        Probe<T> probe = new Probe<>(this, leftSignatures, rightSignatures, sortedIndices, sortedSizes, index,
+                threshold, operations, 0, left.size());
+        Probe<T> done = pool.invoke(probe);
+
+        Collections.sort(done.pairs, new Comparator<JoinPair>() {
+            @Override
+            public int compare(JoinPair pair1, JoinPair pair2) {
+                int byLeft = Integer.compare(pair1.getLeftIndex(), pair2.getLeftIndex());
+                return byLeft != 0 ? byLeft : Integer.compare(pair1.getRightIndex(), pair2.getRightIndex());
+            }
+        });
+        long pairs = (long) left.size() * right.size();
+        JoinStatistics statistics = new JoinStatistics(pairs, pairs - done.sized, done.sized - done.candidates,
+                done.prunedByLabels, done.prunedByBranches, done.verified, done.pairs.size());
+        return new JoinResult(done.pairs, statistics);
+    }
+
+
+    /**
+     * Probes the right collection with a range of trees of the left collection, split in halves
+     * down to a single tree. Results and counts are merged on the way back.
+     */
+    private static final class Probe<T> extends RecursiveTask<Probe<T>> {
+        private static final long serialVersionUID = 1L;
+        private final SimilarityJoin<T> join;
+        private final List<TreeSignature<T>> left, right;
+        private final int[] sortedIndices, sortedSizes;
+        private final PrefixIndex index;
+        private final double threshold, operations;
+        private final int from, to;
+        //
+        List<JoinPair> pairs = new ArrayList<>();
+        long sized, candidates, prunedByLabels, prunedByBranches, verified;
+
+        Probe(SimilarityJoin<T> join, List<TreeSignature<T>> left, List<TreeSignature<T>> right,
+              int[] sortedIndices, int[] sortedSizes, PrefixIndex index, double threshold, double operations,
+              int from, int to) {
+            this.join = join;
+            this.left = left;
+            this.right = right;
+            this.sortedIndices = sortedIndices;
+            this.sortedSizes = sortedSizes;
+            this.index = index;
+            this.threshold = threshold;
+            this.operations = operations;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Probe<T> compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                Probe<T> first = new Probe<>(join, left, right, sortedIndices, sortedSizes, index, threshold, operations, from, middle);
+                Probe<T> second = new Probe<>(join, left, right, sortedIndices, sortedSizes, index, threshold, operations, middle, to);
+                invokeAll(first, second);
+                pairs.addAll(first.pairs);
+                pairs.addAll(second.pairs);
+                sized = first.sized + second.sized;
+                candidates = first.candidates + second.candidates;
+                prunedByLabels = first.prunedByLabels + second.prunedByLabels;
+                prunedByBranches = first.prunedByBranches + second.prunedByBranches;
+                verified = first.verified + second.verified;
+                return this;
+            }
+            for (int i = from; i != to; ++i) {
+                probe(i);
+            }
+            return this;
+        }
+
+        private void probe(int i) {
+            TreeSignature<T> query = left.get(i);
+
+            // right trees whose size differs by at most the number of operations
+            long lowest = (long) Math.max(Integer.MIN_VALUE, Math.ceil(query.size - operations));
+            long highest = (long) Math.min(Integer.MAX_VALUE, Math.floor(query.size + operations));
+            int start = lowerBound(sortedSizes, lowest);
+            int end = lowerBound(sortedSizes, highest + 1);
+            sized += end - start;
+
+            for (int j : candidates(i, query.size, start, end, lowest, highest)) {
+                candidates += 1;
+                TreeSignature<T> candidate = right.get(j);
+                if (query.labelBound(candidate) > operations) {
+                    prunedByLabels += 1;
+                    continue;
+                }
+                if (query.branchBound(candidate) > operations) {
+                    prunedByBranches += 1;
+                    continue;
+                }
+                verified += 1;
+                double distance = join.distance.getDistance(query.tree, candidate.tree, threshold);
+                if (distance != TreeEditDistance.EXCEEDS_THRESHOLD) {
+                    pairs.add(new JoinPair(i, j, distance));
+                }
+            }
+        }
+
+        /**
+         * @return right trees enumerated for the left tree: all those whose sizes are between lowest and
+         * highest (positions start to end of the size index) without a label index, otherwise the ones
+         * small enough to need no common label with it, then the ones sharing a label of the prefixes
+         */
+        private int[] candidates(int i, int size, int start, int end, long lowest, long highest) {
+            if (index == null) {
+                return Arrays.copyOfRange(sortedIndices, start, end);
+            }
+            // both trees within the number of operations, every node can be deleted or inserted
+            int small = start;
+            if (size <= operations) {
+                small = Math.max(start, Math.min(end, lowerBound(sortedSizes, (long) Math.floor(operations) + 1)));
+                lowest = Math.max(lowest, (long) Math.floor(operations) + 1);
+            }
+            int[] shared = lowest <= highest ? index.probe(i, lowest, highest) : new int[0];
+            int[] found = Arrays.copyOfRange(sortedIndices, start, small + shared.length);
+            System.arraycopy(shared, 0, found, small - start, shared.length);
+            return found;
+        }
+
+        /**
+         * @return first position whose value is at least the key
+         */
+        private static int lowerBound(int[] sorted, long key) {
+            int low = 0, high = sorted.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sorted[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+}
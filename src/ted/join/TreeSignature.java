@@ -0,0 +1,115 @@
+package ted.join;
+
+import ted.core.repr.CompactTree;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * What the filters of the join know about a tree: its size, the bag of its labels and the bag
+ * of its binary branches. Labels are numbered in a dictionary shared by both collections.
+ *
+ * @param <T> type of the labels
+ */
+final class TreeSignature<T> {
+
+    final CompactTree<T> tree;
+    final int size;
+    // ids of the labels of the nodes, sorted
+    final int[] labels;
+    // binary branches of the nodes, sorted
+    final long[] branches;
+
+
+    /**
+     * @param tree       the tree
+     * @param dictionary ids of the labels, shared by all the trees, completed as needed
+     */
+    TreeSignature(CompactTree<T> tree, Map<Object, Integer> dictionary) {
+        this.tree = tree;
+        size = tree.size();
+
+        // global id of each label of the alphabet of the tree
+        int[] ids = new int[tree.getAlphabetSize()];
+        for (int i = 0; i != ids.length; ++i) {
+            Object label = tree.getAlphabetLabel(i);
+            Integer id = dictionary.get(label);
+            if (id == null) {
+                id = dictionary.size();
+                dictionary.put(label, id);
+            }
+            ids[i] = id;
+        }
+
+        int[] labelIds = tree.getLabelIds();
+        labels = new int[size];
+        for (int x = 0; x != size; ++x) {
+            labels[x] = ids[labelIds[x]];
+        }
+
+        // in the binary tree (first child on the left, next sibling on the right), each node gives
+        // the branch (label, label of the left child, label of the right child), 0 for a missing child
+        int[] firstChildren = tree.getFirstChildren();
+        int[] nextSiblings = tree.getNextSiblings();
+        branches = new long[size];
+        for (int x = 0; x != size; ++x) {
+            long left = firstChildren[x] == -1 ? 0 : labels[firstChildren[x]] + 1;
+            long right = nextSiblings[x] == -1 ? 0 : labels[nextSiblings[x]] + 1;
+            // distinct branches may collide on very large alphabets, which only weakens the bound
+            branches[x] = ((labels[x] + 1L) * 0x9E3779B97F4A7C15L + left) * 0xC2B2AE3D27D4EB4FL + right;
+        }
+
+        Arrays.sort(labels);
+        Arrays.sort(branches);
+    }
+
+
+    /**
+     * Unit cost lower bound from the labels: the nodes of one tree that find no node with the same
+     * label in the other tree are deleted or relabeled (and conversely).
+     */
+    int labelBound(TreeSignature<?> other) {
+        int only1 = 0, only2 = 0;
+        int i = 0, j = 0;
+        while (i != labels.length && j != other.labels.length) {
+            if (labels[i] == other.labels[j]) {
+                i += 1;
+                j += 1;
+            } else if (labels[i] < other.labels[j]) {
+                only1 += 1;
+                i += 1;
+            } else {
+                only2 += 1;
+                j += 1;
+            }
+        }
+        only1 += labels.length - i;
+        only2 += other.labels.length - j;
+        return Math.max(only1, only2);
+    }
+
+
+    /**
+     * Unit cost lower bound from the binary branches (Yang, Kalnis and Tung): a single edit operation
+     * changes at most 5 branches, so the difference between the bags of branches is at most 5 times
+     * the tree edit distance.
+     */
+    double branchBound(TreeSignature<?> other) {
+        int difference = 0;
+        int i = 0, j = 0;
+        while (i != branches.length && j != other.branches.length) {
+            if (branches[i] == other.branches[j]) {
+                i += 1;
+                j += 1;
+            } else if (branches[i] < other.branches[j]) {
+                difference += 1;
+                i += 1;
+            } else {
+                difference += 1;
+                j += 1;
+            }
+        }
+        difference += branches.length - i + other.branches.length - j;
+        return difference / 5.;
+    }
+}
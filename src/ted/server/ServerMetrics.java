@@ -0,0 +1,172 @@
+package ted.server;
+
+import ted.core.metrics.AggregatingMetrics;
+import ted.core.metrics.Histogram;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Throughput and latency of a TedServer: requests served and refused, comparisons and the batches
+ * they ran in, time from receiving a request to answering it, and comparisons admitted but not done
+ * yet. Thread safe, and exported in the Prometheus text format like AggregatingMetrics.
+ */
+public final class ServerMetrics {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong comparisons = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    //
+    private final Histogram latencyNanos = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+
+
+    ServerMetrics() {
+    }
+
+
+    /**
+     * Admits comparisons, if they fit in the queue.
+     *
+     * @return false if admitting them would exceed the capacity, nothing is admitted then
+     */
+    boolean admit(int count, int capacity) {
+        while (true) {
+            int depth = queueDepth.get();
+            if (depth + count > capacity) {
+                return false;
+            }
+            if (queueDepth.compareAndSet(depth, depth + count)) {
+                return true;
+            }
+        }
+    }
+
+
+    void recordComparisonsDone(int count) {
+        queueDepth.addAndGet(-count);
+        comparisons.addAndGet(count);
+    }
+
+
+    void recordBatch(int size) {
+        batches.incrementAndGet();
+        batchSizes.record(size);
+    }
+
+
+    void recordRequest(long nanos) {
+        requests.incrementAndGet();
+        latencyNanos.record(nanos);
+    }
+
+
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+
+    void recordFailed() {
+        failed.incrementAndGet();
+    }
+
+
+    /**
+     * @return number of requests answered, successfully or not
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+
+    /**
+     * @return number of requests refused because the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+
+    /**
+     * @return number of requests that failed, malformed or whose comparison threw
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+
+    /**
+     * @return number of comparisons done
+     */
+    public long getComparisons() {
+        return comparisons.get();
+    }
+
+
+    /**
+     * @return number of tasks the comparisons ran in, each one a batch of comparisons
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+
+    /**
+     * @return number of comparisons admitted and not done yet
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+
+    /**
+     * @return histogram of the time to answer a request, in nanoseconds
+     */
+    public Histogram getLatencyNanos() {
+        return latencyNanos;
+    }
+
+
+    /**
+     * @return histogram of the number of comparisons of a batch
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+
+    /**
+     * Writes the metrics in the Prometheus text format, each name starting with the prefix.
+     *
+     * @param out    where the metrics are written
+     * @param prefix e.g. "ted_server"
+     */
+    public void export(Appendable out, String prefix) throws IOException {
+        AggregatingMetrics.counter(out, prefix + "_requests_total", requests.get());
+        AggregatingMetrics.counter(out, prefix + "_rejected_total", rejected.get());
+        AggregatingMetrics.counter(out, prefix + "_failed_total", failed.get());
+        AggregatingMetrics.counter(out, prefix + "_comparisons_total", comparisons.get());
+        AggregatingMetrics.counter(out, prefix + "_batches_total", batches.get());
+        out.append("# TYPE ").append(prefix).append("_queue_depth gauge\n");
+        out.append(prefix).append("_queue_depth ").append(String.valueOf(queueDepth.get())).append('\n');
+        AggregatingMetrics.histogram(out, prefix + "_latency_nanoseconds", latencyNanos);
+        AggregatingMetrics.histogram(out, prefix + "_batch_size", batchSizes);
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            export(builder, "ted_server");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+}
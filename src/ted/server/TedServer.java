@@ -0,0 +1,528 @@
+package ted.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import ted.core.distances.PreparedQuery;
+import ted.core.distances.TreeEditDistance;
+import ted.core.metrics.AggregatingMetrics;
+import ted.core.metrics.TedMetrics;
+import ted.core.repr.CompactTree;
+import ted.core.repr.StringTree;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * HTTP service computing tree edit distances, on the HTTP server of the JDK (com.sun.net.httpserver),
+ * with no other dependency. Trees are in bracket notation ({a{b}{c}}), one per line of a UTF-8 body:
+ * <ul>
+ * <li>POST /distance: two trees, answered with their distance;</li>
+ * <li>POST /distances: a query then any number of candidates, answered with the distance to each
+ * candidate, one per line;</li>
+ * <li>GET /metrics: metrics of the server, and of the engine if it aggregates them, in the Prometheus
+ * text format.</li>
+ * </ul>
+ * <p>
+ * Exchanges are handled by threads that only parse the trees, wait and answer, created as needed.
+ * The comparisons run on a fixed pool of workers. Single pairs are coalesced into batches, up to a
+ * maximum size or a short delay after the first pair, so that a worker runs many small comparisons
+ * per task; the candidates of a request are split into batches of the same size, sharing a prepared
+ * query.
+ * <p>
+ * Comparisons admitted and not done yet are counted: a request that would take the count beyond the
+ * capacity of the queue is refused right away with 503 (and Retry-After), one that could never fit
+ * with 413, so that clients back off instead of piling up latency. Malformed trees get 400, a
+ * comparison that fails (even with an error, such as running out of memory) 500, and a request whose
+ * comparisons take longer than the timeout 504.
+ */
+public final class TedServer {
+
+    private static final int DEFAULT_BATCH_SIZE = 32;
+    private static final long DEFAULT_BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final TreeEditDistance<String> engine;
+    private final int queueCapacity;
+    private final HttpServer server;
+    private final ExecutorService exchanges;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int maxBatchSize = DEFAULT_BATCH_SIZE;
+    private long batchDelayNanos = DEFAULT_BATCH_DELAY_NANOS;
+    private long timeoutNanos = DEFAULT_TIMEOUT_NANOS;
+    // pairs waiting for their batch to be full or for its delay, and the task flushing it after the delay
+    private final Object batchLock = new Object();
+    private List<Pair> batch = new ArrayList<>();
+    private ScheduledFuture<?> flush;
+
+
+    /**
+     * Creates the server, with a worker per core and a queue of 64 comparisons per worker.
+     *
+     * @param engine  tree edit distance, shared by the workers
+     * @param address address to listen to, port 0 for any free port
+     */
+    public TedServer(TreeEditDistance<String> engine, InetSocketAddress address) throws IOException {
+        this(engine, address, Runtime.getRuntime().availableProcessors(), 64 * Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * Creates the server, which does not listen until it is started.
+     *
+     * @param engine        tree edit distance, shared by the workers
+     * @param address       address to listen to, port 0 for any free port
+     * @param workers       number of threads running the comparisons
+     * @param queueCapacity largest number of comparisons admitted and not done yet
+     */
+    public TedServer(TreeEditDistance<String> engine, InetSocketAddress address, int workers, int queueCapacity)
+            throws IOException {
+        if (workers < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid workers " + workers + " or queue capacity " + queueCapacity);
+        }
+        this.engine = engine;
+        this.queueCapacity = queueCapacity;
+        // admission control bounds the queue of the workers
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threads("ted-server-worker"));
+        exchanges = Executors.newCachedThreadPool(threads("ted-server-exchange"));
+        timer = Executors.newSingleThreadScheduledExecutor(threads("ted-server-batcher"));
+        server = HttpServer.create(address, 0);
+        server.setExecutor(exchanges);
+        HttpHandler handler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                TedServer.this.handle(exchange);
+            }
+        };
+        server.createContext("/distance", handler);
+        server.createContext("/distances", handler);
+        server.createContext("/metrics", handler);
+    }
+
+
+    /**
+     * Sets the largest number of comparisons run by a worker task, before the server is started.
+     *
+     * @param maxBatchSize number of comparisons, 1 to run each pair on its own
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+
+    /**
+     * Sets how long a pair can wait for others to fill its batch, before the server is started.
+     *
+     * @param delay longest wait
+     * @param unit  unit of the delay
+     */
+    public void setBatchDelay(long delay, TimeUnit unit) {
+        batchDelayNanos = unit.toNanos(delay);
+    }
+
+
+    /**
+     * Sets how long an exchange waits for its comparisons before answering 504, before the server is
+     * started. Comparisons still running then stay admitted until they are done.
+     *
+     * @param timeout longest wait
+     * @param unit    unit of the timeout
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Invalid timeout " + timeout);
+        }
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+
+    public void start() {
+        server.start();
+    }
+
+
+    /**
+     * Stops listening, and stops the threads once the comparisons admitted are done.
+     */
+    public void stop() {
+        server.stop(0);
+        timer.shutdown();
+        workers.shutdown();
+        exchanges.shutdown();
+    }
+
+
+    /**
+     * @return address the server listens to, with the port actually bound
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+
+    /**
+     * getter
+     *
+     * @return metrics of the server
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String path = exchange.getRequestURI().getPath();
+            boolean post = "POST".equals(exchange.getRequestMethod());
+            switch (path) {
+                case "/metrics":
+                    respond(exchange, 200, exportMetrics());
+                    return;
+                case "/distance":
+                case "/distances":
+                    if (!post) {
+                        metrics.recordFailed();
+                        respond(exchange, 405, "POST trees, one per line\n");
+                        return;
+                    }
+                    compare(exchange, path.equals("/distance"));
+                    return;
+                default:
+                    metrics.recordFailed();
+                    respond(exchange, 404, "Unknown path " + path + "\n");
+            }
+        } finally {
+            metrics.recordRequest(System.nanoTime() - start);
+            exchange.close();
+        }
+    }
+
+
+    /**
+     * Parses the trees, admits their comparisons, waits for them and answers.
+     */
+    private void compare(HttpExchange exchange, boolean pair) throws IOException {
+        List<CompactTree<String>> trees = new ArrayList<>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (!line.trim().isEmpty()) {
+                    trees.add(new StringTree(line.trim()).toCompactTree());
+                }
+            }
+        } catch (RuntimeException e) {
+            metrics.recordFailed();
+            respond(exchange, 400, "Malformed tree: " + e.getMessage() + "\n");
+            return;
+        }
+        if (pair ? trees.size() != 2 : trees.isEmpty()) {
+            metrics.recordFailed();
+            respond(exchange, 400, (pair ? "Expected 2 trees, got " : "Expected a query, got ") + trees.size() + "\n");
+            return;
+        }
+
+        int comparisons = trees.size() - 1;
+        if (comparisons > queueCapacity) {
+            metrics.recordRejected();
+            respond(exchange, 413, "At most " + queueCapacity + " candidates per request\n");
+            return;
+        }
+        if (!metrics.admit(comparisons, queueCapacity)) {
+            metrics.recordRejected();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 503, "Too many comparisons queued\n");
+            return;
+        }
+
+        Request request = new Request(comparisons);
+        if (pair) {
+            submit(new Pair(trees.get(0), trees.get(1), request));
+        } else {
+            PreparedQuery<String> query = new PreparedQuery<>(engine, trees.get(0));
+            for (int from = 1; from < trees.size(); from += maxBatchSize) {
+                int to = Math.min(trees.size(), from + maxBatchSize);
+                execute(new Candidates(query, trees.subList(from, to), from - 1, request), to - from, request);
+            }
+        }
+        try {
+            if (!request.done.await(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                metrics.recordFailed();
+                respond(exchange, 504, "Comparisons timed out\n");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            metrics.recordFailed();
+            respond(exchange, 503, "Interrupted\n");
+            return;
+        }
+
+        if (request.failure != null) {
+            metrics.recordFailed();
+            respond(exchange, 500, "Comparison failed: " + request.failure + "\n");
+            return;
+        }
+        StringBuilder answer = new StringBuilder();
+        for (double distance : request.distances) {
+            answer.append(distance).append('\n');
+        }
+        respond(exchange, 200, answer.toString());
+    }
+
+
+    /**
+     * Adds a pair to the current batch, which goes to the workers once full or after the delay.
+     */
+    private void submit(Pair pair) {
+        List<Pair> full = null;
+        synchronized (batchLock) {
+            batch.add(pair);
+            if (batch.size() >= maxBatchSize) {
+                full = takeBatch();
+            } else if (flush == null) {
+                try {
+                    flush = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            List<Pair> pairs;
+                            synchronized (batchLock) {
+                                flush = null;
+                                pairs = batch.isEmpty() ? null : takeBatch();
+                            }
+                            if (pairs != null) {
+                                executePairs(pairs);
+                            }
+                        }
+                    }, batchDelayNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // stopping, no more delays
+                    full = takeBatch();
+                }
+            }
+        }
+        if (full != null) {
+            executePairs(full);
+        }
+    }
+
+
+    /**
+     * Takes the current batch, whose flush is no longer needed. Called with the batch lock held.
+     */
+    private List<Pair> takeBatch() {
+        List<Pair> pairs = batch;
+        batch = new ArrayList<>();
+        if (flush != null) {
+            flush.cancel(false);
+            flush = null;
+        }
+        return pairs;
+    }
+
+
+    private void executePairs(List<Pair> pairs) {
+        try {
+            workers.execute(new Pairs(pairs));
+        } catch (RejectedExecutionException e) {
+            for (Pair pair : pairs) {
+                pair.request.fail(e, 1);
+                metrics.recordComparisonsDone(1);
+            }
+        }
+    }
+
+
+    /**
+     * Runs a task of the workers, or fails its comparisons if the workers are stopping.
+     */
+    private void execute(Runnable task, int comparisons, Request request) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            request.fail(e, comparisons);
+            metrics.recordComparisonsDone(comparisons);
+        }
+    }
+
+
+    private String exportMetrics() throws IOException {
+        StringBuilder out = new StringBuilder();
+        metrics.export(out, "ted_server");
+        TedMetrics engineMetrics = engine.getMetrics();
+        if (engineMetrics instanceof AggregatingMetrics) {
+            ((AggregatingMetrics) engineMetrics).export(out, "ted");
+        }
+        return out.toString();
+    }
+
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+
+    /**
+     * Daemon threads, numbered.
+     */
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * Distances of a request, filled in by the workers.
+     */
+    private static final class Request {
+        final double[] distances;
+        final CountDownLatch done;
+        volatile Throwable failure;
+
+        Request(int comparisons) {
+            distances = new double[comparisons];
+            done = new CountDownLatch(comparisons);
+        }
+
+        void fail(Throwable throwable, int comparisons) {
+            failure = throwable;
+            for (int i = 0; i != comparisons; ++i) {
+                done.countDown();
+            }
+        }
+    }
+
+
+    /**
+     * Single pair of trees, waiting for its batch.
+     */
+    private static final class Pair {
+        final CompactTree<String> tree1;
+        final CompactTree<String> tree2;
+        final Request request;
+
+        Pair(CompactTree<String> tree1, CompactTree<String> tree2, Request request) {
+            this.tree1 = tree1;
+            this.tree2 = tree2;
+            this.request = request;
+        }
+    }
+
+
+    /**
+     * Batch of single pairs, from different requests.
+     */
+    private final class Pairs implements Runnable {
+        private final List<Pair> pairs;
+
+        Pairs(List<Pair> pairs) {
+            this.pairs = pairs;
+        }
+
+        @Override
+        public void run() {
+            int next = 0;
+            try {
+                metrics.recordBatch(pairs.size());
+                while (next != pairs.size()) {
+                    Pair pair = pairs.get(next++);
+                    try {
+                        pair.request.distances[0] = engine.getDistance(pair.tree1, pair.tree2);
+                    } catch (Throwable e) {
+                        // errors too (out of memory...), the exchange answers 500 instead of a distance never computed
+                        pair.request.failure = e;
+                    } finally {
+                        metrics.recordComparisonsDone(1);
+                        pair.request.done.countDown();
+                    }
+                }
+            } finally {
+                // whatever stopped the batch, the pairs left are not waited for forever
+                for (; next < pairs.size(); ++next) {
+                    pairs.get(next).request.fail(new IllegalStateException("Batch stopped before this pair"), 1);
+                    metrics.recordComparisonsDone(1);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Batch of candidates of the same request.
+     */
+    private final class Candidates implements Runnable {
+        private final PreparedQuery<String> query;
+        private final List<CompactTree<String>> candidates;
+        private final int offset;
+        private final Request request;
+
+        Candidates(PreparedQuery<String> query, List<CompactTree<String>> candidates, int offset, Request request) {
+            this.query = query;
+            this.candidates = candidates;
+            this.offset = offset;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            int next = 0;
+            try {
+                metrics.recordBatch(candidates.size());
+                while (next != candidates.size()) {
+                    int i = next++;
+                    try {
+                        request.distances[offset + i] = query.distanceTo(candidates.get(i));
+                    } catch (Throwable e) {
+                        request.failure = e;
+                    } finally {
+                        metrics.recordComparisonsDone(1);
+                        request.done.countDown();
+                    }
+                }
+            } finally {
+                int left = candidates.size() - next;
+                if (left > 0) {
+                    request.fail(new IllegalStateException("Batch stopped before " + left + " candidates"), left);
+                    metrics.recordComparisonsDone(left);
+                }
+            }
+        }
+    }
+}
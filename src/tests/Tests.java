@@ -1,10 +1,73 @@
 package tests;
 
+import benchmarks.TreeShapes;
+import ted.approximate.BinaryBranchDistance;
+import ted.approximate.PqGramDistance;
+import ted.convenience.TED;
+import ted.core.distances.Deadline;
+import ted.core.distances.DistanceResult;
+import ted.core.distances.EditMapping;
+import ted.core.distances.EditOperation;
+import ted.core.distances.IncrementalSession;
+import ted.core.distances.LowMemoryTreeEditDistance;
+import ted.core.distances.ParallelTreeEditDistance;
+import ted.core.distances.PreparedQuery;
+import ted.core.distances.RobustTreeEditDistance;
+import ted.core.distances.SubtreeCache;
+import ted.core.distances.TedWorkspace;
 import ted.core.distances.TreeEditDistance;
 import ted.core.interfaces.CostFunction;
 import ted.core.interfaces.DistanceFunction;
+import ted.core.interfaces.DistanceSink;
+import ted.core.metrics.AggregatingMetrics;
+import ted.core.metrics.ComparisonStatistics;
+import ted.core.metrics.Histogram;
+import ted.core.metrics.TedMetrics;
 
+import ted.core.repr.BracketParser;
+import ted.core.repr.CompactTree;
 import ted.core.repr.StringTree;
+import ted.core.repr.TreeCorpus;
+import ted.core.repr.TreeCorpusWriter;
+import ted.core.util.CachingDistanceFunction;
+import ted.core.util.TriangularMatrix;
+import ted.index.Neighbor;
+import ted.index.ProfileIndex;
+import ted.index.QueryResult;
+import ted.index.VantagePointTree;
+import ted.join.JoinPair;
+import ted.join.JoinResult;
+import ted.join.JoinStatistics;
+import ted.join.SimilarityJoin;
+import ted.server.TedServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Tests {
 
@@ -77,11 +140,1534 @@ public final class Tests {
     }
 
 
-    public static void main(String[] args)
+    static boolean TestCompactTree()
+    {
+        String first = "{f{d{a}{c{b}}}{e}}";
+        String second = "{f{c{d{a}{b}}}{e}}";
+        StringTree tree1 = new StringTree(first);
+        StringTree tree2 = new StringTree(second);
+        CompactTree<String> compact1 = new CompactTree<>(StringTree.extractTopology(first),
+                                                         StringTree.extractPreOrderLabels(first));
+        CompactTree<String> compact2 = tree2.toCompactTree();
+
+        System.out.println("compact tree test");
+        System.out.println(Arrays.equals(tree1.getKeyRoots(), compact1.getKeyRoots()));
+        System.out.println(Arrays.equals(tree1.getLeftmostDescendants(), compact1.getLeftmostDescendants()));
+        System.out.println(tree1.getPostOrderLabels().equals(compact1.getPostOrderLabels()));
+        System.out.println(Arrays.equals(tree2.getKeyRoots(), compact2.getKeyRoots()));
+        System.out.println(Arrays.equals(compact1.getPostOrderIndices(), tree1.toCompactTree().getPostOrderIndices()));
+
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        System.out.println(f1.getDistance(compact1, compact2) == f1.getDistance(tree1, tree2));
+
+        return true;
+    }
+
+
+    /**
+     * Builds a random tree in bracket notation, each new node being attached to a random
+     * node of the rightmost path, so that all the shapes can come out.
+     */
+    static String randomBrackets(Random random, int size, int alphabetSize)
+    {
+        int[] path = new int[size];
+        int[] parents = new int[size];
+        int depth = 0;
+        parents[0] = -1;
+        for (int i = 1; i != size; ++i)
+        {
+            depth = random.nextInt(depth + 1);
+            parents[i] = path[depth];
+            depth += 1;
+            path[depth] = i;
+        }
+
+        // parents come before their children, and the siblings are in order
+        StringBuilder builder = new StringBuilder();
+        int[] stack = new int[size];
+        int top = 0;
+        for (int i = 0; i != size; ++i)
+        {
+            while (top != 0 && stack[top - 1] != parents[i])
+            {
+                builder.append('}');
+                top -= 1;
+            }
+            builder.append('{').append((char) ('a' + random.nextInt(alphabetSize)));
+            stack[top] = i;
+            top += 1;
+        }
+        while (top != 0)
+        {
+            builder.append('}');
+            top -= 1;
+        }
+        return builder.toString();
+    }
+
+
+    // costs that depend on the labels, to exercise more than the unit costs
+    private static class labelCost implements CostFunction<String>
+    {
+        private final int weight;
+
+        labelCost(int weight)
+        {
+            this.weight = weight;
+        }
+
+        @Override
+        public double getCost(String label) {
+            return 1 + (label.charAt(0) * weight) % 3;
+        }
+    }
+
+    private static class labelDistance implements DistanceFunction<String, String>
+    {
+        @Override
+        public double getDistance(String label1, String label2) {
+            return Math.abs(label1.charAt(0) - label2.charAt(0)) * 0.75;
+        }
+    }
+
+
+    /**
+     * Straightforward recursive forest distance, memoized on the post-order ranges of the forests.
+     * Slow, but simple enough to be trusted as a reference on small trees.
+     */
+    static double referenceDistance(CompactTree<String> tree1, CompactTree<String> tree2,
+                                    CostFunction<String> insertCost, CostFunction<String> deleteCost,
+                                    DistanceFunction<String, String> subCost)
+    {
+        return referenceHelper(tree1, tree2, 0, tree1.size() - 1, 0, tree2.size() - 1,
+                insertCost, deleteCost, subCost, new HashMap<List<Integer>, Double>());
+    }
+
+    private static double referenceHelper(CompactTree<String> tree1, CompactTree<String> tree2,
+                                          int i1, int j1, int i2, int j2,
+                                          CostFunction<String> insertCost, CostFunction<String> deleteCost,
+                                          DistanceFunction<String, String> subCost,
+                                          HashMap<List<Integer>, Double> memo)
+    {
+        if (j1 < i1 && j2 < i2)
+        {
+            return 0;
+        }
+        List<Integer> key = Arrays.asList(i1, j1, i2, j2);
+        Double known = memo.get(key);
+        if (known != null)
+        {
+            return known;
+        }
+        double best = Double.POSITIVE_INFINITY;
+        if (j1 >= i1)
+        {
+            best = Math.min(best, referenceHelper(tree1, tree2, i1, j1 - 1, i2, j2, insertCost, deleteCost, subCost, memo)
+                    + deleteCost.getCost(tree1.getLabel(j1)));
+        }
+        if (j2 >= i2)
+        {
+            best = Math.min(best, referenceHelper(tree1, tree2, i1, j1, i2, j2 - 1, insertCost, deleteCost, subCost, memo)
+                    + insertCost.getCost(tree2.getLabel(j2)));
+        }
+        if (j1 >= i1 && j2 >= i2)
+        {
+            int l1 = tree1.getLeftmostDescendants()[j1];
+            int l2 = tree2.getLeftmostDescendants()[j2];
+            best = Math.min(best,
+                    referenceHelper(tree1, tree2, i1, l1 - 1, i2, l2 - 1, insertCost, deleteCost, subCost, memo)
+                    + referenceHelper(tree1, tree2, l1, j1 - 1, l2, j2 - 1, insertCost, deleteCost, subCost, memo)
+                    + subCost.getDistance(tree1.getLabel(j1), tree2.getLabel(j2)));
+        }
+        memo.put(key, best);
+        return best;
+    }
+
+
+    static CompactTree<String> compact(String brackets)
+    {
+        return new CompactTree<>(StringTree.extractTopology(brackets), StringTree.extractPreOrderLabels(brackets));
+    }
+
+
+    static boolean TestAgainstReference()
+    {
+        CostFunction<String> insertCost = new labelCost(1);
+        CostFunction<String> deleteCost = new labelCost(2);
+        DistanceFunction<String, String> subCost = new labelDistance();
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(insertCost, deleteCost, subCost);
+        Random random = new Random(7);
+
+        System.out.println("reference test");
+        boolean same = true;
+        for (int i = 0; i != 200; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(9), 3));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(9), 3));
+            double expected = referenceDistance(tree1, tree2, insertCost, deleteCost, subCost);
+            same &= Math.abs(expected - f1.getDistance(tree1, tree2)) < 1e-9;
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean TestRobust()
+    {
+        CostFunction<String> insertCost = new labelCost(1);
+        CostFunction<String> deleteCost = new labelCost(2);
+        DistanceFunction<String, String> subCost = new labelDistance();
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(insertCost, deleteCost, subCost);
+        TreeEditDistance<String> f2 = new RobustTreeEditDistance<>(insertCost, deleteCost, subCost);
+        Random random = new Random(11);
+
+        System.out.println("robust test");
+        boolean same = true;
+        for (int i = 0; i != 200; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(9), 3));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(9), 3));
+            double expected = referenceDistance(tree1, tree2, insertCost, deleteCost, subCost);
+            same &= Math.abs(expected - f2.getDistance(tree1, tree2)) < 1e-9;
+        }
+        System.out.println(same);
+
+        // bigger trees, the whole tables of subtree distances must match
+        same = true;
+        for (int i = 0; i != 100; ++i)
+        {
+            StringTree tree1 = new StringTree(randomBrackets(random, 2 + random.nextInt(60), 4));
+            StringTree tree2 = new StringTree(randomBrackets(random, 2 + random.nextInt(60), 4));
+            same &= Arrays.deepEquals(f1.treeEditDistance(tree1, tree2), f2.treeEditDistance(tree1, tree2));
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean TestParallel()
+    {
+        CostFunction<String> insertCost = new labelCost(1);
+        CostFunction<String> deleteCost = new labelCost(2);
+        DistanceFunction<String, String> subCost = new labelDistance();
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(insertCost, deleteCost, subCost);
+        TreeEditDistance<String> f2 = new ParallelTreeEditDistance<>(insertCost, deleteCost, subCost, new ForkJoinPool(4));
+        Random random = new Random(5);
+
+        System.out.println("parallel test");
+        boolean same = true;
+        for (int i = 0; i != 10; ++i)
+        {
+            StringTree tree1 = new StringTree(randomBrackets(random, 200 + random.nextInt(400), 4));
+            StringTree tree2 = new StringTree(randomBrackets(random, 200 + random.nextInt(400), 4));
+            same &= Arrays.deepEquals(f1.treeEditDistance(tree1, tree2), f2.treeEditDistance(tree1, tree2));
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean TestDistanceMatrix()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(3);
+        List<StringTree> trees = new ArrayList<>();
+        for (int i = 0; i != 30; ++i)
+        {
+            trees.add(new StringTree(randomBrackets(random, 2 + random.nextInt(40), 4)));
+        }
+
+        System.out.println("distance matrix test");
+        TriangularMatrix matrix = TED.distanceMatrix(trees, f1);
+        boolean same = true;
+        for (int i = 0; i != trees.size(); ++i)
+        {
+            for (int j = 0; j != trees.size(); ++j)
+            {
+                double expected = i == j ? 0 : f1.getDistance(trees.get(Math.min(i, j)), trees.get(Math.max(i, j)));
+                same &= matrix.get(i, j) == expected;
+            }
+        }
+        System.out.println(same);
+
+        final AtomicInteger pairs = new AtomicInteger();
+        TED.distanceMatrix(trees, f1, new DistanceSink() {
+            @Override
+            public void accept(int index1, int index2, double distance) {
+                if (index1 < index2)
+                {
+                    pairs.incrementAndGet();
+                }
+            }
+        }, new ForkJoinPool(3));
+        System.out.println(pairs.get() == 30 * 29 / 2);
+
+        return true;
+    }
+
+
+    static boolean TestThreshold()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(13);
+
+        System.out.println("threshold test");
+        boolean same = true;
+        for (int i = 0; i != 300; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(30), 3));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(30), 3));
+            double exact = f1.getDistance(tree1, tree2);
+            for (double threshold : new double[]{0, exact - 0.25, exact, exact + 1, random.nextDouble() * 2 * exact})
+            {
+                double expected = exact <= threshold ? exact : TreeEditDistance.EXCEEDS_THRESHOLD;
+                same &= f1.getDistance(tree1, tree2, threshold) == expected;
+            }
+        }
+        System.out.println(same);
+
+        // identical trees
+        CompactTree<String> tree = compact(randomBrackets(random, 50, 3));
+        System.out.println(f1.getDistance(tree, tree, 0) == 0);
+
+        // free deletions, within a threshold of 0
+        TreeEditDistance<String> freeDeletions = new TreeEditDistance<>(new unitCost(), new CostFunction<String>() {
+            @Override
+            public double getCost(String label) {
+                return label.equals("a") ? 0 : 1;
+            }
+        }, new equalDistance());
+        System.out.println(freeDeletions.getDistance(compact("{c{a}}"), compact("{c}"), 0) == 0
+                && freeDeletions.getDistance(compact("{c{a}{b}}"), compact("{c}"), 0) == TreeEditDistance.EXCEEDS_THRESHOLD);
+
+        // a threshold equal to a distance that is not an integer: 21 deletions of 0.7 add up to less than 21 * 0.7
+        TreeEditDistance<String> tenths = tenthsDistance(7);
+        CompactTree<String> star = compact(star(21));
+        double exact = tenths.getDistance(star, compact("{r}"));
+        System.out.println(exact < 21 * 0.7 && tenths.getDistance(star, compact("{r}"), exact) == exact
+                && tenths.getDistance(compact("{r}"), star, exact) == exact);
+
+        return true;
+    }
+
+
+    /**
+     * @return distance whose operations all cost the given number of tenths
+     */
+    static TreeEditDistance<String> tenthsDistance(int tenths)
+    {
+        final double cost = tenths / 10.;
+        CostFunction<String> operation = new CostFunction<String>() {
+            @Override
+            public double getCost(String label) {
+                return cost;
+            }
+        };
+        return new TreeEditDistance<>(operation, operation, new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                return label1.equals(label2) ? 0 : cost;
+            }
+        });
+    }
+
+
+    /**
+     * @return a root r with the given number of leaves a
+     */
+    static String star(int leaves)
+    {
+        StringBuilder brackets = new StringBuilder("{r");
+        for (int i = 0; i != leaves; ++i)
+        {
+            brackets.append("{a}");
+        }
+        return brackets.append('}').toString();
+    }
+
+
+    static boolean TestJoin()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        Random random = new Random(17);
+        List<StringTree> left = new ArrayList<>();
+        List<StringTree> right = new ArrayList<>();
+        for (int i = 0; i != 40; ++i)
+        {
+            left.add(new StringTree(randomBrackets(random, 2 + random.nextInt(25), 3)));
+            right.add(new StringTree(randomBrackets(random, 2 + random.nextInt(25), 3)));
+        }
+
+        System.out.println("similarity join test");
+        double threshold = 8;
+        JoinResult result = new SimilarityJoin<>(f1, 1, new ForkJoinPool(3)).join(left, right, threshold);
+        List<JoinPair> expected = new ArrayList<>();
+        for (int i = 0; i != left.size(); ++i)
+        {
+            for (int j = 0; j != right.size(); ++j)
+            {
+                double distance = f1.getDistance(left.get(i), right.get(j));
+                if (distance <= threshold)
+                {
+                    expected.add(new JoinPair(i, j, distance));
+                }
+            }
+        }
+        boolean same = expected.size() == result.getPairs().size();
+        for (int k = 0; same && k != expected.size(); ++k)
+        {
+            JoinPair pair = result.getPairs().get(k);
+            same = pair.getLeftIndex() == expected.get(k).getLeftIndex()
+                    && pair.getRightIndex() == expected.get(k).getRightIndex()
+                    && pair.getDistance() == expected.get(k).getDistance();
+        }
+        System.out.println(same);
+
+        JoinStatistics statistics = result.getStatistics();
+        System.out.println(statistics.getPairs() == statistics.getPrunedBySize() + statistics.getPrunedByIndex()
+                + statistics.getPrunedByLabels() + statistics.getPrunedByBranches() + statistics.getVerified());
+        System.out.println(statistics.getResults() == expected.size());
+
+        // trees of the same size: the label index enumerates only the pairs sharing a rare label
+        List<StringTree> same1 = new ArrayList<>();
+        List<StringTree> same2 = new ArrayList<>();
+        for (int i = 0; i != 60; ++i)
+        {
+            same1.add(new StringTree(randomBrackets(random, 12, 26)));
+            same2.add(new StringTree(randomBrackets(random, 12, 26)));
+        }
+        same2.set(5, same1.get(7));
+        same2.set(9, new StringTree(same1.get(3).toString().replaceFirst("\\{[a-z]", "{z")));
+        result = new SimilarityJoin<>(f1, 1).join(same1, same2, 3);
+        int within = 0;
+        for (int i = 0; i != same1.size(); ++i)
+        {
+            for (int j = 0; j != same2.size(); ++j)
+            {
+                within += f1.getDistance(same1.get(i), same2.get(j)) <= 3 ? 1 : 0;
+            }
+        }
+        statistics = result.getStatistics();
+        System.out.println(result.getPairs().size() == within && within >= 2 && statistics.getPrunedBySize() == 0
+                && statistics.getPrunedByIndex() > statistics.getPairs() / 2
+                && statistics.getCandidates() == statistics.getPrunedByLabels() + statistics.getPrunedByBranches() + statistics.getVerified());
+
+        // a threshold equal to a distance that is not an integer
+        TreeEditDistance<String> tenths = tenthsDistance(7);
+        StringTree star = new StringTree(star(21));
+        double exact = tenths.getDistance(star, new StringTree("{r}"));
+        System.out.println(new SimilarityJoin<>(tenths, 0.7).join(Arrays.asList(star), Arrays.asList(new StringTree("{r}")), exact)
+                .getPairs().size() == 1);
+
+        return true;
+    }
+
+
+    static boolean TestIndex()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        Random random = new Random(23);
+        List<StringTree> trees = new ArrayList<>();
+        for (int i = 0; i != 150; ++i)
+        {
+            trees.add(new StringTree(randomBrackets(random, 2 + random.nextInt(20), 3)));
+        }
+        VantagePointTree<String> index = new VantagePointTree<>(trees, f1, new ForkJoinPool(3));
+
+        System.out.println("metric index test");
+        boolean same = true;
+        boolean fewer = true;
+        for (int q = 0; q != 20; ++q)
+        {
+            StringTree query = new StringTree(randomBrackets(random, 2 + random.nextInt(20), 3));
+            double[] distances = new double[trees.size()];
+            for (int i = 0; i != trees.size(); ++i)
+            {
+                distances[i] = f1.getDistance(query, trees.get(i));
+            }
+
+            double radius = random.nextInt(8);
+            QueryResult inRange = index.range(query, radius);
+            int expected = 0;
+            for (double distance : distances)
+            {
+                expected += distance <= radius ? 1 : 0;
+            }
+            same &= inRange.getNeighbors().size() == expected;
+            for (Neighbor neighbor : inRange.getNeighbors())
+            {
+                same &= neighbor.getDistance() == distances[neighbor.getIndex()];
+            }
+            fewer &= inRange.getDistanceComputations() <= trees.size();
+
+            int k = 1 + random.nextInt(10);
+            QueryResult nearest = index.knn(query, k);
+            double[] sorted = distances.clone();
+            Arrays.sort(sorted);
+            same &= nearest.getNeighbors().size() == k;
+            for (int i = 0; i != nearest.getNeighbors().size(); ++i)
+            {
+                Neighbor neighbor = nearest.getNeighbors().get(i);
+                same &= neighbor.getDistance() == sorted[i] && neighbor.getDistance() == distances[neighbor.getIndex()];
+            }
+        }
+        System.out.println(same);
+        System.out.println(fewer);
+
+        return true;
+    }
+
+
+    static boolean TestParser() throws IOException
+    {
+        Random random = new Random(29);
+        List<String> brackets = new ArrayList<>();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i != 200; ++i)
+        {
+            brackets.add(randomBrackets(random, 1 + random.nextInt(40), 5));
+            lines.append(brackets.get(i)).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        brackets.add("{r\u00e9sum\u00e9 {b}  {}{c d}}");
+        lines.append(brackets.get(brackets.size() - 1));
+
+        System.out.println("parser test");
+        boolean same = true;
+        for (String tree : brackets)
+        {
+            same &= sameTree(BracketParser.parse(tree), compact(tree));
+        }
+        System.out.println(same);
+
+        File file = File.createTempFile("trees", ".txt");
+        file.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+        {
+            writer.write(lines.toString());
+        }
+        BracketParser[] parsers = new BracketParser[]{
+                new BracketParser(new StringReader(lines.toString())),
+                new BracketParser(CharBuffer.wrap(lines)),
+                new BracketParser(new RandomAccessFile(file, "r").getChannel(), StandardCharsets.UTF_8)};
+        for (BracketParser parser : parsers)
+        {
+            int count = 0;
+            while (parser.hasNext())
+            {
+                same &= sameTree(parser.next(), BracketParser.parse(brackets.get(count)));
+                count += 1;
+            }
+            parser.close();
+            same &= count == brackets.size();
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean sameTree(CompactTree<String> tree1, CompactTree<String> tree2)
+    {
+        return Arrays.equals(tree1.getParents(), tree2.getParents())
+                && tree1.getPostOrderLabels().equals(tree2.getPostOrderLabels());
+    }
+
+
+    static boolean TestCorpus() throws IOException
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(31);
+        List<CompactTree<String>> trees = new ArrayList<>();
+        for (int i = 0; i != 100; ++i)
+        {
+            trees.add(BracketParser.parse(randomBrackets(random, 1 + random.nextInt(40), 5)));
+        }
+        trees.add(BracketParser.parse("{r\u00e9sum\u00e9{b}{e}{c d}}"));
+
+        System.out.println("corpus test");
+        File file = File.createTempFile("trees", ".corpus");
+        file.deleteOnExit();
+        try (TreeCorpusWriter writer = new TreeCorpusWriter(new RandomAccessFile(file, "rw").getChannel()))
+        {
+            for (CompactTree<String> tree : trees)
+            {
+                writer.add(tree);
+            }
+        }
+        boolean same = true;
+        try (TreeCorpus corpus = new TreeCorpus(new RandomAccessFile(file, "r").getChannel()))
+        {
+            same &= corpus.size() == trees.size();
+            for (int i = 0; i != trees.size(); ++i)
+            {
+                CompactTree<String> tree = corpus.get(i);
+                same &= sameTree(tree, trees.get(i))
+                        && Arrays.equals(tree.getKeyRoots(), trees.get(i).getKeyRoots())
+                        && Arrays.equals(tree.getLeftmostDescendants(), trees.get(i).getLeftmostDescendants())
+                        && Arrays.equals(tree.getPostOrderIndices(), trees.get(i).getPostOrderIndices());
+                same &= f1.getDistance(tree, corpus.get(0)) == f1.getDistance(trees.get(i), trees.get(0));
+            }
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean TestSubtreeCache()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        TreeEditDistance<String> f2 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        SubtreeCache cache = new SubtreeCache(1 << 20);
+        f2.setSubtreeCache(cache);
+        Random random = new Random(37);
+
+        // revisions of a tree, each one relabels a node of the previous one
+        List<String> revisions = new ArrayList<>();
+        revisions.add(randomBrackets(random, 150, 4));
+        for (int i = 1; i != 8; ++i)
+        {
+            char[] brackets = revisions.get(i - 1).toCharArray();
+            int position = brackets.length;
+            while (position == brackets.length || brackets[position - 1] != '{')
+            {
+                position = 1 + random.nextInt(brackets.length - 1);
+            }
+            brackets[position] = (char) ('a' + random.nextInt(4));
+            revisions.add(new String(brackets));
+        }
+
+        System.out.println("subtree cache test");
+        boolean same = true;
+        for (int i = 0; i != revisions.size(); ++i)
+        {
+            for (int j = 0; j != revisions.size(); ++j)
+            {
+                CompactTree<String> tree1 = compact(revisions.get(i));
+                CompactTree<String> tree2 = compact(revisions.get(j));
+                same &= Arrays.deepEquals(f1.treeEditDistance(tree1, tree2), f2.treeEditDistance(tree1, tree2));
+            }
+        }
+        System.out.println(same);
+        System.out.println(cache.getHits() > cache.getMisses());
+        System.out.println(cache.getStoredDistances() <= 1 << 20);
+
+        // identical trees
+        CompactTree<String> tree1 = compact(revisions.get(0));
+        CompactTree<String> tree2 = BracketParser.parse(revisions.get(0));
+        System.out.println(Arrays.equals(tree1.getSubtreeHashes(), tree2.getSubtreeHashes()));
+        System.out.println(f1.getDistance(tree1, tree2) == 0 && f1.getDistance(tree1, tree2, 0) == 0);
+
+        // labels whose hash codes collide ("Aa" and "BB") are not mistaken for each other
+        TreeEditDistance<String> unit = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        unit.setSubtreeCache(new SubtreeCache(1 << 20));
+        StringBuilder query = new StringBuilder("{r");
+        StringBuilder same1 = new StringBuilder("{r");
+        StringBuilder colliding = new StringBuilder("{r");
+        for (int i = 0; i != 20; ++i)
+        {
+            query.append(i == 2 ? "{x}" : "{Aa}");
+            same1.append("{Aa}");
+            colliding.append("{BB}");
+        }
+        CompactTree<String> queryTree = compact(query + "}");
+        CompactTree<String> collidingTree = compact(colliding + "}");
+        unit.getDistance(queryTree, compact(same1 + "}"));
+        System.out.println(unit.getDistance(queryTree, collidingTree) == new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance()).getDistance(queryTree, collidingTree)
+                && !compact("{Aa}").isIdenticalSubtree(0, compact("{BB}"), 0)
+                && compact("{r{a}{b{c}}}").isIdenticalSubtree(2, compact("{b{c}}"), 1));
+
+        // the entries copy their subtrees, the trees compared are not kept alive by the cache
+        SubtreeCache retaining = new SubtreeCache(1 << 20);
+        unit.setSubtreeCache(retaining);
+        WeakReference<CompactTree<String>> compared = new WeakReference<>(compact(revisions.get(1)));
+        unit.getDistance(compared.get(), compact(revisions.get(2)));
+        for (int i = 0; i != 20 && compared.get() != null; ++i)
+        {
+            System.gc();
+        }
+        System.out.println(compared.get() == null && retaining.getStoredDistances() > 0);
+
+        return true;
+    }
+
+
+    static boolean TestLowMemory()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        TreeEditDistance<String> f2 = new LowMemoryTreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        TedWorkspace workspace = new TedWorkspace();
+        Random random = new Random(41);
+
+        // costs in quarters, so both engines give exactly the same sums
+        System.out.println("low memory test");
+        boolean same = true;
+        for (int i = 0; i != 100; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(40), 1 + random.nextInt(5)));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(40), 1 + random.nextInt(5)));
+            same &= f1.getDistance(tree1, tree2) == f2.getDistance(tree1, tree2, workspace);
+        }
+        System.out.println(same);
+
+        // paths, the deepest trees
+        CompactTree<String> path1 = compact("{a{b{c{d{a{b{c{d{a}}}}}}}}}");
+        CompactTree<String> path2 = compact("{b{a{c{c{a{b{d}{a}}}}}}}");
+        System.out.println(f1.getDistance(path1, path2) == f2.getDistance(path1, path2, workspace));
+
+        // less than the dense table for large trees
+        TedWorkspace large = new TedWorkspace();
+        CompactTree<String> tree1 = compact(randomBrackets(random, 300, 4));
+        CompactTree<String> tree2 = compact(randomBrackets(random, 300, 4));
+        System.out.println(f1.getDistance(tree1, tree2) == f2.getDistance(tree1, tree2, large));
+        // still a dense table between the internal nodes: a fifth of n1 x n2 on random trees,
+        // most of it on deep trees, whose rows are as many as their height
+        long bytes = large.getAllocatedBytes();
+        boolean dense = bytes < 8L * 300 * 300 / 3 && bytes >= 8L * internalNodes(tree1) * internalNodes(tree2);
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i != 150; ++i)
+        {
+            deep.append("{a");
+        }
+        for (int i = 0; i != 150; ++i)
+        {
+            deep.append(i == 0 ? "}" : "{b}}");
+        }
+        CompactTree<String> deep1 = compact(deep.toString());
+        CompactTree<String> deep2 = compact(deep.toString().replace('b', 'c'));
+        TedWorkspace deepWorkspace = new TedWorkspace();
+        f2.getDistance(deep1, deep2, deepWorkspace);
+        dense &= deepWorkspace.getAllocatedBytes() > 8L * deep1.size() * deep2.size() / 2;
+        System.out.println(dense);
+
+        return true;
+    }
+
+
+    static int internalNodes(CompactTree<String> tree)
+    {
+        int internal = 0;
+        for (int x = 0; x != tree.size(); ++x)
+        {
+            internal += tree.getLeftmostDescendants()[x] != x ? 1 : 0;
+        }
+        return internal;
+    }
+
+
+    static boolean TestIntegerKernel()
+    {
+        // costs too large for short tables
+        CostFunction<String> largeCost = new CostFunction<String>() {
+            @Override
+            public double getCost(String label) {
+                return 10000 * (1 + label.charAt(0) % 3);
+            }
+        };
+        DistanceFunction<String, String> largeDistance = new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                return 7000 * Math.abs(label1.charAt(0) - label2.charAt(0));
+            }
+        };
+        List<TreeEditDistance<String>> engines = new ArrayList<>();
+        engines.add(new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance()));
+        engines.add(new TreeEditDistance<>(largeCost, largeCost, largeDistance));
+        engines.add(new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance()));
+        Random random = new Random(43);
+
+        System.out.println("integer kernel test");
+        boolean same = true;
+        for (TreeEditDistance<String> f1 : engines)
+        {
+            for (int i = 0; i != 50; ++i)
+            {
+                CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(60), 1 + random.nextInt(5)));
+                CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(60), 1 + random.nextInt(5)));
+                f1.setIntegerKernel(true);
+                double distance = f1.getDistance(tree1, tree2);
+                f1.setIntegerKernel(false);
+                same &= distance == f1.getDistance(tree1, tree2);
+            }
+        }
+        System.out.println(same);
+
+        // short tables for the unit costs
+        TreeEditDistance<String> f1 = engines.get(0);
+        f1.setIntegerKernel(true);
+        TedWorkspace workspace = new TedWorkspace();
+        CompactTree<String> tree1 = compact(randomBrackets(random, 200, 4));
+        CompactTree<String> tree2 = compact(randomBrackets(random, 200, 4));
+        double distance = f1.getDistance(tree1, tree2, workspace);
+        System.out.println(workspace.getAllocatedBytes() < 4L * 200 * 200 * 2);
+        System.out.println(distance == f1.treeEditDistance(tree1, tree2)[199][199]);
+
+        return true;
+    }
+
+
+    static int leftmostPathLength(CompactTree<String> tree)
+    {
+        int length = 0;
+        for (int lmd : tree.getLeftmostDescendants())
+        {
+            length += lmd == 0 ? 1 : 0;
+        }
+        return length;
+    }
+
+
+    static boolean TestShapes()
+    {
+        System.out.println("shapes test");
+        boolean sizes = true;
+        for (TreeShapes.Shape shape : TreeShapes.Shape.values())
+        {
+            for (int size : new int[]{1, 2, 7, 100})
+            {
+                String brackets = shape.generate(size, 30, 5);
+                sizes &= BracketParser.parse(brackets).size() == size && brackets.equals(shape.generate(size, 30, 5));
+            }
+        }
+        System.out.println(sizes);
+
+        // the whole spine is the leftmost path of the left-deep trees, two nodes for the right-deep ones
+        System.out.println(leftmostPathLength(BracketParser.parse(TreeShapes.leftDeep(101, 4, 1))) == 51);
+        System.out.println(leftmostPathLength(BracketParser.parse(TreeShapes.rightDeep(101, 4, 1))) == 2);
+        System.out.println(BracketParser.parse(TreeShapes.zigZag(101, 4, 1)).getKeyRoots().length == 51);
+
+        return true;
+    }
+
+
+    static boolean TestMetrics()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        TreeEditDistance<String> f2 = new RobustTreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        final List<ComparisonStatistics> recorded = new ArrayList<>();
+        TedMetrics listener = new TedMetrics() {
+            @Override
+            public void record(ComparisonStatistics statistics) {
+                recorded.add(statistics);
+            }
+        };
+        f1.setMetrics(listener);
+        f2.setMetrics(listener);
+        Random random = new Random(53);
+        CompactTree<String> tree1 = compact(randomBrackets(random, 80, 4));
+        CompactTree<String> tree2 = compact(randomBrackets(random, 60, 4));
+        TedWorkspace workspace = new TedWorkspace();
+
+        System.out.println("metrics test");
+        f1.getDistance(tree1, tree2, workspace);
+        f1.getDistance(tree1, tree2, workspace);
+        ComparisonStatistics first = recorded.get(0), second = recorded.get(1);
+        System.out.println(first.getSubproblems() == (long) tree1.getKeyRoots().length * tree2.getKeyRoots().length);
+        System.out.println(first.getForestCells() == TreeEditDistance.estimateForestCells(tree1, tree2));
+        int alphabetSize1 = tree1.getAlphabetSize(), alphabetSize2 = tree2.getAlphabetSize();
+        System.out.println(first.getCostCalls() == alphabetSize1 + alphabetSize2 + alphabetSize1 * alphabetSize2);
+        System.out.println(first.getAllocatedBytes() > 0 && second.getAllocatedBytes() == 0);
+        System.out.println(first.getTotalNanos() > 0 && first.getDynamicProgrammingNanos() >= 0);
+
+        // the band of a threshold and the robust strategy compute fewer cells
+        f1.getDistance(tree1, tree2, 5, workspace);
+        f2.getDistance(tree1, tree2, workspace);
+        System.out.println(recorded.get(2).getForestCells() < first.getForestCells());
+        System.out.println(recorded.get(3).getForestCells() <= first.getForestCells() && recorded.get(3).getSubproblems() > 0);
+
+        // aggregated and exported
+        AggregatingMetrics metrics = new AggregatingMetrics();
+        f1.setMetrics(metrics);
+        for (int i = 0; i != 5; ++i)
+        {
+            f1.getDistance(tree1, compact(randomBrackets(random, 20 + 20 * i, 4)));
+        }
+        f1.setMetrics(null);
+        f1.getDistance(tree1, tree2);
+        System.out.println(metrics.getComparisons() == 5 && metrics.getForestCells().getCount() == 5);
+        System.out.println(metrics.toString().contains("ted_comparisons_total 5\n")
+                && metrics.toString().contains("ted_forest_cells_bucket{le=\"+Inf\"} 5\n"));
+
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; ++value)
+        {
+            histogram.record(value);
+        }
+        System.out.println(histogram.getQuantile(0.5) >= 500 && histogram.getQuantile(0.5) <= 1023
+                && histogram.getQuantile(1) == 1000 && histogram.getSum() == 500500);
+
+        return true;
+    }
+
+
+    static boolean TestDeepTrees()
+    {
+        System.out.println("deep trees test");
+        // a path of 100000 nodes, far deeper than what a recursion on a small stack allows
+        int depth = 100000;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i != depth; ++i)
+        {
+            builder.append("{a");
+        }
+        for (int i = 0; i != depth; ++i)
+        {
+            builder.append("}");
+        }
+        String path = builder.toString();
+        StringTree tree = new StringTree(path);
+        System.out.println(tree.toString().equals(path));
+        System.out.println(tree.getLeftmostDescendants()[depth - 1] == 0
+                && Arrays.equals(tree.getKeyRoots(), new int[]{depth - 1}));
+        // all the nodes of the path but the root and one child of the small tree are deleted, and the other child inserted
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        System.out.println(f1.getDistance(tree, new StringTree("{a{a}{a}}")) == depth - 1);
+
+        // same preprocessing as the compact trees, on deep and random trees
+        boolean same = true;
+        Random random = new Random(61);
+        List<String> trees = new ArrayList<>();
+        trees.add(TreeShapes.rightDeep(2 * depth + 1, 4, 1));
+        trees.add("{a}");
+        for (int i = 0; i != 50; ++i)
+        {
+            trees.add(randomBrackets(random, 1 + random.nextInt(60), 4));
+        }
+        for (String brackets : trees)
+        {
+            StringTree stringTree = new StringTree(brackets);
+            CompactTree<String> compactTree = BracketParser.parse(brackets);
+            same &= Arrays.equals(stringTree.getLeftmostDescendants(), compactTree.getLeftmostDescendants())
+                    && Arrays.equals(stringTree.getKeyRoots(), compactTree.getKeyRoots())
+                    && Arrays.equals(stringTree.toCompactTree().getParents(), compactTree.getParents())
+                    && stringTree.toString().equals(brackets);
+        }
+        System.out.println(same);
+
+        return true;
+    }
+
+
+    static boolean TestDeadline() throws InterruptedException
+    {
+        CostFunction<String> insertCost = new labelCost(1);
+        CostFunction<String> deleteCost = new labelCost(2);
+        DistanceFunction<String, String> subCost = new labelDistance();
+        List<TreeEditDistance<String>> engines = new ArrayList<>();
+        engines.add(new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance()));
+        engines.add(new TreeEditDistance<>(insertCost, deleteCost, subCost));
+        engines.add(new RobustTreeEditDistance<>(insertCost, deleteCost, subCost));
+        engines.add(new ParallelTreeEditDistance<>(insertCost, deleteCost, subCost, new ForkJoinPool(2)));
+        engines.add(new LowMemoryTreeEditDistance<>(insertCost, deleteCost, subCost));
+        Random random = new Random(67);
+        CompactTree<String> tree1 = compact(randomBrackets(random, 300, 4));
+        CompactTree<String> tree2 = compact(randomBrackets(random, 320, 4));
+        TedWorkspace workspace = new TedWorkspace();
+
+        System.out.println("deadline test");
+        boolean complete = true, bounded = true;
+        for (TreeEditDistance<String> engine : engines)
+        {
+            double distance = engine.getDistance(tree1, tree2, workspace);
+            DistanceResult result = engine.getDistance(tree1, tree2, Deadline.never(), workspace);
+            complete &= result.isComplete() && result.getDistance() == distance
+                    && result.getLowerBound() == distance && result.getUpperBound() == distance;
+
+            Deadline cancelled = Deadline.never();
+            cancelled.cancel();
+            for (Deadline deadline : new Deadline[]{cancelled, Deadline.after(0, TimeUnit.MILLISECONDS)})
+            {
+                result = engine.getDistance(tree1, tree2, deadline, workspace);
+                bounded &= !result.isComplete() && Double.isNaN(result.getDistance())
+                        && result.getLowerBound() <= distance && distance <= result.getUpperBound();
+            }
+            // the workspace is still good after an abort
+            complete &= engine.getDistance(tree1, tree2, workspace) == distance;
+        }
+        System.out.println(complete);
+        System.out.println(bounded);
+
+        // cancelled from another thread, long before the end of the computation
+        final Deadline deadline = Deadline.never();
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                deadline.cancel();
+            }
+        });
+        CompactTree<String> right1 = compact(TreeShapes.rightDeep(3000, 4, 1));
+        CompactTree<String> right2 = compact(TreeShapes.rightDeep(3000, 4, 2));
+        canceller.start();
+        DistanceResult result = engines.get(0).getDistance(right1, right2, deadline);
+        canceller.join();
+        System.out.println(!result.isComplete() && result.getLowerBound() <= result.getUpperBound());
+        System.out.println(TreeEditDistance.estimateSubproblems(right1, right2) == 1500L * 1500);
+
+        return true;
+    }
+
+
+    static boolean TestPreparedQuery()
+    {
+        CostFunction<String> insertCost = new labelCost(1);
+        CostFunction<String> deleteCost = new labelCost(2);
+        DistanceFunction<String, String> subCost = new labelDistance();
+        List<TreeEditDistance<String>> engines = new ArrayList<>();
+        engines.add(new TreeEditDistance<>(insertCost, deleteCost, subCost));
+        engines.add(new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance()));
+        engines.add(new RobustTreeEditDistance<>(insertCost, deleteCost, subCost));
+        engines.add(new LowMemoryTreeEditDistance<>(insertCost, deleteCost, subCost));
+        Random random = new Random(71);
+        StringTree query = new StringTree(randomBrackets(random, 40, 6));
+        List<StringTree> candidates = new ArrayList<>();
+        for (int i = 0; i != 60; ++i)
+        {
+            candidates.add(new StringTree(randomBrackets(random, 1 + random.nextInt(50), 1 + random.nextInt(8))));
+        }
+        candidates.add(query);
+
+        System.out.println("prepared query test");
+        boolean same = true;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        for (TreeEditDistance<String> engine : engines)
+        {
+            PreparedQuery<String> prepared = new PreparedQuery<>(engine, query);
+            double[] distances = prepared.distancesTo(candidates, pool);
+            for (int i = 0; i != candidates.size(); ++i)
+            {
+                double distance = engine.getDistance(query, candidates.get(i));
+                same &= distances[i] == distance && prepared.distanceTo(candidates.get(i)) == distance;
+            }
+        }
+        pool.shutdown();
+        System.out.println(same);
+
+        // the costs prepared for a query are not used for other pairs
+        TreeEditDistance<String> f1 = engines.get(0);
+        TreeEditDistance<String> f2 = new TreeEditDistance<>(insertCost, deleteCost, subCost);
+        TED.prepareQuery(query, f1).distanceTo(candidates.get(0));
+        System.out.println(f1.getDistance(candidates.get(1), candidates.get(0)) == f2.getDistance(candidates.get(1), candidates.get(0)));
+        System.out.println(TED.prepareQuery(query).distanceTo(candidates.get(2)) == TED.computeDistance(query, candidates.get(2)));
+
+        // null labels are costed like any other label
+        CostFunction<String> nullCost = new CostFunction<String>() {
+            @Override
+            public double getCost(String label) {
+                return label == null ? 3 : 1;
+            }
+        };
+        DistanceFunction<String, String> nullDistance = new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                return Objects.equals(label1, label2) ? 0 : 2;
+            }
+        };
+        TreeEditDistance<String> f3 = new TreeEditDistance<>(nullCost, nullCost, nullDistance);
+        CompactTree<String> withNulls = new CompactTree<>("(()(())())", Arrays.asList("a", null, "b", null, "c"));
+        CompactTree<String> other = compact("{a{b}{x{b}}}");
+        PreparedQuery<String> prepared = new PreparedQuery<>(f3, other);
+        double expected = f3.getDistance(other, withNulls);
+        // the second call reads the cached costs
+        System.out.println(prepared.distanceTo(withNulls) == expected && prepared.distanceTo(withNulls) == expected);
+
+        return true;
+    }
+
+
+    static boolean TestIncrementalSession()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(73);
+        CompactTree<String> reference = compact(randomBrackets(random, 60, 5));
+        IncrementalSession<String> session = new IncrementalSession<>(f1, reference, compact("{a{b}{c}}"));
+
+        System.out.println("incremental session test");
+        // the edits themselves
+        session.insertNode(2, 0, 2, "x");
+        boolean edits = session.getDocument().isIdentical(compact("{a{x{b}{c}}}"));
+        session.insertSubtree(3, 1, compact("{d{e}}"));
+        edits &= session.getDocument().isIdentical(compact("{a{x{b}{c}}{d{e}}}"));
+        session.deleteNode(2);
+        edits &= session.getDocument().isIdentical(compact("{a{b}{c}{d{e}}}"));
+        session.relabel(0, "y");
+        session.deleteSubtree(3);
+        edits &= session.getDocument().isIdentical(compact("{a{y}{c}}"));
+        System.out.println(edits);
+
+        // random edits, always the same distance as a whole computation, with costs as doubles, as
+        // integers, and as integers until a label costing half a substitution comes in
+        List<TreeEditDistance<String>> engines = new ArrayList<>();
+        engines.add(f1);
+        engines.add(new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance()));
+        engines.add(new TreeEditDistance<>(new unitCost(), new unitCost(), new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                return label1.equals(label2) ? 0 : (label1.equals("f") || label2.equals("f") ? 0.5 : 2);
+            }
+        }));
+        boolean same = true;
+        for (TreeEditDistance<String> engine : engines)
+        {
+            session = new IncrementalSession<>(engine, reference, compact(randomBrackets(random, 60, 5)));
+            same &= session.getDistance() == engine.getDistance(reference, session.getDocument());
+            for (int i = 0; i != 100; ++i)
+            {
+                CompactTree<String> document = session.getDocument();
+                int node = random.nextInt(document.size());
+                int children = 0;
+                for (int child = document.getFirstChildren()[node]; child != -1; child = document.getNextSiblings()[child])
+                {
+                    children += 1;
+                }
+                String label = String.valueOf((char) ('a' + random.nextInt(6)));
+                double distance;
+                switch (node == document.getRoot() ? random.nextInt(3) : random.nextInt(5))
+                {
+                    case 0:
+                        distance = session.relabel(node, label);
+                        break;
+                    case 1:
+                        int position = random.nextInt(children + 1);
+                        distance = session.insertNode(node, position, random.nextInt(children - position + 1), label);
+                        break;
+                    case 2:
+                        distance = session.insertSubtree(node, random.nextInt(children + 1), compact(randomBrackets(random, 1 + random.nextInt(4), 5)));
+                        break;
+                    case 3:
+                        distance = session.deleteNode(node);
+                        break;
+                    default:
+                        distance = document.size() > 20 ? session.deleteSubtree(node) : session.relabel(node, label);
+                }
+                same &= distance == engine.getDistance(reference, session.getDocument());
+            }
+        }
+        System.out.println(same);
+
+        // relabeling the rightmost leaf of a large document only runs the keyroots above it,
+        // the last child of a node coming right before it
+        session = new IncrementalSession<>(f1, reference, compact(TreeShapes.balanced(400, 3, 5, 1)));
+        int leaf = session.getDocument().getRoot();
+        while (session.getDocument().getFirstChildren()[leaf] != -1)
+        {
+            leaf -= 1;
+        }
+        session.relabel(leaf, "z");
+        System.out.println(session.getLastForestCells() * 2 < TreeEditDistance.estimateForestCells(reference, session.getDocument()));
+
+        boolean rejected = false;
+        try
+        {
+            CompactTree.fromParents(new int[]{2, 3, 3, -1}, Arrays.asList("a", "b", "c", "d"));
+        }
+        catch (IllegalArgumentException e)
+        {
+            rejected = true;
+        }
+        System.out.println(rejected && CompactTree.fromParents(new int[]{3, 2, 3, -1}, Arrays.asList("a", "b", "c", "d"))
+                .isIdentical(compact("{d{a}{c{b}}}")));
+
+        return true;
+    }
+
+
+    static boolean TestApproximate()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        PqGramDistance<String> pqGrams = new PqGramDistance<>();
+        BinaryBranchDistance<String> branches = new BinaryBranchDistance<>();
+        Random random = new Random(79);
+
+        System.out.println("approximate distances test");
+        // 4 + 1 + 1 pq-grams each, 2 in common
+        CompactTree<String> tree = compact("{a{b}{c}}");
+        System.out.println(tree.getPqGrams(2, 3).length == 6 && tree.getPqGrams(2, 3) == tree.getPqGrams(2, 3)
+                && pqGrams.getDistance(tree, compact("{a{b}{d}}")) == 1 - 4.0 / 12
+                && pqGrams.getDistance(tree, compact("{a{b}{c}}")) == 0);
+
+        // a fifth of the binary branch distance is a lower bound of the unit cost distance
+        boolean bound = true;
+        for (int i = 0; i != 100; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(30), 4));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(30), 4));
+            bound &= branches.getDistance(tree1, tree2) / 5 <= f1.getDistance(tree1, tree2);
+            bound &= pqGrams.getDistance(tree1, tree1) == 0 && branches.getDistance(tree2, tree2) == 0;
+        }
+        System.out.println(bound);
+
+        // the index gives the same approximate distances, and the exact neighbors with a full shortlist
+        List<StringTree> trees = new ArrayList<>();
+        for (int i = 0; i != 150; ++i)
+        {
+            trees.add(new StringTree(randomBrackets(random, 2 + random.nextInt(20), 3)));
+        }
+        ProfileIndex<String> index = new ProfileIndex<>(trees, pqGrams, f1);
+        VantagePointTree<String> exact = new VantagePointTree<>(trees, f1, new ForkJoinPool(3));
+        boolean same = true;
+        for (int q = 0; q != 20; ++q)
+        {
+            StringTree query = new StringTree(randomBrackets(random, 2 + random.nextInt(20), 3));
+            double[] approximate = index.approximateDistances(query);
+            for (int i = 0; i != trees.size(); ++i)
+            {
+                same &= approximate[i] == pqGrams.getDistance(query, trees.get(i));
+            }
+            int k = 1 + random.nextInt(10);
+            List<Neighbor> nearest = index.approximateKnn(query, k).getNeighbors();
+            double[] sorted = approximate.clone();
+            Arrays.sort(sorted);
+            same &= nearest.size() == k && nearest.get(k - 1).getDistance() == sorted[k - 1];
+
+            List<Neighbor> expected = exact.knn(query, k).getNeighbors();
+            List<Neighbor> found = index.knn(query, k, trees.size()).getNeighbors();
+            same &= found.size() == k;
+            for (int i = 0; i != found.size(); ++i)
+            {
+                same &= found.get(i).getDistance() == expected.get(i).getDistance();
+            }
+            same &= index.knn(query, k, 3 * k).getDistanceComputations() == 3 * k;
+        }
+        // no neighbor wanted, none computed
+        QueryResult none = index.knn(trees.get(0), 0, 5);
+        System.out.println(same && none.getNeighbors().isEmpty() && none.getDistanceComputations() == 0);
+
+        return true;
+    }
+
+
+    static boolean TestEditMapping()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(83);
+
+        System.out.println("edit mapping test");
+        TreeEditDistance<String> unit = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        EditMapping mapping = unit.getEditMapping(compact("{a{b}{c}}"), compact("{a{c}}"));
+        System.out.println(mapping.getEditScript().size() == 1 && mapping.getEditScript().get(0).getType() == EditOperation.Type.DELETE
+                && mapping.getMatch1(0) == -1 && mapping.getMatch1(1) == 0 && mapping.getMatch2(1) == 2);
+
+        // the distance of the engine, as the cost of a valid mapping: ancestors and order preserved
+        boolean same = true;
+        boolean valid = true;
+        for (int i = 0; i != 100; ++i)
+        {
+            CompactTree<String> tree1 = compact(randomBrackets(random, 1 + random.nextInt(30), 4));
+            CompactTree<String> tree2 = compact(randomBrackets(random, 1 + random.nextInt(30), 4));
+            mapping = f1.getEditMapping(tree1, tree2);
+            double cost = 0;
+            for (EditOperation operation : mapping.getEditScript())
+            {
+                cost += operation.getCost();
+            }
+            same &= mapping.getDistance() == f1.getDistance(tree1, tree2) && cost == mapping.getDistance();
+
+            int[] lmds1 = tree1.getLeftmostDescendants();
+            int[] lmds2 = tree2.getLeftmostDescendants();
+            for (int x1 = 0; x1 != tree1.size(); ++x1)
+            {
+                int y1 = mapping.getMatch1(x1);
+                valid &= y1 == -1 || mapping.getMatch2(y1) == x1;
+                for (int x2 = 0; x2 != x1 && y1 != -1; ++x2)
+                {
+                    int y2 = mapping.getMatch1(x2);
+                    valid &= y2 == -1 || (y2 < y1 && (lmds1[x1] <= x2) == (lmds2[y1] <= y2));
+                }
+            }
+        }
+        System.out.println(same);
+        System.out.println(valid);
+
+        return true;
+    }
+
+
+    static boolean TestCachingDistance()
+    {
+        final AtomicLong calls = new AtomicLong();
+        DistanceFunction<String, String> counted = new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                calls.incrementAndGet();
+                return Math.abs(label1.charAt(0) - label2.charAt(0)) * 0.75;
+            }
+        };
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new labelCost(1), new labelCost(2), new labelDistance());
+        Random random = new Random(89);
+        List<StringTree> trees = new ArrayList<>();
+        for (int i = 0; i != 40; ++i)
+        {
+            trees.add(new StringTree(randomBrackets(random, 2 + random.nextInt(20), 6)));
+        }
+        TriangularMatrix expected = TED.distanceMatrix(trees, f1);
+
+        System.out.println("caching distance test");
+        // shared by the threads of the distance matrix, each pair of labels computed once
+        CachingDistanceFunction<String, String> cache = new CachingDistanceFunction<>(counted, 1024);
+        TriangularMatrix cached = TED.distanceMatrix(trees, new TreeEditDistance<>(new labelCost(1), new labelCost(2), cache));
+        boolean same = true;
+        for (int i = 0; i != trees.size(); ++i)
+        {
+            for (int j = i + 1; j != trees.size(); ++j)
+            {
+                same &= cached.get(i, j) == expected.get(i, j);
+            }
+        }
+        System.out.println(same && calls.get() == cache.getMisses() && cache.getMisses() < 2 * 36
+                && cache.getHits() > 10 * cache.getMisses() && cache.getEvictions() == 0);
+
+        // a cache too small for the labels evicts some, and still gives the same distances
+        cache = new CachingDistanceFunction<>(counted, 8);
+        TreeEditDistance<String> small = new TreeEditDistance<>(new labelCost(1), new labelCost(2), cache);
+        same = cache.getCapacity() == 8;
+        for (int i = 1; i != trees.size(); ++i)
+        {
+            same &= small.getDistance(trees.get(0), trees.get(i)) == expected.get(0, i);
+        }
+        System.out.println(same && cache.getEvictions() > 0 && cache.getMisses() == cache.getEvictions() + 8);
+
+        return true;
+    }
+
+
+    static boolean TestServer() throws IOException, InterruptedException
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch hold = new CountDownLatch(1);
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new DistanceFunction<String, String>() {
+            @Override
+            public double getDistance(String label1, String label2) {
+                if (label1.equals("wait") || label1.equals("hold"))
+                {
+                    try
+                    {
+                        (label1.equals("wait") ? release : hold).await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (label1.equals("fail"))
+                {
+                    throw new OutOfMemoryError("failing label");
+                }
+                return label1.equals(label2) ? 0 : 2;
+            }
+        });
+        f1.setMetrics(new AggregatingMetrics());
+        final TedServer server = new TedServer(f1, new InetSocketAddress("127.0.0.1", 0), 2, 40);
+        server.setBatchDelay(5, TimeUnit.MILLISECONDS);
+        server.start();
+        Random random = new Random(97);
+
+        System.out.println("server test");
+        // concurrent pairs, coalesced into fewer batches
+        final List<String> brackets = new ArrayList<>();
+        for (int i = 0; i != 40; ++i)
+        {
+            brackets.add(randomBrackets(random, 1 + random.nextInt(20), 4));
+        }
+        final String[] answers = new String[brackets.size() - 1];
+        Thread[] clients = new Thread[answers.length];
+        for (int i = 0; i != clients.length; ++i)
+        {
+            final int pair = i;
+            clients[i] = new Thread() {
+                @Override
+                public void run() {
+                    answers[pair] = post(server, "/distance", brackets.get(pair) + "\n" + brackets.get(pair + 1));
+                }
+            };
+            clients[i].start();
+        }
+        boolean same = true;
+        for (int i = 0; i != clients.length; ++i)
+        {
+            clients[i].join();
+            same &= answers[i].equals("200 " + f1.getDistance(new StringTree(brackets.get(i)), new StringTree(brackets.get(i + 1))) + "\n");
+        }
+        System.out.println(same && server.getMetrics().getBatches() < clients.length);
+
+        // one query against many candidates
+        StringBuilder body = new StringBuilder();
+        StringBuilder expected = new StringBuilder("200 ");
+        for (String candidate : brackets)
+        {
+            body.append(candidate).append('\n');
+            expected.append(f1.getDistance(new StringTree(brackets.get(0)), new StringTree(candidate))).append('\n');
+        }
+        System.out.println(post(server, "/distances", brackets.get(0) + "\n" + body).equals(expected.toString()));
+
+        // malformed, too large, and refused while the queue is full
+        boolean refused = post(server, "/distance", "{a{b}").startsWith("400")
+                && post(server, "/distances", "{a}\n" + body + body).startsWith("413");
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                answers[0] = post(server, "/distances", "{wait}\n" + brackets.get(1) + "\n" + brackets.get(2));
+            }
+        };
+        blocked.start();
+        while (server.getMetrics().getQueueDepth() != 2)
+        {
+            Thread.sleep(1);
+        }
+        StringBuilder full = new StringBuilder("{a}\n");
+        for (int i = 0; i != 39; ++i)
+        {
+            full.append("{b}\n");
+        }
+        refused &= post(server, "/distances", full.toString()).startsWith("503");
+        release.countDown();
+        blocked.join();
+        refused &= answers[0].startsWith("200") && server.getMetrics().getRejected() == 2 && server.getMetrics().getQueueDepth() == 0;
+        System.out.println(refused);
+
+        // a comparison failing with an error fails its request only, the rest of its batch still runs
+        long failed = server.getMetrics().getFailed();
+        boolean errors = post(server, "/distance", "{fail}\n{a}").startsWith("500")
+                && post(server, "/distances", "{fail}\n{a}\n{b}\n{c}").startsWith("500")
+                && post(server, "/distance", "{a}\n{b}").equals("200 2.0\n");
+        System.out.println(errors && server.getMetrics().getFailed() == failed + 2 && server.getMetrics().getQueueDepth() == 0);
+
+        String metrics = post(server, "/metrics", "");
+        System.out.println(metrics.contains("ted_server_requests_total") && metrics.contains("ted_comparisons_total"));
+        server.stop();
+
+        // an exchange does not wait longer than the timeout, its comparison stays admitted until done
+        TedServer slow = new TedServer(f1, new InetSocketAddress("127.0.0.1", 0), 1, 4);
+        slow.setTimeout(50, TimeUnit.MILLISECONDS);
+        slow.start();
+        boolean timedOut = post(slow, "/distance", "{hold}\n{a}").startsWith("504") && slow.getMetrics().getQueueDepth() == 1;
+        hold.countDown();
+        while (slow.getMetrics().getQueueDepth() != 0)
+        {
+            Thread.sleep(1);
+        }
+        System.out.println(timedOut && post(slow, "/distance", "{a}\n{b}").equals("200 2.0\n"));
+        slow.stop();
+
+        return true;
+    }
+
+
+    /**
+     * @return status code, a space, then the body of the answer
+     */
+    private static String post(TedServer server, String path, String body)
+    {
+        try
+        {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(path.equals("/metrics") ? "GET" : "POST");
+            if (!path.equals("/metrics"))
+            {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream())
+                {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer))
+            {
+                answer.write(buffer, 0, read);
+            }
+            in.close();
+            return status + " " + new String(answer.toByteArray(), StandardCharsets.UTF_8);
+        }
+        catch (IOException e)
+        {
+            return "failed " + e;
+        }
+    }
+
+
+    static boolean TestWorkspace()
+    {
+        TreeEditDistance<String> f1 = new TreeEditDistance<>(new unitCost(), new unitCost(), new equalDistance());
+        TedWorkspace workspace = new TedWorkspace();
+        Random random = new Random(42);
+        StringTree tree1 = new StringTree(randomBrackets(random, 60, 4));
+        StringTree tree2 = new StringTree(randomBrackets(random, 50, 4));
+
+        System.out.println("workspace test");
+        double distance = f1.getDistance(tree1, tree2, workspace);
+        long allocated = workspace.getAllocatedBytes();
+        System.out.println(distance == f1.getDistance(tree1, tree2, workspace));
+        System.out.println(allocated == workspace.getAllocatedBytes());
+        System.out.println(distance == f1.treeEditDistance(tree1, tree2)[59][49]);
+
+        return true;
+    }
+
+
+    public static void main(String[] args) throws IOException, InterruptedException
     {
         TestConstructor();
 
         TestDistance();
+
+        TestCompactTree();
+
+        TestWorkspace();
+
+        TestAgainstReference();
+
+        TestRobust();
+
+        TestParallel();
+
+        TestDistanceMatrix();
+
+        TestThreshold();
+
+        TestJoin();
+
+        TestIndex();
+
+        TestParser();
+
+        TestCorpus();
+
+        TestSubtreeCache();
+
+        TestLowMemory();
+
+        TestIntegerKernel();
+
+        TestShapes();
+
+        TestMetrics();
+
+        TestDeepTrees();
+
+        TestDeadline();
+
+        TestPreparedQuery();
+
+        TestIncrementalSession();
+
+        TestApproximate();
+
+        TestEditMapping();
+
+        TestCachingDistance();
+
+        TestServer();
         System.out.println("done");
 
     }